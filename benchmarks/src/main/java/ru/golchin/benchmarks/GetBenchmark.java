@@ -0,0 +1,75 @@
+package ru.golchin.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.golchin.key_value_store.KeyValueStoreImpl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Point lookups in a store whose keys are spread over {@code files} flushed files that are not compacted.
+ * Every key is written once in random order, so the key ranges of the files overlap and a miss may have to
+ * look into all of them.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GetBenchmark {
+    @Param({"SSTABLE", "HASH"})
+    public Variant variant;
+    @Param({"UNIFORM", "ZIPFIAN"})
+    public KeyDistribution distribution;
+    @Param({"16", "64"})
+    public int keySize;
+    @Param({"100", "1000"})
+    public int valueSize;
+    @Param("100000")
+    public int keys;
+    @Param({"4", "32"})
+    public int files;
+    private Workload workload;
+    private KeyDistribution.KeyChooser chooser;
+    private Path directory;
+    private KeyValueStoreImpl<?> store;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workload = new Workload(keys, keySize, valueSize, 42);
+        chooser = distribution.chooser(keys, 42);
+        directory = Workload.createDirectory("get-benchmark");
+        long maxFileSize = Math.max(1, (long) keys * (keySize + valueSize) / files);
+        var writer = variant.open(directory, maxFileSize, false);
+        var order = KeyDistribution.UNIFORM.chooser(keys, 7);
+        var written = new boolean[keys];
+        for (int i = 0; i < keys; i++) {
+            int index = order.next();
+            while (written[index])
+                index = index + 1 == keys ? 0 : index + 1;
+            written[index] = true;
+            writer.put(workload.key(index), workload.value(i));
+        }
+        // a reopened store reads every file from disk
+        writer.close();
+        store = variant.open(directory, maxFileSize, false);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        Workload.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public String getHit() throws IOException {
+        return store.get(workload.key(chooser.next()));
+    }
+
+    @Benchmark
+    public String getMiss() throws IOException {
+        return store.get(workload.missingKey(chooser.next()));
+    }
+}
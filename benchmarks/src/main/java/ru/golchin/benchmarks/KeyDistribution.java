@@ -0,0 +1,89 @@
+package ru.golchin.benchmarks;
+
+import java.util.SplittableRandom;
+
+/**
+ * Order in which a benchmark picks keys out of {@code count} keys.
+ */
+public enum KeyDistribution {
+    SEQUENTIAL {
+        @Override
+        public KeyChooser chooser(int count, long seed) {
+            return new KeyChooser() {
+                private int next;
+
+                @Override
+                public int next() {
+                    int index = next;
+                    next = next + 1 == count ? 0 : next + 1;
+                    return index;
+                }
+            };
+        }
+    },
+    UNIFORM {
+        @Override
+        public KeyChooser chooser(int count, long seed) {
+            var random = new SplittableRandom(seed);
+            return () -> random.nextInt(count);
+        }
+    },
+    /**
+     * A few keys get most of the requests, the hot keys are scattered over the key space.
+     */
+    ZIPFIAN {
+        @Override
+        public KeyChooser chooser(int count, long seed) {
+            var zipfian = new Zipfian(count, new SplittableRandom(seed));
+            // the prime is coprime with every smaller count, so ranks map to distinct keys
+            return () -> (int) (zipfian.next() * 2_147_483_647L % count);
+        }
+    };
+
+    public abstract KeyChooser chooser(int count, long seed);
+
+    public interface KeyChooser {
+        /**
+         * Index of the next key in [0, count).
+         */
+        int next();
+    }
+
+    /**
+     * Zipfian ranks with the skew used by YCSB, as described in "Quickly Generating Billion-Record Synthetic
+     * Databases", Gray et al.
+     */
+    private static class Zipfian {
+        private static final double THETA = 0.99;
+        private final int count;
+        private final SplittableRandom random;
+        private final double zeta;
+        private final double alpha;
+        private final double eta;
+
+        Zipfian(int count, SplittableRandom random) {
+            this.count = count;
+            this.random = random;
+            this.zeta = zeta(count);
+            this.alpha = 1 / (1 - THETA);
+            this.eta = (1 - Math.pow(2.0 / count, 1 - THETA)) / (1 - zeta(2) / zeta);
+        }
+
+        private static double zeta(int count) {
+            double sum = 0;
+            for (int i = 1; i <= count; i++)
+                sum += 1 / Math.pow(i, THETA);
+            return sum;
+        }
+
+        int next() {
+            double u = random.nextDouble();
+            double uz = u * zeta;
+            if (uz < 1)
+                return 0;
+            if (uz < 1 + Math.pow(0.5, THETA))
+                return 1;
+            return Math.min(count - 1, (int) (count * Math.pow(eta * u - eta + 1, alpha)));
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package ru.golchin.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.golchin.key_value_store.LogFile;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Merge of {@code filesToCompact} files by the merge function of the variant, i.e. one compaction of
+ * {@code KeyValueStoreImpl.MAX_FILES_TO_COMPACT} files. Half of the records of a file overwrite keys of other files.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MergeBenchmark {
+    @Param({"SSTABLE", "HASH"})
+    public Variant variant;
+    @Param({"2", "4", "16"})
+    public int filesToCompact;
+    @Param("10000")
+    public int recordsPerFile;
+    @Param("16")
+    public int keySize;
+    @Param({"100", "1000"})
+    public int valueSize;
+    private Path directory;
+    private final List<LogFile> files = new ArrayList<>();
+    private LogFile newFile;
+    private int merges;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        int keys = Math.max(recordsPerFile, recordsPerFile * filesToCompact / 2);
+        var workload = new Workload(keys, keySize, valueSize, 42);
+        var random = new SplittableRandom(42);
+        directory = Workload.createDirectory("merge-benchmark");
+        for (int i = 0; i < filesToCompact; i++) {
+            LogFile file = variant.createFile(directory.resolve("input" + i));
+            for (int j = 0; j < recordsPerFile; j++)
+                file.put(workload.key(random.nextInt(keys)), workload.value(j));
+            file.closeOnWrite();
+            files.add(file);
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void createOutput() throws IOException {
+        newFile = variant.createFile(directory.resolve("output" + merges++));
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteOutput() throws IOException {
+        newFile.delete();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        for (var file : files)
+            file.closeOnRead();
+        Workload.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public LogFile merge() throws IOException {
+        variant.merge(files, newFile);
+        return newFile;
+    }
+}
@@ -0,0 +1,57 @@
+package ru.golchin.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.golchin.key_value_store.KeyValueStoreImpl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writes through the store with background flushes and compactions, keys are picked from a fixed key space,
+ * so that later writes overwrite earlier ones.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PutBenchmark {
+    @Param({"SSTABLE", "HASH"})
+    public Variant variant;
+    @Param({"SEQUENTIAL", "UNIFORM", "ZIPFIAN"})
+    public KeyDistribution distribution;
+    @Param({"16", "64"})
+    public int keySize;
+    @Param({"100", "1000"})
+    public int valueSize;
+    @Param("100000")
+    public int keys;
+    @Param("4194304")
+    public long maxFileSize;
+    private Workload workload;
+    private KeyDistribution.KeyChooser chooser;
+    private Path directory;
+    private KeyValueStoreImpl<?> store;
+    private int writes;
+
+    @Setup(Level.Trial)
+    public void setUp() throws IOException {
+        workload = new Workload(keys, keySize, valueSize, 42);
+        chooser = distribution.chooser(keys, 42);
+        directory = Workload.createDirectory("put-benchmark");
+        store = variant.open(directory, maxFileSize, true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws IOException {
+        store.close();
+        Workload.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public void put() throws IOException {
+        store.put(workload.key(chooser.next()), workload.value(writes++));
+    }
+}
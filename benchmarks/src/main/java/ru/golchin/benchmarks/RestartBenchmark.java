@@ -0,0 +1,64 @@
+package ru.golchin.benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import ru.golchin.key_value_store.KeyValueStoreImpl;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to open a store of {@code files} files, measured once per iteration on a store that is written anew,
+ * so that no iteration reopens a store that an earlier one has opened.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class RestartBenchmark {
+    @Param({"SSTABLE", "HASH"})
+    public Variant variant;
+    @Param({"16", "128"})
+    public int files;
+    @Param("100000")
+    public int keys;
+    @Param("16")
+    public int keySize;
+    @Param("100")
+    public int valueSize;
+    private Workload workload;
+    private long maxFileSize;
+    private Path directory;
+    private KeyValueStoreImpl<?> store;
+
+    @Setup(Level.Trial)
+    public void createWorkload() {
+        workload = new Workload(keys, keySize, valueSize, 42);
+        maxFileSize = Math.max(1, (long) keys * (keySize + valueSize) / files);
+    }
+
+    @Setup(Level.Iteration)
+    public void writeStore() throws IOException {
+        directory = Workload.createDirectory("restart-benchmark");
+        var writer = variant.open(directory, maxFileSize, false);
+        for (int i = 0; i < keys; i++)
+            writer.put(workload.key(i), workload.value(i));
+        writer.close();
+    }
+
+    @TearDown(Level.Iteration)
+    public void deleteStore() throws IOException {
+        if (store != null)
+            store.close();
+        store = null;
+        Workload.deleteDirectory(directory);
+    }
+
+    @Benchmark
+    public KeyValueStoreImpl<?> open() throws IOException {
+        store = variant.open(directory, maxFileSize, false);
+        return store;
+    }
+}
@@ -0,0 +1,67 @@
+package ru.golchin.benchmarks;
+
+import ru.golchin.key_value_store.HashIndexLogFile;
+import ru.golchin.key_value_store.HashIndexLogFileMergeFunction;
+import ru.golchin.key_value_store.KeyValueStoreImpl;
+import ru.golchin.key_value_store.LogFile;
+import ru.golchin.key_value_store.SSTableLogFile;
+import ru.golchin.key_value_store.SSTableMergeFunction;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * Implementation variant of the store that a benchmark runs against.
+ */
+public enum Variant {
+    SSTABLE {
+        @Override
+        public KeyValueStoreImpl<?> open(Path directory, long maxFileSize, boolean shouldCompact) throws IOException {
+            return new KeyValueStoreImpl<>(directory, maxFileSize, SSTableLogFile::new, SSTableMergeFunction.INSTANCE,
+                    shouldCompact);
+        }
+
+        @Override
+        public LogFile createFile(Path path) throws IOException {
+            return new SSTableLogFile(path);
+        }
+
+        @Override
+        public void merge(List<LogFile> files, LogFile newFile) throws IOException {
+            SSTableMergeFunction.INSTANCE.merge(cast(files), (SSTableLogFile) newFile);
+        }
+    },
+    HASH {
+        @Override
+        public KeyValueStoreImpl<?> open(Path directory, long maxFileSize, boolean shouldCompact) throws IOException {
+            return new KeyValueStoreImpl<>(directory, maxFileSize, HashIndexLogFile::new,
+                    HashIndexLogFileMergeFunction.INSTANCE, shouldCompact);
+        }
+
+        @Override
+        public LogFile createFile(Path path) throws IOException {
+            return new HashIndexLogFile(path);
+        }
+
+        @Override
+        public void merge(List<LogFile> files, LogFile newFile) throws IOException {
+            HashIndexLogFileMergeFunction.INSTANCE.merge(cast(files), (HashIndexLogFile) newFile);
+        }
+    };
+
+    public abstract KeyValueStoreImpl<?> open(Path directory, long maxFileSize, boolean shouldCompact)
+            throws IOException;
+
+    public abstract LogFile createFile(Path path) throws IOException;
+
+    /**
+     * Merges the files, ordered from the oldest to the newest, into the new file with the variant's merge function.
+     */
+    public abstract void merge(List<LogFile> files, LogFile newFile) throws IOException;
+
+    @SuppressWarnings("unchecked")
+    private static <T extends LogFile> List<T> cast(List<LogFile> files) {
+        return (List<T>) (List<?>) files;
+    }
+}
@@ -0,0 +1,69 @@
+package ru.golchin.benchmarks;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.SplittableRandom;
+import java.util.stream.Stream;
+
+/**
+ * Keys and values of a benchmark, generated ahead of time so that formatting them is not measured.
+ */
+public final class Workload {
+    private final String[] keys;
+    private final String[] missingKeys;
+    private final String[] values;
+
+    public Workload(int count, int keySize, int valueSize, long seed) {
+        keys = new String[count];
+        missingKeys = new String[count];
+        for (int i = 0; i < count; i++) {
+            keys[i] = pad("k", i, keySize);
+            // sorts between the stored keys, so that it falls into their files' key ranges
+            missingKeys[i] = pad("k", i, keySize - 1) + "~";
+        }
+        var random = new SplittableRandom(seed);
+        values = new String[16];
+        for (int i = 0; i < values.length; i++) {
+            var value = new StringBuilder(valueSize);
+            for (int j = 0; j < valueSize; j++)
+                value.append((char) ('a' + random.nextInt(26)));
+            values[i] = value.toString();
+        }
+    }
+
+    private static String pad(String prefix, int index, int size) {
+        String digits = String.valueOf(index);
+        if (prefix.length() + digits.length() > size)
+            throw new IllegalArgumentException("key size " + size + " is too small for " + index);
+        return prefix + "0".repeat(size - prefix.length() - digits.length()) + digits;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public String key(int index) {
+        return keys[index];
+    }
+
+    public String missingKey(int index) {
+        return missingKeys[index];
+    }
+
+    public String value(int index) {
+        return values[index & (values.length - 1)];
+    }
+
+    static Path createDirectory(String prefix) throws IOException {
+        return Files.createTempDirectory(prefix);
+    }
+
+    static void deleteDirectory(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator)
+                Files.delete(path);
+        }
+    }
+}
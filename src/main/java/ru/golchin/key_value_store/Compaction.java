@@ -0,0 +1,11 @@
+package ru.golchin.key_value_store;
+
+import java.util.List;
+
+/**
+ * Files chosen by a {@link CompactionStrategy} to be merged into new files of {@code outputLevel}.
+ *
+ * @param maxOutputFileSize size after which the merge starts a new output file
+ */
+public record Compaction(List<FileMetadata> inputs, int outputLevel, long maxOutputFileSize) {
+}
@@ -0,0 +1,18 @@
+package ru.golchin.key_value_store;
+
+import java.io.IOException;
+import java.util.NavigableMap;
+
+/**
+ * Decides which files are merged by the background compaction of {@link KeyValueStoreImpl}.
+ */
+public interface CompactionStrategy {
+    /**
+     * Chooses the next compaction. The store runs compactions until this method returns null.
+     *
+     * @param files flushed files that can be compacted in {@link FileMetadata#READ_ORDER},
+     *              files of level 0 that are newer than an unflushed file are not passed
+     * @return files to merge or null if there is nothing to compact
+     */
+    Compaction pick(NavigableMap<FileMetadata, ? extends LogFile> files) throws IOException;
+}
@@ -0,0 +1,20 @@
+package ru.golchin.key_value_store;
+
+import java.util.Comparator;
+
+/**
+ * What the {@link Manifest} knows about a file of the store.
+ *
+ * @param version  number of the file, also the name of its directory
+ * @param level    level of the file, flushed memtables go to level 0
+ * @param sequence age of the data in the file, greater is newer; a compaction output gets the greatest
+ *                 sequence of its inputs
+ */
+public record FileMetadata(int version, int level, long sequence) {
+    /**
+     * Order in which files are searched for a key: lower levels first, newer files first within a level.
+     */
+    public static final Comparator<FileMetadata> READ_ORDER = Comparator.comparingInt(FileMetadata::level)
+            .thenComparing(Comparator.comparingLong(FileMetadata::sequence).reversed())
+            .thenComparing(Comparator.comparingInt(FileMetadata::version).reversed());
+}
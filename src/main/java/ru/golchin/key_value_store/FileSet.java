@@ -0,0 +1,69 @@
+package ru.golchin.key_value_store;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Immutable snapshot of the immutable files of a store in {@link FileMetadata#READ_ORDER}.
+ * <p>
+ * A snapshot is reference counted: the store holds one reference to its current snapshot, every reader acquires one
+ * for the duration of a lookup. A change of the files creates a new snapshot, which takes a reference to each of
+ * its files. Once the last reference to a snapshot is released, it releases its files, and a file that has been
+ * {@linkplain LogFile#markObsolete() replaced} is deleted when no snapshot refers to it anymore.
+ */
+class FileSet<T extends LogFile> {
+    private static final Logger LOG = Logger.getLogger(FileSet.class.getName());
+    private final NavigableMap<FileMetadata, T> files;
+    private final AtomicInteger refs = new AtomicInteger(1);
+
+    FileSet(NavigableMap<FileMetadata, T> files) {
+        var copy = new TreeMap<FileMetadata, T>(FileMetadata.READ_ORDER);
+        copy.putAll(files);
+        this.files = Collections.unmodifiableNavigableMap(copy);
+        for (var file : files.values())
+            file.retain();
+    }
+
+    NavigableMap<FileMetadata, T> getFiles() {
+        return files;
+    }
+
+    /**
+     * Snapshot with the files of this one, except {@code removed}, and {@code added}.
+     */
+    FileSet<T> update(Map<FileMetadata, T> added, Collection<FileMetadata> removed) {
+        var files = new TreeMap<>(this.files);
+        for (var metadata : removed)
+            files.remove(metadata);
+        files.putAll(added);
+        return new FileSet<>(files);
+    }
+
+    /**
+     * Takes a reference, fails if the snapshot has already been released by everyone.
+     */
+    boolean acquire() {
+        while (true) {
+            int refs = this.refs.get();
+            if (refs == 0)
+                return false;
+            if (this.refs.compareAndSet(refs, refs + 1))
+                return true;
+        }
+    }
+
+    void release() {
+        if (refs.decrementAndGet() > 0)
+            return;
+        for (var file : files.values()) {
+            try {
+                file.release();
+            } catch (IOException e) {
+                LOG.log(Level.WARNING, "failed to delete " + file.getPath(), e);
+            }
+        }
+    }
+}
@@ -1,43 +1,350 @@
 package ru.golchin.key_value_store;
 
+import ru.golchin.key_value_store.io.HashTableIndex;
+import ru.golchin.key_value_store.io.IndexFiles;
+import ru.golchin.key_value_store.io.KeyValueReader;
 import ru.golchin.key_value_store.io.KeyValueRecord;
+import ru.golchin.key_value_store.io.KeyValueWriter;
+import ru.golchin.key_value_store.io.OffHeapHashIndex;
+import ru.golchin.key_value_store.io.RangeTombstone;
+import ru.golchin.util.Lazy;
+import ru.golchin.util.PeekableIterator;
+import ru.golchin.util.ThrowingConsumer;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.function.ObjLongConsumer;
+import java.util.logging.Logger;
 
+import static java.nio.file.Files.exists;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/**
+ * Log file with an index of all keys. While the file is written, the index is an off-heap hash table
+ * (see {@link OffHeapHashIndex}); a written file looks keys up in the hash table of its mapped index file
+ * (see {@link HashTableIndex}).
+ * <p>
+ * Range tombstones are appended to a log of their own, {@value #RANGES_FILE_NAME}, as records of
+ * {@code from} and {@code to}. The log is created with the first tombstone.
+ */
 public class HashIndexLogFile extends LogFile {
+    private static final Logger LOG = Logger.getLogger(HashIndexLogFile.class.getName());
     static final int MAX_SIZE = 8 * 1024;
-    private Map<String, Integer> keyToOffset;
+    private static final String RANGES_FILE_NAME = "ranges";
+    private volatile OffHeapHashIndex keyToOffset;
+    private volatile Lazy<HashTableIndex, IOException> table;
+    // keys of a written file in order, set before the table
+    private volatile Lazy<NavigableMap<String, Long>, IOException> sortedOffsets;
+    private volatile List<RangeTombstone> rangeTombstones;
+    // created with the first range tombstone
+    private KeyValueWriter rangeWriter;
 
     public HashIndexLogFile(Path path) throws IOException {
         super(path);
-        if (keyToOffset == null) {
-            keyToOffset = new HashMap<>();
+        if (table == null && keyToOffset == null) {
+            keyToOffset = new OffHeapHashIndex();
+        }
+        if (rangeTombstones == null) {
+            rangeTombstones = List.of();
         }
     }
 
     @Override
     protected void restoreIndex() throws IOException {
-        keyToOffset = Objects.requireNonNull(readIndex());
+        var tombstones = new ArrayList<RangeTombstone>();
+        if (exists(getRangesPath()))
+            recoverLog(getRangesPath(), (record, offset) -> tombstones.add(new RangeTombstone(record.getKey(), record.getValue())));
+        rangeTombstones = List.copyOf(tombstones);
+        if (!exists(getIndexPath()))
+            recoverIndex();
+        if (hasLegacyIndex()) {
+            LOG.info("rewriting index of " + path + " in binary format");
+            HashTableIndex.write(getIndexPath(), Objects.requireNonNull(readLegacyIndex()));
+        }
+        sortedOffsets = Lazy.of(this::sortOffsets);
+        // the table is mapped and checked on first use
+        table = Lazy.of(() -> HashTableIndex.read(getIndexPath()));
+    }
+
+    /**
+     * Rebuilds the index of a file that was written when the process stopped. Records are read up to the first one
+     * that is truncated or doesn't match its checksum. If that record reaches the end of the file, it's a torn tail
+     * and it's cut off, otherwise the file is corrupted and the open fails.
+     */
+    private void recoverIndex() throws IOException {
+        LOG.info("recovering index of " + path);
+        var index = new OffHeapHashIndex();
+        if (exists(getDataPath()))
+            recoverLog(getDataPath(), (record, offset) -> index.put(record.getKey(), offset));
+        index.writeTo(getIndexPath());
+    }
+
+    /**
+     * Passes every record of the log with its offset to the consumer, cutting off a torn tail, see
+     * {@link #recoverIndex()}. A log that was closed properly is read as a whole.
+     */
+    private static void recoverLog(Path logPath, ObjLongConsumer<KeyValueRecord> consumer) throws IOException {
+        long end = readLog(logPath, consumer);
+        try (var channel = FileChannel.open(logPath, WRITE)) {
+            if (channel.size() > end)
+                channel.truncate(end);
+        }
+    }
+
+    /**
+     * Reads the log like {@link #recoverLog} but leaves a torn tail in place, returns the offset where it starts
+     * or the size of the log.
+     */
+    private static long readLog(Path logPath, ObjLongConsumer<KeyValueRecord> consumer) throws IOException {
+        try (var reader = new KeyValueReader(logPath)) {
+            var cursor = reader.cursor();
+            try {
+                while (cursor.canRead()) {
+                    long offset = cursor.getOffset();
+                    consumer.accept(cursor.read(), offset);
+                }
+            } catch (IOException e) {
+                // only the last record may be torn, a corrupted record before it would take valid ones along
+                if (cursor.getRecordEnd() < reader.size())
+                    throw new IOException("corrupted record in " + logPath + " at " + cursor.getOffset()
+                            + " is followed by more data, the file is left as is", e);
+                LOG.warning("torn tail of " + logPath + " at " + cursor.getOffset() + ": " + e.getMessage());
+            }
+            return cursor.getOffset();
+        }
+    }
+
+    /**
+     * Reads every record and the index of a file without opening it and returns what is corrupted,
+     * see {@link StoreVerifier}. Only what opening the file can't recover from is reported: a file without an index
+     * is one that was being written when the process stopped, its index is rebuilt and a torn tail of its data is
+     * cut off on open, as is a torn tail of the range log of any file.
+     */
+    static List<String> verify(Path path) {
+        var problems = new ArrayList<String>();
+        Path indexPath = path.resolve(INDEX_FILE_NAME);
+        Path dataPath = path.resolve(DATA_FILE_NAME);
+        if (!exists(indexPath)) {
+            if (exists(dataPath))
+                StoreVerifier.check(problems, dataPath, p -> readLog(p, (record, offset) -> {}));
+        } else {
+            StoreVerifier.check(problems, dataPath, p -> {
+                try (var reader = new KeyValueReader(p)) {
+                    var cursor = reader.cursor();
+                    while (cursor.canRead())
+                        cursor.read();
+                }
+            });
+        }
+        Path rangesPath = path.resolve(RANGES_FILE_NAME);
+        if (exists(rangesPath))
+            StoreVerifier.check(problems, rangesPath, p -> readLog(p, (record, offset) -> {}));
+        if (exists(indexPath))
+            StoreVerifier.check(problems, indexPath, p -> {
+                // an index serialized by an older version has no checksum
+                if (!IndexFiles.isSerialized(p))
+                    HashTableIndex.read(p);
+            });
+        return problems;
     }
 
+    /**
+     * The file has no write-ahead log, so every call hands its records to the OS with a single write before it
+     * returns, they survive a crash of the process.
+     */
+    @Override
+    public synchronized void put(String key, String value) throws IOException {
+        long offset = keyValueWriter.write(key, value);
+        // the record has to be readable before it's indexed
+        keyValueWriter.flush();
+        keyToOffset.put(key, offset);
+    }
+
+    @Override
+    public synchronized void putAll(List<KeyValueRecord> records) throws IOException {
+        var offsets = new long[records.size()];
+        for (int i = 0; i < offsets.length; i++)
+            offsets[i] = keyValueWriter.write(records.get(i).getKey(), records.get(i).getValue());
+        keyValueWriter.flush();
+        for (int i = 0; i < offsets.length; i++)
+            keyToOffset.put(records.get(i).getKey(), offsets[i]);
+    }
+
+    /**
+     * Writes tombstones for the keys of this file in the range, so its own older records are hidden like those
+     * of older files. The tombstones reach the data log before the range reaches its own log.
+     */
+    @Override
+    public synchronized void removeRange(String from, String to) throws IOException {
+        if (isClosedOnWrite)
+            throw new IllegalStateException(path + " is closed for writes");
+        var tombstone = new RangeTombstone(from, to);
+        var removedKeys = new ArrayList<String>();
+        keyToOffset.forEach((key, offset) -> {
+            if (tombstone.covers(key))
+                removedKeys.add(key);
+        });
+        var offsets = new long[removedKeys.size()];
+        for (int i = 0; i < offsets.length; i++)
+            offsets[i] = keyValueWriter.write(removedKeys.get(i), null);
+        keyValueWriter.flush();
+        for (int i = 0; i < offsets.length; i++)
+            keyToOffset.put(removedKeys.get(i), offsets[i]);
+        addRangeTombstone(tombstone);
+    }
+
+    /**
+     * Adds a tombstone that hides records of older files only, used for the output of a merge.
+     */
+    synchronized void addRangeTombstone(RangeTombstone tombstone) throws IOException {
+        if (rangeWriter == null)
+            rangeWriter = new KeyValueWriter(getRangesPath());
+        rangeWriter.write(tombstone.from(), tombstone.to());
+        rangeWriter.flush();
+        var tombstones = new ArrayList<>(rangeTombstones);
+        tombstones.add(tombstone);
+        rangeTombstones = List.copyOf(tombstones);
+    }
+
+    @Override
+    public boolean isRangeRemoved(String key) {
+        for (var tombstone : rangeTombstones) {
+            if (tombstone.covers(key))
+                return true;
+        }
+        return false;
+    }
+
+    public List<RangeTombstone> getRangeTombstones() {
+        return rangeTombstones;
+    }
+
+    /**
+     * The range tombstones are on disk before the index marks the file as complete.
+     */
+    @Override
+    public synchronized void closeOnWrite() throws IOException {
+        if (rangeWriter != null)
+            rangeWriter.close();
+        super.closeOnWrite();
+    }
+
+    @Override
+    public synchronized void delete() throws IOException {
+        if (rangeWriter != null)
+            rangeWriter.discard();
+        super.delete();
+    }
+
+    private Path getRangesPath() {
+        return path.resolve(RANGES_FILE_NAME);
+    }
+
+
     public KeyValueRecord get(String key) throws IOException {
-        Integer pos = keyToOffset.get(key);
-        if (pos == null) {
+        // the map is dropped only after the table is set, so it has to be read first
+        var keyToOffset = this.keyToOffset;
+        var table = this.table;
+        if (table != null)
+            return table.get().get(key, keyValueReader::read);
+        long pos = keyToOffset.get(key);
+        if (pos < 0) {
             return null;
         }
         return keyValueReader.read(pos);
     }
 
-    public Set<String> getIndexKeys() {
-        return Collections.unmodifiableSet(keyToOffset.keySet());
+    /**
+     * Whether the file has a record of the key, only the index is read while the file is written.
+     */
+    public boolean contains(String key) throws IOException {
+        var keyToOffset = this.keyToOffset;
+        if (table != null)
+            return get(key) != null;
+        return keyToOffset.get(key) >= 0;
     }
 
     @Override
-    protected Map<String, Integer> getIndex() {
-        return keyToOffset;
+    public boolean isEmpty() throws IOException {
+        var keyToOffset = this.keyToOffset;
+        if (table != null)
+            return table.get().size() == 0 && rangeTombstones.isEmpty();
+        return keyToOffset.size() == 0 && rangeTombstones.isEmpty();
     }
 
-}
+    /**
+     * Passes the latest record of every key to the consumer, in no particular order.
+     */
+    public void forEachRecord(ThrowingConsumer<KeyValueRecord, IOException> consumer) throws IOException {
+        var table = this.table;
+        var offsets = table == null
+                ? getOffsets().values().stream().mapToLong(Long::longValue).iterator()
+                : table.get().offsets().iterator();
+        while (offsets.hasNext())
+            consumer.accept(keyValueReader.read(offsets.nextLong()));
+    }
 
+    /**
+     * Records of the keys in the range, read as the iterator advances. The keys of a written file are read and
+     * sorted by the first scan and kept on the heap for the next ones; a file that is written sorts the keys of
+     * its index on every scan.
+     */
+    @Override
+    public PeekableIterator<KeyValueRecord> iterator(String from, String to, boolean isReverse) throws IOException {
+        NavigableMap<String, Long> offsets = getOffsets();
+        if (from != null && to != null)
+            offsets = from.compareTo(to) < 0 ? offsets.subMap(from, true, to, false) : Collections.emptyNavigableMap();
+        else if (from != null)
+            offsets = offsets.tailMap(from, true);
+        else if (to != null)
+            offsets = offsets.headMap(to, false);
+        var range = isReverse ? offsets.descendingMap() : offsets;
+        return PeekableIterator.of(range.values().stream().map(offset -> {
+            try {
+                return keyValueReader.read(offset);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }).iterator());
+    }
+
+    public Set<String> getIndexKeys() throws IOException {
+        return Collections.unmodifiableSet(getOffsets().keySet());
+    }
+
+    /**
+     * Offsets of all keys in order.
+     */
+    private NavigableMap<String, Long> getOffsets() throws IOException {
+        var keyToOffset = this.keyToOffset;
+        var table = this.table;
+        if (table != null)
+            return sortedOffsets.get();
+        var offsets = new TreeMap<String, Long>();
+        keyToOffset.forEach(offsets::put);
+        return offsets;
+    }
+
+    /**
+     * Reads the keys of a written file from its records, the table only has their hashes.
+     */
+    private NavigableMap<String, Long> sortOffsets() throws IOException {
+        var offsets = new TreeMap<String, Long>();
+        for (var iterator = table.get().offsets().iterator(); iterator.hasNext(); ) {
+            long offset = iterator.nextLong();
+            offsets.put(keyValueReader.read(offset).getKey(), offset);
+        }
+        return Collections.unmodifiableNavigableMap(offsets);
+    }
+
+    @Override
+    protected void dumpIndex() throws IOException {
+        keyToOffset.writeTo(getIndexPath());
+        sortedOffsets = Lazy.of(this::sortOffsets);
+        table = Lazy.value(HashTableIndex.read(getIndexPath()));
+        keyToOffset = null;
+    }
+}
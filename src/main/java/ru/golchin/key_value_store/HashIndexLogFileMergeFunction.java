@@ -1,26 +1,68 @@
 package ru.golchin.key_value_store;
 
+import ru.golchin.key_value_store.io.OffHeapHashIndex;
+import ru.golchin.key_value_store.io.RangeTombstone;
+import ru.golchin.key_value_store.io.RateLimiter;
+import ru.golchin.key_value_store.io.RecordCodec;
+import ru.golchin.util.ThrowingSupplier;
+
 import java.io.IOException;
-import java.util.HashMap;
+import java.util.ArrayList;
 import java.util.List;
-import java.util.Map;
+import java.util.function.BiPredicate;
 
+/**
+ * Copies the latest record of every key, going from the newest file to the oldest one: a key that the new file
+ * already has is older than its record there. Dropped tombstones are remembered in an off-heap set,
+ * so that older records of their keys are dropped too. Records hidden by range tombstones of newer files are dropped,
+ * the tombstones are kept in the new file unless nothing older than the merged files may have their keys.
+ */
 public class HashIndexLogFileMergeFunction implements MergeFunction<HashIndexLogFile> {
     public static final HashIndexLogFileMergeFunction INSTANCE = new HashIndexLogFileMergeFunction();
 
     @Override
     public void merge(List<HashIndexLogFile> filesToCompact, HashIndexLogFile newFile) throws IOException {
-        Map<String, HashIndexLogFile> keyToFile = new HashMap<>();
-        for (var file : filesToCompact) {
-            for (String key : file.getIndexKeys()) {
-                keyToFile.put(key, file);
-            }
+        merge(filesToCompact, () -> newFile, Long.MAX_VALUE, (first, last) -> false);
+    }
+
+    @Override
+    public List<HashIndexLogFile> merge(List<HashIndexLogFile> filesToCompact,
+                                        ThrowingSupplier<HashIndexLogFile, IOException> newFiles, long maxFileSize,
+                                        BiPredicate<String, String> canDropTombstone) throws IOException {
+        return merge(filesToCompact, newFiles, maxFileSize, canDropTombstone, MergeContext.SEQUENTIAL);
+    }
+
+    @Override
+    public List<HashIndexLogFile> merge(List<HashIndexLogFile> filesToCompact,
+                                        ThrowingSupplier<HashIndexLogFile, IOException> newFiles, long maxFileSize,
+                                        BiPredicate<String, String> canDropTombstone, MergeContext context)
+            throws IOException {
+        RateLimiter rateLimiter = context.rateLimiter();
+        HashIndexLogFile newFile = newFiles.get();
+        var droppedKeys = new OffHeapHashIndex();
+        // tombstones of the files merged so far, a file's own records win over its tombstones
+        var newerTombstones = new ArrayList<RangeTombstone>();
+        for (int i = filesToCompact.size() - 1; i >= 0; i--) {
+            var hiding = RangeTombstone.union(newerTombstones);
+            filesToCompact.get(i).forEachRecord(record -> {
+                if (rateLimiter != null)
+                    rateLimiter.acquire(RecordCodec.getRecordSize(record.getKey(), record.getValue()));
+                String key = record.getKey();
+                if (newFile.contains(key) || droppedKeys.get(key) >= 0
+                        || hiding.stream().anyMatch(tombstone -> tombstone.covers(key)))
+                    return;
+                if (record.getValue() == null && canDropTombstone.test(key, key))
+                    droppedKeys.put(key, 0);
+                else
+                    newFile.put(key, record.getValue());
+            });
+            newerTombstones.addAll(filesToCompact.get(i).getRangeTombstones());
         }
-        for (var entry : keyToFile.entrySet()) {
-            String key = entry.getKey();
-            var file = entry.getValue();
-            newFile.put(key, file.get(key).getValue());
+        for (var tombstone : RangeTombstone.union(newerTombstones)) {
+            if (!canDropTombstone.test(tombstone.from(), tombstone.to()))
+                newFile.addRangeTombstone(tombstone);
         }
         newFile.closeOnWrite();
+        return List.of(newFile);
     }
 }
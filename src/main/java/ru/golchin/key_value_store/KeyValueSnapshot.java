@@ -0,0 +1,36 @@
+package ru.golchin.key_value_store;
+
+import org.jetbrains.annotations.NotNull;
+import ru.golchin.util.CloseableIterator;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+
+/**
+ * Read-only view of a store as of the moment it was taken, later writes and compactions don't change what it reads.
+ * The files it reads from are kept until it's closed.
+ */
+public interface KeyValueSnapshot<K, V> extends Closeable {
+    /**
+     * Sequence of the newest data that the snapshot sees.
+     */
+    long getSequence();
+
+    V get(@NotNull K k) throws IOException;
+
+    Map<K, V> getAll(@NotNull Collection<K> keys) throws IOException;
+
+    /**
+     * See {@link KeyValueStore#scan(Object, Object)}, the iterator stays usable after the snapshot is closed.
+     */
+    CloseableIterator<Map.Entry<K, V>> scan(K from, K to) throws IOException;
+
+    CloseableIterator<Map.Entry<K, V>> reverseScan(K from, K to) throws IOException;
+
+    CloseableIterator<Map.Entry<K, V>> prefixScan(@NotNull K prefix) throws IOException;
+
+    @Override
+    void close();
+}
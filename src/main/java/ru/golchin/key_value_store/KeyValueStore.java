@@ -1,14 +1,57 @@
 package ru.golchin.key_value_store;
 
 import org.jetbrains.annotations.NotNull;
+import ru.golchin.util.CloseableIterator;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
 
 public interface KeyValueStore<K, V> extends Closeable {
     void put(@NotNull K k, @NotNull V v) throws IOException;
 
     V get(@NotNull K k) throws IOException;
 
+    /**
+     * Values of the keys that are in the store.
+     */
+    default Map<K, V> getAll(@NotNull Collection<K> keys) throws IOException {
+        var values = new HashMap<K, V>();
+        for (K key : keys) {
+            V value = get(key);
+            if (value != null)
+                values.put(key, value);
+        }
+        return values;
+    }
+
     void remove(@NotNull K k) throws IOException;
+
+    /**
+     * Removes all keys in [from, to).
+     */
+    void removeRange(@NotNull K from, @NotNull K to) throws IOException;
+
+    /**
+     * Takes a consistent point-in-time view of the store, it has to be closed.
+     */
+    KeyValueSnapshot<K, V> snapshot() throws IOException;
+
+    /**
+     * Lazily iterates over the entries with keys in [from, to) in ascending key order, a null bound means
+     * no bound. The iterator keeps the files it reads from, it has to be closed.
+     */
+    CloseableIterator<Map.Entry<K, V>> scan(K from, K to) throws IOException;
+
+    /**
+     * Same as {@link #scan(Object, Object)} in descending key order.
+     */
+    CloseableIterator<Map.Entry<K, V>> reverseScan(K from, K to) throws IOException;
+
+    /**
+     * Entries with keys that start with the prefix in ascending key order.
+     */
+    CloseableIterator<Map.Entry<K, V>> prefixScan(@NotNull K prefix) throws IOException;
 }
@@ -2,38 +2,76 @@ package ru.golchin.key_value_store;
 
 import org.jetbrains.annotations.NotNull;
 import ru.golchin.key_value_store.io.KeyValueRecord;
+import ru.golchin.key_value_store.io.RateLimiter;
+import ru.golchin.key_value_store.io.RecordCodec;
+import ru.golchin.util.CloseableIterator;
+import ru.golchin.util.MergingIterator;
+import ru.golchin.util.PeekableIterator;
+import ru.golchin.util.ThrowingConsumer;
 import ru.golchin.util.ThrowingFunction;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
 import java.nio.file.Path;
-import java.util.List;
-import java.util.Map;
-import java.util.Objects;
+import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.BiPredicate;
+import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import static java.nio.file.Files.*;
 import static java.util.stream.Collectors.toList;
 import static ru.golchin.util.Util.deleteDirectory;
+import static ru.golchin.util.Util.getResult;
 
 public class KeyValueStoreImpl<T extends LogFile> implements KeyValueStore<String, String> {
-    public static final int MAX_FILES_TO_COMPACT = 4;
+    public static final int MAX_FILES_TO_COMPACT = 16;
     private static final Logger LOG = Logger.getLogger(KeyValueStoreImpl.class.getName());
+    private static final int FLUSH_ATTEMPTS = 3;
+    private static final long FLUSH_RETRY_MILLIS = 100;
     private final Path directory;
-    private final ReadWriteLock readWriteLock = new ReentrantReadWriteLock();
-    private final ConcurrentNavigableMap<Integer, T> logFiles = new ConcurrentSkipListMap<>();
+    private final ReadWriteLock rotationLock = new ReentrantReadWriteLock();
+    // immutable files in the order in which they are searched for a key, replaced as a whole on every change
+    private volatile FileSet<T> fileSet;
+    private final Object fileSetLock = new Object();
+    private final Lock compactionLock = new ReentrantLock();
+    private final Condition compactionFinished = compactionLock.newCondition();
+    private final List<RunningCompaction> runningCompactions = new ArrayList<>();
+    private final Manifest manifest;
+    private final CompactionStrategy compactionStrategy;
+    private final double tombstoneCompactionRatio;
     private final AtomicInteger fileCounter;
     private final boolean shouldCompact;
-    private ScheduledFuture<?> compacterScheduledFuture;
-    private ScheduledExecutorService compacter;
+    private ExecutorService compacter;
+    private final int compactionThreads;
+    private final ExecutorService subcompacter;
+    private final int subcompactions;
+    private final RateLimiter rateLimiter;
+    private final AtomicBoolean isCompactionScheduled = new AtomicBoolean();
     private volatile T currentFile;
     private final long maxSizeBytes;
     private final ThrowingFunction<Path, ? extends T, IOException> logFileConstructor;
     private final MergeFunction<T> mergeFunction;
+    private final LongAdder fileReads = new LongAdder();
+    private final LongAdder skippedFileReads = new LongAdder();
+    private final LongAdder flushedBytes = new LongAdder();
+    private final LongAdder compactionReadBytes = new LongAdder();
+    private final LongAdder compactionWrittenBytes = new LongAdder();
+    private final ExecutorService flusher = Executors.newSingleThreadExecutor();
+    private final Semaphore immutableMemTables;
+    // set when a rotated file could not be flushed, later writes and close() report it
+    private volatile IOException flushFailure;
+    private final ExecutorService lookups;
 
     public KeyValueStoreImpl(Path directory,
                              long maxSizeBytes,
@@ -46,31 +84,109 @@ public class KeyValueStoreImpl<T extends LogFile> implements KeyValueStore<Strin
                              long maxSizeBytes,
                              ThrowingFunction<Path, ? extends T, IOException> logFileConstructor,
                              MergeFunction<T> mergeFunction, boolean shouldCompact) throws IOException {
+        this(directory, maxSizeBytes, logFileConstructor, mergeFunction, shouldCompact, new StoreOptions());
+    }
+
+    public KeyValueStoreImpl(Path directory,
+                             long maxSizeBytes,
+                             ThrowingFunction<Path, ? extends T, IOException> logFileConstructor,
+                             MergeFunction<T> mergeFunction, boolean shouldCompact,
+                             StoreOptions options) throws IOException {
+        this.immutableMemTables = new Semaphore(options.getMaxImmutableMemTables());
+        this.lookups = Executors.newFixedThreadPool(options.getLookupThreads());
+        this.compactionStrategy = options.getCompactionStrategy();
+        this.tombstoneCompactionRatio = options.getTombstoneCompactionRatio();
+        this.compactionThreads = options.getCompactionThreads();
+        this.subcompactions = options.getSubcompactions();
+        this.rateLimiter = options.getRateLimiter();
+        this.subcompacter = subcompactions > 1 ? Executors.newFixedThreadPool(subcompactions) : null;
         this.directory = directory;
         this.maxSizeBytes = maxSizeBytes;
         this.logFileConstructor = logFileConstructor;
         this.mergeFunction = mergeFunction;
         this.shouldCompact = shouldCompact;
+        long startNanos = System.nanoTime();
         createDirectories(directory);
+        manifest = new Manifest(directory);
+        long manifestNanos = System.nanoTime();
+        int lastVersion = 0;
+        var restored = new ArrayList<FileMetadata>();
+        var paths = new TreeMap<FileMetadata, Path>(FileMetadata.READ_ORDER);
         for (Path path : newDirectoryStream(directory)) {
-            if (isDirectory(path)) {
-                T file = logFileConstructor.apply(path);
-                logFiles.put(file.getVersion(), file);
+            if (!isDirectory(path))
+                continue;
+            int version = LogFile.getVersion(path);
+            FileMetadata metadata = manifest.get(version);
+            if (metadata == null && manifest.existed()) {
+                LOG.info("deleting " + path + " left by an interrupted compaction");
+                deleteDirectory(path);
+                continue;
+            }
+            if (metadata == null) {
+                // before the manifest files had odd versions, and a file that resulted from compaction had
+                // an even version which is greater than all compacted files but less than newer files
+                metadata = new FileMetadata(version, (version & 1) == 1 ? 0 : 1, version);
+                restored.add(metadata);
             }
+            paths.put(metadata, path);
+            lastVersion = Math.max(lastVersion, version);
         }
-        // initially files have odd numbers, files that result from compaction have even numbers
-        // thus file that results from compaction has version number that is greater than all compacted files
-        // but less than newer files
-        int lastVersion = logFiles.isEmpty() ? -1 : nextOdd(logFiles.lastKey());
+        long listNanos = System.nanoTime();
+        var logFiles = openFiles(paths, options.getOpenThreads());
+        long openNanos = System.nanoTime();
+        var missing = manifest.getFiles().stream().filter(f -> !logFiles.containsKey(f)).collect(toList());
+        if (!manifest.existed() || !missing.isEmpty())
+            manifest.apply(restored, missing);
+        fileSet = new FileSet<>(logFiles);
         fileCounter = new AtomicInteger(lastVersion);
+        long endNanos = System.nanoTime();
+        LOG.info(String.format("opened %s with %d files in %d ms: reading manifest %d ms, listing %d ms, " +
+                        "opening files %d ms, updating manifest %d ms", directory, logFiles.size(), toMillis(endNanos - startNanos),
+                toMillis(manifestNanos - startNanos), toMillis(listNanos - manifestNanos),
+                toMillis(openNanos - listNanos), toMillis(endNanos - openNanos)));
         if (shouldCompact) {
-            compacter = Executors.newScheduledThreadPool(1);
-            compacterScheduledFuture = compacter.scheduleAtFixedRate(this::compact, 0, 10, TimeUnit.SECONDS);
+            compacter = Executors.newFixedThreadPool(compactionThreads);
+            // restored files may need compaction, later compactions are triggered by flushes
+            scheduleCompaction();
+        }
+    }
+
+    /**
+     * Opens the files on a pool of at most {@code threads} threads, the opened files are closed if any of them fails.
+     */
+    private NavigableMap<FileMetadata, T> openFiles(SortedMap<FileMetadata, Path> paths, int threads) throws IOException {
+        var logFiles = new TreeMap<FileMetadata, T>(FileMetadata.READ_ORDER);
+        if (paths.isEmpty())
+            return logFiles;
+        ExecutorService pool = Executors.newFixedThreadPool(Math.min(threads, paths.size()));
+        try {
+            var futures = new LinkedHashMap<FileMetadata, Future<T>>();
+            for (var entry : paths.entrySet())
+                futures.put(entry.getKey(), pool.submit(() -> logFileConstructor.apply(entry.getValue())));
+            IOException failure = null;
+            for (var entry : futures.entrySet()) {
+                try {
+                    logFiles.put(entry.getKey(), getResult(entry.getValue()));
+                } catch (IOException | RuntimeException e) {
+                    if (failure == null)
+                        failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                    else
+                        failure.addSuppressed(e);
+                }
+            }
+            if (failure != null) {
+                for (T file : logFiles.values())
+                    file.closeOnRead();
+                throw failure;
+            }
+            return logFiles;
+        } finally {
+            pool.shutdown();
         }
     }
 
-    private int nextOdd(int n) {
-        return (n & 1) == 1 ? n : n + 1;
+    private static long toMillis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
     }
 
     @Override
@@ -79,28 +195,181 @@ public class KeyValueStoreImpl<T extends LogFile> implements KeyValueStore<Strin
     }
 
     private void writeKeyValue(String key, String value) throws IOException {
-        readWriteLock.writeLock().lock();
-        try {
-            var logFile = getCurrentFile();
-            logFile.put(key, value);
-        } finally {
-            readWriteLock.writeLock().unlock();
+        write(logFile -> logFile.put(key, value));
+    }
+
+    private void write(ThrowingConsumer<T, IOException> write) throws IOException {
+        checkFlushFailure();
+        while (true) {
+            // writers share the current file, only rotation needs it exclusively
+            rotationLock.readLock().lock();
+            try {
+                T logFile = currentFile;
+                if (!isFull(logFile)) {
+                    write.accept(logFile);
+                    return;
+                }
+            } finally {
+                rotationLock.readLock().unlock();
+            }
+            rotationLock.writeLock().lock();
+            try {
+                if (isFull(currentFile)) {
+                    replaceCurrentFile();
+                }
+            } finally {
+                rotationLock.writeLock().unlock();
+            }
         }
     }
 
-    private T getCurrentFile() throws IOException {
-        if (currentFile == null || exists(currentFile.getPath()) && currentFile.getSize() > maxSizeBytes) {
+    /**
+     * Applies the batch to the current file at once: one size check, one write and, for SSTables, one write-ahead
+     * log entry. The batch may take the file over its size limit, the next write rotates it.
+     */
+    public void write(@NotNull WriteBatch batch) throws IOException {
+        List<KeyValueRecord> records = batch.getRecords();
+        if (!records.isEmpty())
+            write(logFile -> logFile.putAll(records));
+    }
+
+    /**
+     * Writes entries sorted by key straight to new files of level 0, bypassing the memtable and the write-ahead log.
+     * The files are published at once and win over everything written before the ingest; a write made while
+     * the ingest runs may end up either older or newer than the ingested entries.
+     *
+     * @throws IllegalArgumentException if the keys are not strictly ascending
+     */
+    public void ingest(@NotNull Stream<Map.Entry<String, String>> sortedEntries) throws IOException {
+        checkFlushFailure();
+        var added = new LinkedHashMap<FileMetadata, T>();
+        try {
+            var records = new ArrayList<KeyValueRecord>();
+            long size = 0;
+            String lastKey = null;
+            for (var iterator = sortedEntries.iterator(); iterator.hasNext(); ) {
+                var entry = iterator.next();
+                String key = Objects.requireNonNull(entry.getKey());
+                String value = Objects.requireNonNull(entry.getValue());
+                if (lastKey != null && lastKey.compareTo(key) >= 0)
+                    throw new IllegalArgumentException("keys must be ascending: " + lastKey + ", " + key);
+                lastKey = key;
+                records.add(new KeyValueRecord(key, value));
+                size += RecordCodec.getRecordSize(key, value);
+                if (size >= maxSizeBytes) {
+                    writeIngestedFile(records, added);
+                    records = new ArrayList<>();
+                    size = 0;
+                }
+            }
+            if (!records.isEmpty())
+                writeIngestedFile(records, added);
+        } catch (IOException | RuntimeException e) {
+            for (var file : added.values())
+                file.delete();
+            throw e;
+        }
+        if (added.isEmpty())
+            return;
+        rotationLock.writeLock().lock();
+        try {
+            // later writes go to a file that is newer than the ingested ones
             replaceCurrentFile();
+            manifest.apply(added.keySet(), List.of());
+            updateFileSet(added, List.of());
+        } finally {
+            rotationLock.writeLock().unlock();
         }
-        return currentFile;
+        scheduleCompaction();
+    }
+
+    private void writeIngestedFile(List<KeyValueRecord> records, Map<FileMetadata, T> added) throws IOException {
+        int version = fileCounter.incrementAndGet();
+        T file = createNewFile(version);
+        added.put(new FileMetadata(version, 0, version), file);
+        file.writeSorted(records);
+        flushedBytes.add(file.getSize());
+    }
+
+    private boolean isFull(T logFile) throws IOException {
+        return logFile == null || logFile.getSize() > maxSizeBytes;
     }
 
     private void replaceCurrentFile() throws IOException {
-        if (currentFile != null) {
-            currentFile.closeOnWrite();
-            logFiles.put(currentFile.getVersion(), currentFile);
+        T frozenFile = currentFile;
+        if (frozenFile != null) {
+            // blocks all writers while too many files wait for the flusher
+            immutableMemTables.acquireUninterruptibly();
+            if (flushFailure != null) {
+                immutableMemTables.release();
+                checkFlushFailure();
+            }
+            // readers keep getting records from the memtable until the file is written,
+            // the file is published before it stops being current so that they never miss it
+            updateFileSet(Map.of(manifest.get(frozenFile.getVersion()), frozenFile), List.of());
+            flusher.execute(() -> flush(frozenFile));
+        }
+        int version = fileCounter.incrementAndGet();
+        T newFile = createNewFile(version);
+        // registered before it gets any records, a file that is missing from the manifest is never restored
+        manifest.apply(List.of(new FileMetadata(version, 0, version)), List.of());
+        currentFile = newFile;
+    }
+
+    private void flush(T file) {
+        try {
+            file.setRateLimiter(rateLimiter);
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    file.closeOnWrite();
+                    break;
+                } catch (IOException e) {
+                    if (attempt == FLUSH_ATTEMPTS)
+                        throw e;
+                    LOG.log(Level.WARNING, "failed to flush " + file.getPath() + ", attempt " + attempt, e);
+                    TimeUnit.MILLISECONDS.sleep(FLUSH_RETRY_MILLIS * attempt);
+                }
+            }
+            flushedBytes.add(file.getSize());
+            scheduleCompaction();
+        } catch (IOException e) {
+            // the file stays readable from memory, and an SSTable can be restored from its write-ahead log,
+            // but level 0 can't be compacted past it, so the store stops taking writes instead of piling them up
+            LOG.log(Level.SEVERE, "failed to flush " + file.getPath() + ", the store accepts no more writes", e);
+            flushFailure = e;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            flushFailure = new InterruptedIOException("interrupted while flushing " + file.getPath());
+        } finally {
+            // writers waiting for the permit get to see the failure
+            immutableMemTables.release();
+        }
+    }
+
+    private void checkFlushFailure() throws IOException {
+        IOException failure = flushFailure;
+        if (failure != null)
+            throw new IOException("a background flush failed, the store accepts no more writes", failure);
+    }
+
+    private void scheduleCompaction() {
+        // a flush during a compaction schedules one more, so that no flushed file waits for the next flush
+        if (shouldCompact && !isCompactionScheduled.getAndSet(true)) {
+            try {
+                compacter.execute(() -> {
+                    isCompactionScheduled.set(false);
+                    try {
+                        while (compactOnce(false)) {
+                        }
+                    } catch (IOException | UncheckedIOException e) {
+                        LOG.log(Level.SEVERE, "compaction failed", e);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                // a running compaction looks for more work while the store is closing
+                isCompactionScheduled.set(false);
+            }
         }
-        currentFile = createNewFile(fileCounter.addAndGet(2));
     }
 
     private T createNewFile(int version) throws IOException {
@@ -112,83 +381,757 @@ public class KeyValueStoreImpl<T extends LogFile> implements KeyValueStore<Strin
     @Override
     public String get(@NotNull String key) throws IOException {
         Objects.requireNonNull(key);
-        readWriteLock.readLock().lock();
+        long startNanos = System.nanoTime();
+        ReadView view = acquireView();
         try {
-            KeyValueRecord record = getCurrentFile().get(key);
+            return get(view, key);
+        } finally {
+            view.release();
+            if (rateLimiter != null)
+                rateLimiter.recordLatency(System.nanoTime() - startNanos);
+        }
+    }
+
+    private String get(ReadView view, String key) throws IOException {
+        T logFile = view.current;
+        if (logFile != null) {
+            KeyValueRecord record = logFile.get(key);
             if (record != null)
                 return record.getValue();
-            for (var file : logFiles.descendingMap().values()) {
-                record = file.get(key);
+            if (logFile.isRangeRemoved(key))
+                return null;
+        }
+        for (var file : view.files.getFiles().values()) {
+            if (!file.mightContain(key)) {
+                skippedFileReads.increment();
+            } else {
+                fileReads.increment();
+                KeyValueRecord record = file.get(key);
                 if (record != null)
                     return record.getValue();
             }
+            if (file.isRangeRemoved(key))
+                return null;
+        }
+        return null;
+    }
+
+    /**
+     * Resolves the keys against the current file first. The remaining keys are sorted and looked up in all immutable
+     * files in parallel, a file gets the keys its filter doesn't rule out and reads each block once for all keys
+     * of the block. The newest record of a key wins, as in {@link #get(String)}, and the rate limiter gets
+     * the latency of the call as that of as many lookups as there are keys.
+     */
+    @Override
+    public Map<String, String> getAll(@NotNull Collection<String> keys) throws IOException {
+        long startNanos = System.nanoTime();
+        ReadView view = acquireView();
+        try {
+            return getAll(view, keys);
+        } finally {
+            view.release();
+            if (rateLimiter != null)
+                rateLimiter.recordLatency(System.nanoTime() - startNanos, keys.size());
+        }
+    }
+
+    private Map<String, String> getAll(ReadView view, Collection<String> keys) throws IOException {
+        var remaining = new TreeSet<>(keys);
+        var values = new HashMap<String, String>();
+        T logFile = view.current;
+        if (logFile != null) {
+            for (var iterator = remaining.iterator(); iterator.hasNext(); ) {
+                String key = iterator.next();
+                KeyValueRecord record = logFile.get(key);
+                if (record == null && !logFile.isRangeRemoved(key))
+                    continue;
+                if (record != null && record.getValue() != null)
+                    values.put(key, record.getValue());
+                iterator.remove();
+            }
+        }
+        var files = new ArrayList<>(view.files.getFiles().values());
+        var lookups = new ArrayList<Future<Map<String, KeyValueRecord>>>();
+        for (var file : files) {
+            var fileKeys = new TreeSet<String>();
+            for (String key : remaining) {
+                if (file.mightContain(key))
+                    fileKeys.add(key);
+                else
+                    skippedFileReads.increment();
+            }
+            fileReads.add(fileKeys.size());
+            lookups.add(fileKeys.isEmpty()
+                    ? CompletableFuture.completedFuture(Map.of())
+                    : this.lookups.submit(() -> file.getAll(fileKeys)));
+        }
+        var records = new ArrayList<Map<String, KeyValueRecord>>();
+        try {
+            for (var lookup : lookups)
+                records.add(getResult(lookup));
+        } catch (IOException | RuntimeException e) {
+            // the caller releases the view, the other lookups must not read its files afterwards
+            awaitAll(lookups);
+            throw e;
+        }
+        for (String key : remaining) {
+            for (int i = 0; i < files.size(); i++) {
+                KeyValueRecord record = records.get(i).get(key);
+                if (record != null) {
+                    if (record.getValue() != null)
+                        values.put(key, record.getValue());
+                    break;
+                }
+                if (files.get(i).isRangeRemoved(key))
+                    break;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Waits until every future is done, whatever its outcome. A running task keeps running when its future is
+     * cancelled, so they are not cancelled.
+     */
+    private static void awaitAll(List<? extends Future<?>> futures) {
+        boolean isInterrupted = false;
+        for (var future : futures) {
+            while (true) {
+                try {
+                    future.get();
+                    break;
+                } catch (InterruptedException e) {
+                    isInterrupted = true;
+                } catch (ExecutionException | CancellationException ignored) {
+                    break;
+                }
+            }
+        }
+        if (isInterrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    @Override
+    public CloseableIterator<Map.Entry<String, String>> scan(String from, String to) throws IOException {
+        return scan(from, to, false);
+    }
+
+    @Override
+    public CloseableIterator<Map.Entry<String, String>> reverseScan(String from, String to) throws IOException {
+        return scan(from, to, true);
+    }
+
+    @Override
+    public CloseableIterator<Map.Entry<String, String>> prefixScan(@NotNull String prefix) throws IOException {
+        return scan(Objects.requireNonNull(prefix), getPrefixEnd(prefix), false);
+    }
+
+    /**
+     * Least string that is greater than all strings with the prefix, null if there is none.
+     */
+    static String getPrefixEnd(String prefix) {
+        int end = prefix.length();
+        while (end > 0 && prefix.charAt(end - 1) == Character.MAX_VALUE)
+            end--;
+        if (end == 0)
             return null;
+        return prefix.substring(0, end - 1) + (char) (prefix.charAt(end - 1) + 1);
+    }
+
+    /**
+     * Merges iterators over the range of all files, the newest record of a key wins. Tombstones and records hidden
+     * by a range tombstone of a newer file are skipped.
+     */
+    private CloseableIterator<Map.Entry<String, String>> scan(String from, String to, boolean isReverse)
+            throws IOException {
+        return scan(acquireView(), from, to, isReverse);
+    }
+
+    /**
+     * The returned iterator releases the view when it's closed.
+     */
+    private CloseableIterator<Map.Entry<String, String>> scan(ReadView view, String from, String to,
+                                                              boolean isReverse) throws IOException {
+        long startNanos = System.nanoTime();
+        try {
+            // from the oldest file to the newest one
+            var files = new ArrayList<T>(view.files.getFiles().descendingMap().values());
+            if (view.current != null)
+                files.add(view.current);
+            var iterators = new ArrayList<PeekableIterator<KeyValueRecord>>();
+            for (var file : files)
+                iterators.add(file.iterator(from, to, isReverse));
+            Comparator<KeyValueRecord> byKey = Comparator.comparing(KeyValueRecord::getKey);
+            var records = new MergingIterator<>(iterators, isReverse ? byKey.reversed() : byKey);
+            return new ScanIterator(view, files, records, System.nanoTime() - startNanos);
+        } catch (IOException | RuntimeException e) {
+            view.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Rotates the current file unless it's empty, so that everything written so far is in immutable files,
+     * and pins the set of immutable files. Compactions go on, the files they replace are deleted only after
+     * the snapshot and its scans are closed.
+     * <p>
+     * Records of the current file carry no sequence numbers and keys are overwritten in place, so it can't be pinned
+     * like a {@link ReadView} does. A snapshot after writes therefore costs a rotation: a small level 0 file,
+     * a manifest update and, if too many files wait for the flusher, a wait like any rotation. Snapshots taken
+     * with no writes in between share the same files for free; callers that need many snapshots should take them
+     * between batches of writes rather than after every write.
+     */
+    @Override
+    public KeyValueSnapshot<String, String> snapshot() throws IOException {
+        rotationLock.writeLock().lock();
+        try {
+            if (currentFile != null && !currentFile.isEmpty())
+                replaceCurrentFile();
+            return new Snapshot(acquireFileSet());
         } finally {
-            readWriteLock.readLock().unlock();
+            rotationLock.writeLock().unlock();
+        }
+    }
+
+    private class Snapshot implements KeyValueSnapshot<String, String> {
+        private final FileSet<T> files;
+        private final long sequence;
+        private final AtomicBoolean isClosed = new AtomicBoolean();
+
+        Snapshot(FileSet<T> files) {
+            this.files = files;
+            this.sequence = files.getFiles().keySet().stream().mapToLong(FileMetadata::sequence).max().orElse(0);
+        }
+
+        @Override
+        public long getSequence() {
+            return sequence;
+        }
+
+        /**
+         * Takes one more reference to the files, so that a scan can outlive the snapshot.
+         */
+        private ReadView pin() {
+            if (isClosed.get() || !files.acquire())
+                throw new IllegalStateException("the snapshot is closed");
+            return new ReadView(null, files);
+        }
+
+        @Override
+        public String get(@NotNull String key) throws IOException {
+            Objects.requireNonNull(key);
+            ReadView view = pin();
+            try {
+                return KeyValueStoreImpl.this.get(view, key);
+            } finally {
+                view.release();
+            }
+        }
+
+        @Override
+        public Map<String, String> getAll(@NotNull Collection<String> keys) throws IOException {
+            ReadView view = pin();
+            try {
+                return KeyValueStoreImpl.this.getAll(view, keys);
+            } finally {
+                view.release();
+            }
+        }
+
+        @Override
+        public CloseableIterator<Map.Entry<String, String>> scan(String from, String to) throws IOException {
+            return KeyValueStoreImpl.this.scan(pin(), from, to, false);
+        }
+
+        @Override
+        public CloseableIterator<Map.Entry<String, String>> reverseScan(String from, String to) throws IOException {
+            return KeyValueStoreImpl.this.scan(pin(), from, to, true);
+        }
+
+        @Override
+        public CloseableIterator<Map.Entry<String, String>> prefixScan(@NotNull String prefix) throws IOException {
+            return KeyValueStoreImpl.this.scan(pin(), Objects.requireNonNull(prefix), getPrefixEnd(prefix), false);
+        }
+
+        @Override
+        public void close() {
+            if (isClosed.compareAndSet(false, true))
+                files.release();
+        }
+    }
+
+    /**
+     * Reports the time it takes to find each entry to the rate limiter as the latency of a lookup, the time
+     * the scan took to start is added to the first one.
+     */
+    private class ScanIterator implements CloseableIterator<Map.Entry<String, String>> {
+        private final ReadView view;
+        private final List<T> files;
+        private final MergingIterator<KeyValueRecord> records;
+        private Map.Entry<String, String> next;
+        private boolean isClosed;
+        private long startupNanos;
+
+        ScanIterator(ReadView view, List<T> files, MergingIterator<KeyValueRecord> records, long startupNanos) {
+            this.view = view;
+            this.files = files;
+            this.records = records;
+            this.startupNanos = startupNanos;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (isClosed)
+                throw new IllegalStateException("the scan is closed");
+            if (next != null)
+                return true;
+            long nanos = rateLimiter != null ? System.nanoTime() : 0;
+            while (next == null && records.hasNext()) {
+                KeyValueRecord record = records.next();
+                if (record.getValue() != null && !isRangeRemoved(record.getKey(), records.getLastSourceIndex()))
+                    next = Map.entry(record.getKey(), record.getValue());
+            }
+            // an exhausted scan that is asked again reports nothing
+            if (rateLimiter != null && (next != null || startupNanos > 0)) {
+                rateLimiter.recordLatency(startupNanos + System.nanoTime() - nanos);
+                startupNanos = 0;
+            }
+            return next != null;
+        }
+
+        private boolean isRangeRemoved(String key, int sourceIndex) {
+            for (int i = sourceIndex + 1; i < files.size(); i++) {
+                if (files.get(i).isRangeRemoved(key))
+                    return true;
+            }
+            return false;
+        }
+
+        @Override
+        public Map.Entry<String, String> next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            var entry = next;
+            next = null;
+            return entry;
+        }
+
+        @Override
+        public void close() {
+            if (!isClosed) {
+                isClosed = true;
+                view.release();
+            }
         }
     }
 
+    /**
+     * Current file and immutable files pinned for a read, none of them is deleted until the view is released.
+     */
+    private class ReadView {
+        final T current;
+        final FileSet<T> files;
+
+        ReadView(T current, FileSet<T> files) {
+            this.current = current;
+            this.files = files;
+        }
+
+        void release() {
+            files.release();
+            if (current != null) {
+                try {
+                    current.release();
+                } catch (IOException e) {
+                    LOG.log(Level.WARNING, "failed to delete " + current.getPath(), e);
+                }
+            }
+        }
+    }
+
+    private ReadView acquireView() {
+        while (true) {
+            T current = currentFile;
+            if (current != null)
+                current.retain();
+            FileSet<T> files = acquireFileSet();
+            // a file that stopped being current meanwhile is in the new set or has been compacted into it
+            if (current == currentFile)
+                return new ReadView(current, files);
+            new ReadView(current, files).release();
+        }
+    }
+
+    private FileSet<T> acquireFileSet() {
+        while (true) {
+            FileSet<T> files = fileSet;
+            // fails only if the set has just been replaced, the next read sees the new one
+            if (files.acquire())
+                return files;
+        }
+    }
+
+    /**
+     * Publishes a new set of files, the removed files are deleted once the readers that still use them finish.
+     */
+    private void updateFileSet(Map<FileMetadata, T> added, Collection<FileMetadata> removed) {
+        synchronized (fileSetLock) {
+            FileSet<T> old = fileSet;
+            fileSet = old.update(added, removed);
+            for (var metadata : removed)
+                old.getFiles().get(metadata).markObsolete();
+            old.release();
+        }
+    }
+
+    /**
+     * Number of lookups in immutable files that had to touch the disk.
+     */
+    public long getFileReads() {
+        return fileReads.sum();
+    }
+
+    /**
+     * Number of lookups in immutable files that were skipped because the file's filter ruled the key out.
+     */
+    public long getSkippedFileReads() {
+        return skippedFileReads.sum();
+    }
+
     @Override
     public void remove(@NotNull String key) throws IOException {
         writeKeyValue(Objects.requireNonNull(key), null);
     }
 
+    /**
+     * Removes all keys in [from, to) with a single range tombstone.
+     */
+    @Override
+    public void removeRange(@NotNull String from, @NotNull String to) throws IOException {
+        Objects.requireNonNull(from);
+        Objects.requireNonNull(to);
+        write(logFile -> logFile.removeRange(from, to));
+    }
+
     @Override
     public void close() throws IOException {
-        currentFile.closeOnRead();
-        currentFile.closeOnWrite();
-        readWriteLock.readLock().lock();
+        rotationLock.writeLock().lock();
         try {
-            for (var logFile : logFiles.values()) {
-                logFile.closeOnRead();
-                logFile.closeOnWrite();
+            if (currentFile != null) {
+                currentFile.closeOnRead();
+                currentFile.closeOnWrite();
+                flushedBytes.add(currentFile.getSize());
             }
         } finally {
-            readWriteLock.readLock().unlock();
+            rotationLock.writeLock().unlock();
+        }
+        lookups.shutdown();
+        flusher.shutdown();
+        try {
+            if (!flusher.awaitTermination(1, TimeUnit.MINUTES))
+                LOG.warning("flushes did not finish in time");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
         }
         if (shouldCompact) {
-            compacterScheduledFuture.cancel(false);
             compacter.shutdown();
             try {
-                compacter.awaitTermination(1, TimeUnit.SECONDS);
+                if (!compacter.awaitTermination(1, TimeUnit.MINUTES))
+                    LOG.warning("compaction did not finish in time");
             } catch (InterruptedException e) {
                 compacter.shutdownNow();
                 Thread.currentThread().interrupt();
             }
         }
-        assert exists(currentFile.getIndexPath()) : currentFile.getPath();
+        if (subcompacter != null)
+            subcompacter.shutdown();
+        for (var logFile : fileSet.getFiles().values()) {
+            logFile.closeOnRead();
+            logFile.closeOnWrite();
+        }
+        assert currentFile == null || exists(currentFile.getIndexPath()) : currentFile.getPath();
+        checkFlushFailure();
     }
 
+    /**
+     * Runs compactions chosen by the {@link CompactionStrategy} until it has nothing to compact,
+     * waits for the compactions that run in the background meanwhile.
+     */
     void compact() {
-        readWriteLock.writeLock().lock();
         try {
-            List<T> filesToCompact = logFiles.entrySet().stream()
-                    .filter(v -> (v.getKey() % 2) == 1)
-                    .limit(MAX_FILES_TO_COMPACT)
-                    .map(Map.Entry::getValue)
-                    .collect(toList());
-            if (filesToCompact.size() < 2) {
-                return;
-            }
-            int lastVersion = filesToCompact.get(filesToCompact.size() - 1).getVersion();
-            T newFile = createNewFile(lastVersion + 1);
-            List<Integer> versions = filesToCompact.stream().map(LogFile::getVersion).collect(toList());
-            LOG.info("compacting versions " + versions + " to version " + newFile.getVersion());
-            mergeFunction.merge(filesToCompact, newFile);
-            logFiles.put(newFile.getVersion(), newFile);
-            long sumSize = 0;
-            for (var logFile : filesToCompact) {
-                sumSize += logFile.getSize();
-                logFiles.remove(logFile.getVersion());
-                deleteDirectory(logFile.getPath());
-            }
-            LOG.info("before compaction " + sumSize);
-            LOG.info("after compaction " + newFile.getSize());
+            while (compactOnce(true)) {
+            }
         } catch (IOException e) {
             throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Merges files without blocking readers and writers, the only critical section is the swap of the file set.
+     * Compactions whose inputs have overlapping key ranges are serialized, the others may run at once on
+     * {@link StoreOptions#compactionThreads(int)} threads. Files that are being compacted are not passed to
+     * the strategy, so the inputs stay in the set until their merge is done.
+     *
+     * @param shouldWait if a compaction that overlaps a running one, or one that the running ones may give rise to,
+     *                   should be waited for rather than left to the threads that run them
+     * @return if a compaction was run
+     */
+    private boolean compactOnce(boolean shouldWait) throws IOException {
+        FileSet<T> files;
+        Compaction compaction;
+        RunningCompaction running;
+        compactionLock.lock();
+        try {
+            while (true) {
+                files = acquireFileSet();
+                try {
+                    compaction = pickCompaction(files.getFiles());
+                    running = compaction == null ? null : new RunningCompaction(files.getFiles(), compaction.inputs());
+                } catch (IOException | RuntimeException e) {
+                    files.release();
+                    throw e;
+                }
+                if (running != null && runningCompactions.stream().noneMatch(running::overlaps))
+                    break;
+                files.release();
+                if (!shouldWait || running == null && runningCompactions.isEmpty())
+                    return false;
+                compactionFinished.await();
+            }
+            runningCompactions.add(running);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for compactions");
+        } finally {
+            compactionLock.unlock();
+        }
+        try {
+            // another thread may pick a compaction of files that this one doesn't touch
+            if (compactionThreads > 1)
+                scheduleCompaction();
+            merge(files.getFiles(), compaction);
+            return true;
         } finally {
-            readWriteLock.writeLock().unlock();
+            files.release();
+            compactionLock.lock();
+            try {
+                runningCompactions.remove(running);
+                compactionFinished.signalAll();
+            } finally {
+                compactionLock.unlock();
+            }
+        }
+    }
+
+    private Compaction pickCompaction(NavigableMap<FileMetadata, T> logFiles) throws IOException {
+        var compactable = new TreeMap<FileMetadata, T>(FileMetadata.READ_ORDER);
+        // rotated files are flushed in order, newer files of level 0 wait for the oldest unflushed one
+        long unflushedSequence = Long.MAX_VALUE;
+        for (var entry : logFiles.entrySet()) {
+            if (!entry.getValue().isClosedOnWrite())
+                unflushedSequence = Math.min(unflushedSequence, entry.getKey().sequence());
+        }
+        for (var entry : logFiles.entrySet()) {
+            if (runningCompactions.stream().anyMatch(running -> running.inputs().contains(entry.getKey())))
+                continue;
+            if (entry.getKey().level() > 0 || entry.getKey().sequence() < unflushedSequence)
+                compactable.put(entry.getKey(), entry.getValue());
         }
+        Compaction picked = compactionStrategy.pick(compactable);
+        return picked != null ? picked : pickTombstoneCompaction(logFiles, compactable);
     }
 
+    private void merge(NavigableMap<FileMetadata, T> logFiles, Compaction compaction) throws IOException {
+        // merge functions expect the oldest file first
+        List<FileMetadata> inputs = compaction.inputs().stream()
+                .sorted(FileMetadata.READ_ORDER.reversed())
+                .collect(toList());
+        List<T> filesToCompact = inputs.stream().map(logFiles::get).collect(toList());
+        long sequence = inputs.stream().mapToLong(FileMetadata::sequence).max().orElseThrow();
+        LOG.info("compacting versions " + inputs.stream().map(FileMetadata::version).collect(toList())
+                + " to level " + compaction.outputLevel());
+        var output = new FileMetadata(Integer.MAX_VALUE, compaction.outputLevel(), sequence);
+        var created = Collections.synchronizedList(new ArrayList<T>());
+        List<T> newFiles;
+        try {
+            newFiles = mergeFunction.merge(filesToCompact,
+                    () -> {
+                        T newFile = createNewFile(fileCounter.incrementAndGet());
+                        created.add(newFile);
+                        newFile.setRateLimiter(rateLimiter);
+                        return newFile;
+                    }, compaction.maxOutputFileSize(), canDropTombstone(logFiles, output, inputs),
+                    new MergeContext(subcompacter, subcompactions, rateLimiter));
+        } catch (IOException | RuntimeException e) {
+            // outputs are not in the manifest yet, a store without one would even restore them as live files
+            for (T file : created) {
+                try {
+                    file.delete();
+                } catch (IOException | RuntimeException deleteFailure) {
+                    e.addSuppressed(deleteFailure);
+                }
+            }
+            throw e;
+        }
+        List<FileMetadata> outputs = newFiles.stream()
+                .map(file -> new FileMetadata(file.getVersion(), compaction.outputLevel(), sequence))
+                .collect(toList());
+        manifest.apply(outputs, inputs);
+        var added = new HashMap<FileMetadata, T>();
+        for (int i = 0; i < outputs.size(); i++) {
+            added.put(outputs.get(i), newFiles.get(i));
+        }
+        updateFileSet(added, inputs);
+        long readBytes = 0;
+        for (var logFile : filesToCompact) {
+            readBytes += logFile.getSize();
+        }
+        long writtenBytes = 0;
+        for (var newFile : newFiles) {
+            writtenBytes += newFile.getSize();
+        }
+        compactionReadBytes.add(readBytes);
+        compactionWrittenBytes.add(writtenBytes);
+        // bytes written per byte read by this compaction, the cumulative figure of the store counts flushes too
+        LOG.info(String.format("compaction read %d bytes and wrote %d bytes in %d files, written/read %.2f, "
+                        + "cumulative write amplification %.2f",
+                readBytes, writtenBytes, newFiles.size(), readBytes == 0 ? 0 : writtenBytes / (double) readBytes,
+                getWriteAmplification()));
+    }
+
+    /**
+     * Inputs of a compaction that is being merged and the range of their keys, a null bound means that
+     * some input doesn't know its keys.
+     */
+    private record RunningCompaction(List<FileMetadata> inputs, String firstKey, String lastKey) {
+        RunningCompaction(NavigableMap<FileMetadata, ? extends LogFile> logFiles, List<FileMetadata> inputs)
+                throws IOException {
+            this(inputs, getFirstKey(logFiles, inputs), getLastKey(logFiles, inputs));
+        }
+
+        private static String getFirstKey(NavigableMap<FileMetadata, ? extends LogFile> logFiles,
+                                          List<FileMetadata> inputs) throws IOException {
+            String firstKey = null;
+            for (var input : inputs) {
+                String key = logFiles.get(input).getFirstKey();
+                if (key == null)
+                    return null;
+                if (firstKey == null || key.compareTo(firstKey) < 0)
+                    firstKey = key;
+            }
+            return firstKey;
+        }
+
+        private static String getLastKey(NavigableMap<FileMetadata, ? extends LogFile> logFiles,
+                                         List<FileMetadata> inputs) throws IOException {
+            String lastKey = null;
+            for (var input : inputs) {
+                String key = logFiles.get(input).getLastKey();
+                if (key == null)
+                    return null;
+                if (lastKey == null || key.compareTo(lastKey) > 0)
+                    lastKey = key;
+            }
+            return lastKey;
+        }
+
+        boolean overlaps(RunningCompaction other) {
+            if (firstKey == null || lastKey == null || other.firstKey == null || other.lastKey == null)
+                return true;
+            return firstKey.compareTo(other.lastKey) <= 0 && other.firstKey.compareTo(lastKey) <= 0;
+        }
+    }
+
+    /**
+     * Picks a file that has at least {@code tombstoneCompactionRatio} tombstones per record, if none of its tombstones
+     * hides anything in older files. Compacting it alone drops all of them.
+     */
+    private Compaction pickTombstoneCompaction(NavigableMap<FileMetadata, T> logFiles,
+                                               NavigableMap<FileMetadata, T> compactable) throws IOException {
+        for (var entry : compactable.entrySet()) {
+            T file = entry.getValue();
+            int tombstoneCount = file.getTombstoneCount();
+            if (tombstoneCount == 0 || tombstoneCount < tombstoneCompactionRatio * file.getRecordCount())
+                continue;
+            String firstKey = file.getFirstKey();
+            String lastKey = file.getLastKey();
+            if (firstKey == null || lastKey == null)
+                continue;
+            if (canDropTombstone(logFiles, entry.getKey(), List.of(entry.getKey())).test(firstKey, lastKey)) {
+                LOG.info("compacting " + file.getPath() + " to drop " + tombstoneCount + " tombstones");
+                return new Compaction(List.of(entry.getKey()), entry.getKey().level(), Long.MAX_VALUE);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A tombstone can be dropped if no file of {@code logFiles} that is read after {@code position}, except
+     * {@code inputs}, may have keys in its range.
+     */
+    private BiPredicate<String, String> canDropTombstone(NavigableMap<FileMetadata, T> logFiles, FileMetadata position,
+                                                         List<FileMetadata> inputs) throws IOException {
+        var olderFiles = new ArrayList<T>();
+        var firstKeys = new ArrayList<String>();
+        var lastKeys = new ArrayList<String>();
+        for (var entry : logFiles.tailMap(position, false).entrySet()) {
+            if (inputs.contains(entry.getKey()))
+                continue;
+            olderFiles.add(entry.getValue());
+            firstKeys.add(entry.getValue().getFirstKey());
+            lastKeys.add(entry.getValue().getLastKey());
+        }
+        return (first, last) -> {
+            for (int i = 0; i < olderFiles.size(); i++) {
+                String firstKey = firstKeys.get(i);
+                String lastKey = lastKeys.get(i);
+                boolean isDisjoint = firstKey != null && lastKey != null
+                        && (lastKey.compareTo(first) < 0 || firstKey.compareTo(last) > 0);
+                if (isDisjoint || first.equals(last) && !olderFiles.get(i).mightContain(first))
+                    continue;
+                return false;
+            }
+            return true;
+        };
+    }
+
+    /**
+     * Bytes of files written by flushes.
+     */
+    public long getFlushedBytes() {
+        return flushedBytes.sum();
+    }
+
+    public long getCompactionReadBytes() {
+        return compactionReadBytes.sum();
+    }
+
+    public long getCompactionWrittenBytes() {
+        return compactionWrittenBytes.sum();
+    }
+
+    /**
+     * Bytes written by flushes and compactions per byte written by flushes, 1 if nothing was compacted.
+     */
+    public double getWriteAmplification() {
+        long flushed = flushedBytes.sum();
+        if (flushed == 0)
+            return 1;
+        return (double) (flushed + compactionWrittenBytes.sum()) / flushed;
+    }
+
+    List<T> getFiles() {
+        return new ArrayList<>(fileSet.getFiles().values());
+    }
+
+    /**
+     * Levels of the files known to the store, indexed by file version.
+     */
+    Map<Integer, Integer> getLevels() {
+        var levels = new TreeMap<Integer, Integer>();
+        for (var metadata : fileSet.getFiles().keySet()) {
+            levels.put(metadata.version(), metadata.level());
+        }
+        return levels;
+    }
 }
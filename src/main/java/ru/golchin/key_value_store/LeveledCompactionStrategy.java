@@ -0,0 +1,161 @@
+package ru.golchin.key_value_store;
+
+import java.io.IOException;
+import java.util.*;
+
+import static java.util.Comparator.naturalOrder;
+import static java.util.Comparator.nullsFirst;
+
+/**
+ * Leveled compaction. Files of level 0 are flushed memtables and may overlap, files of every other level
+ * have disjoint key ranges, so a lookup reads at most one file per level.
+ * <p>
+ * Once level 0 has {@link #level0Files(int)} files, they are merged with the overlapping files of level 1.
+ * Level {@code n > 0} may hold {@code baseLevelSize * sizeRatio^(n - 1)} bytes; the level that exceeds its limit
+ * the most has one file merged with the overlapping files of the next level. Files of a level are picked in
+ * key order, starting after the last key of the previous pick. The last level has no limit.
+ * <p>
+ * Files that don't know their key range (see {@link LogFile#getFirstKey()}) are treated as overlapping all files.
+ * The strategy keeps per-store state, don't share an instance between stores.
+ */
+public class LeveledCompactionStrategy implements CompactionStrategy {
+    public static final int DEFAULT_LEVEL0_FILES = 4;
+    public static final int DEFAULT_SIZE_RATIO = 10;
+    public static final int DEFAULT_MAX_LEVEL = 6;
+    private final long targetFileSize;
+    private int level0Files = DEFAULT_LEVEL0_FILES;
+    private int sizeRatio = DEFAULT_SIZE_RATIO;
+    private long baseLevelSize;
+    private int maxLevel = DEFAULT_MAX_LEVEL;
+    private final Map<Integer, String> compactionPointers = new HashMap<>();
+
+    /**
+     * @param targetFileSize size of files written by compactions, the size of level 1 defaults to
+     *                       {@link #DEFAULT_SIZE_RATIO} files
+     */
+    public LeveledCompactionStrategy(long targetFileSize) {
+        if (targetFileSize <= 0)
+            throw new IllegalArgumentException("target file size must be positive: " + targetFileSize);
+        this.targetFileSize = targetFileSize;
+        this.baseLevelSize = targetFileSize * DEFAULT_SIZE_RATIO;
+    }
+
+    public LeveledCompactionStrategy level0Files(int level0Files) {
+        if (level0Files < 1)
+            throw new IllegalArgumentException("level 0 must allow at least one file: " + level0Files);
+        this.level0Files = level0Files;
+        return this;
+    }
+
+    public LeveledCompactionStrategy sizeRatio(int sizeRatio) {
+        if (sizeRatio < 2)
+            throw new IllegalArgumentException("size ratio must be at least 2: " + sizeRatio);
+        this.sizeRatio = sizeRatio;
+        return this;
+    }
+
+    /**
+     * Size limit of level 1.
+     */
+    public LeveledCompactionStrategy baseLevelSize(long baseLevelSize) {
+        if (baseLevelSize <= 0)
+            throw new IllegalArgumentException("base level size must be positive: " + baseLevelSize);
+        this.baseLevelSize = baseLevelSize;
+        return this;
+    }
+
+    public LeveledCompactionStrategy maxLevel(int maxLevel) {
+        if (maxLevel < 1)
+            throw new IllegalArgumentException("there must be at least one level after level 0: " + maxLevel);
+        this.maxLevel = maxLevel;
+        return this;
+    }
+
+    long getMaxLevelSize(int level) {
+        double size = baseLevelSize * Math.pow(sizeRatio, level - 1);
+        return size >= Long.MAX_VALUE ? Long.MAX_VALUE : (long) size;
+    }
+
+    @Override
+    public synchronized Compaction pick(NavigableMap<FileMetadata, ? extends LogFile> files) throws IOException {
+        var levels = new TreeMap<Integer, List<Map.Entry<FileMetadata, ? extends LogFile>>>();
+        for (var entry : files.entrySet())
+            levels.computeIfAbsent(entry.getKey().level(), level -> new ArrayList<>()).add(entry);
+        var level0 = levels.getOrDefault(0, List.of());
+        if (level0.size() >= level0Files) {
+            var inputs = new ArrayList<FileMetadata>();
+            String first = null;
+            String last = null;
+            boolean isRangeKnown = true;
+            for (var entry : level0) {
+                inputs.add(entry.getKey());
+                String firstKey = entry.getValue().getFirstKey();
+                String lastKey = entry.getValue().getLastKey();
+                if (firstKey == null || lastKey == null) {
+                    isRangeKnown = false;
+                    continue;
+                }
+                first = first == null || firstKey.compareTo(first) < 0 ? firstKey : first;
+                last = last == null || lastKey.compareTo(last) > 0 ? lastKey : last;
+            }
+            if (!isRangeKnown)
+                first = last = null;
+            addOverlapping(inputs, levels.getOrDefault(1, List.of()), first, last);
+            return new Compaction(inputs, 1, targetFileSize);
+        }
+        int levelToCompact = -1;
+        double maxScore = 1;
+        for (var level : levels.entrySet()) {
+            if (level.getKey() == 0 || level.getKey() >= maxLevel)
+                continue;
+            long size = 0;
+            for (var entry : level.getValue())
+                size += entry.getValue().getSize();
+            double score = (double) size / getMaxLevelSize(level.getKey());
+            if (score > maxScore) {
+                maxScore = score;
+                levelToCompact = level.getKey();
+            }
+        }
+        if (levelToCompact < 0)
+            return null;
+        var candidates = new ArrayList<>(levels.get(levelToCompact));
+        var firstKeys = new HashMap<FileMetadata, String>();
+        for (var candidate : candidates)
+            firstKeys.put(candidate.getKey(), candidate.getValue().getFirstKey());
+        candidates.sort(Comparator.comparing(entry -> firstKeys.get(entry.getKey()), nullsFirst(naturalOrder())));
+        String pointer = compactionPointers.get(levelToCompact);
+        var picked = candidates.get(0);
+        for (var candidate : candidates) {
+            String firstKey = firstKeys.get(candidate.getKey());
+            if (pointer == null || firstKey != null && firstKey.compareTo(pointer) > 0) {
+                picked = candidate;
+                break;
+            }
+        }
+        String lastKey = picked.getValue().getLastKey();
+        if (lastKey == null)
+            compactionPointers.remove(levelToCompact);
+        else
+            compactionPointers.put(levelToCompact, lastKey);
+        var inputs = new ArrayList<>(List.of(picked.getKey()));
+        String firstKey = lastKey == null ? null : firstKeys.get(picked.getKey());
+        addOverlapping(inputs, levels.getOrDefault(levelToCompact + 1, List.of()), firstKey, lastKey);
+        return new Compaction(inputs, levelToCompact + 1, targetFileSize);
+    }
+
+    /**
+     * Adds files of the level that overlap [first, last], all of them if the range is unknown (null).
+     */
+    private static void addOverlapping(List<FileMetadata> inputs, List<Map.Entry<FileMetadata, ? extends LogFile>> level,
+                                       String first, String last) throws IOException {
+        for (var entry : level) {
+            String firstKey = entry.getValue().getFirstKey();
+            String lastKey = entry.getValue().getLastKey();
+            boolean isDisjoint = first != null && firstKey != null && lastKey != null
+                    && (lastKey.compareTo(first) < 0 || firstKey.compareTo(last) > 0);
+            if (!isDisjoint)
+                inputs.add(entry.getKey());
+        }
+    }
+}
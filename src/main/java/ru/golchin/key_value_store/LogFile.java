@@ -1,23 +1,28 @@
 package ru.golchin.key_value_store;
 
+import ru.golchin.key_value_store.io.IndexFiles;
 import ru.golchin.key_value_store.io.KeyValueReader;
 import ru.golchin.key_value_store.io.KeyValueRecord;
 import ru.golchin.key_value_store.io.KeyValueWriter;
+import ru.golchin.key_value_store.io.RateLimiter;
 import ru.golchin.util.PeekableIterator;
 
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.io.UncheckedIOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.SortedSet;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.nio.file.Files.*;
 import static java.util.stream.Collectors.toMap;
+import static ru.golchin.util.Util.deleteDirectory;
 
 public abstract class LogFile {
     protected static final String DATA_FILE_NAME = "data";
@@ -25,7 +30,10 @@ public abstract class LogFile {
     protected final Path path;
     protected final KeyValueReader keyValueReader;
     protected final KeyValueWriter keyValueWriter;
-    protected boolean isClosedOnWrite = false;
+    protected volatile boolean isClosedOnWrite = false;
+    private final AtomicInteger refs = new AtomicInteger();
+    private volatile boolean isObsolete;
+    private volatile RateLimiter rateLimiter;
 
     public LogFile(Path path) throws IOException {
         this.path = path;
@@ -38,20 +46,104 @@ public abstract class LogFile {
         } else {
             createDirectory(path);
         }
-        keyValueWriter = new KeyValueWriter(getDataPath());
+        // a restored file is never written again
+        keyValueWriter = exists ? null : createWriter();
         if (exists) {
             makeReadOnly();
         }
-        keyValueReader = new KeyValueReader(getDataPath());
+        keyValueReader = createReader();
+        if (isClosedOnWrite) {
+            keyValueReader.map();
+        }
+    }
+
+    protected KeyValueWriter createWriter() throws IOException {
+        return new KeyValueWriter(getDataPath());
     }
 
-    public void put(String key, String value) throws IOException {
-        int offset = keyValueWriter.write(key, value);
-        getIndex().put(key, offset);
+    protected KeyValueReader createReader() {
+        return new KeyValueReader(getDataPath());
+    }
+
+    public abstract void put(String key, String value) throws IOException;
+
+    /**
+     * Writes the records in order, no other write gets in between.
+     */
+    public synchronized void putAll(List<KeyValueRecord> records) throws IOException {
+        for (var record : records)
+            put(record.getKey(), record.getValue());
+    }
+
+    /**
+     * Writes records sorted by key to an empty file and closes it for writes.
+     */
+    public void writeSorted(List<KeyValueRecord> records) throws IOException {
+        putAll(records);
+        closeOnWrite();
     }
 
     public abstract KeyValueRecord get(String key) throws IOException;
 
+    /**
+     * Records of the keys that the file has, tombstones included.
+     */
+    public Map<String, KeyValueRecord> getAll(SortedSet<String> keys) throws IOException {
+        var records = new HashMap<String, KeyValueRecord>();
+        for (String key : keys) {
+            KeyValueRecord record = get(key);
+            if (record != null)
+                records.put(key, record);
+        }
+        return records;
+    }
+
+    /**
+     * Returns false only if the file definitely has no record for the key, so {@link #get(String)} can be skipped.
+     */
+    public boolean mightContain(String key) {
+        return true;
+    }
+
+    /**
+     * Removes all keys in [from, to) from older files.
+     */
+    public abstract void removeRange(String from, String to) throws IOException;
+
+    /**
+     * Whether a range tombstone of this file hides the key in older files. Records of this file win over
+     * its own range tombstones.
+     */
+    public boolean isRangeRemoved(String key) {
+        return false;
+    }
+
+    public int getRecordCount() {
+        return 0;
+    }
+
+    /**
+     * Number of point and range tombstones, 0 if the file doesn't count them.
+     */
+    public int getTombstoneCount() {
+        return 0;
+    }
+
+    /**
+     * Smallest key of a written file or of its range tombstones, null if the file is empty or doesn't keep
+     * its records sorted.
+     */
+    public String getFirstKey() throws IOException {
+        return null;
+    }
+
+    /**
+     * Greatest key of a written file, null if {@link #getFirstKey()} is null.
+     */
+    public String getLastKey() throws IOException {
+        return null;
+    }
+
     protected abstract void restoreIndex() throws IOException;
 
     public static int getVersion(Path path) {
@@ -71,12 +163,62 @@ public abstract class LogFile {
     }
 
     public void closeOnWrite() throws IOException {
+        if (isClosedOnWrite)
+            return;
         keyValueWriter.close();
         dumpIndex();
+        keyValueReader.map();
+        isClosedOnWrite = true;
+    }
+
+    public boolean isClosedOnWrite() {
+        return isClosedOnWrite;
+    }
+
+    /**
+     * Limits the rate at which the file writes its data from now on, set by the store on files that are flushed
+     * or written by compaction.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        if (keyValueWriter != null)
+            keyValueWriter.setRateLimiter(rateLimiter);
+    }
+
+    protected RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    public void delete() throws IOException {
+        // the output of a failed merge is deleted while it's still open for writes
+        if (keyValueWriter != null)
+            keyValueWriter.discard();
+        keyValueReader.close();
+        deleteDirectory(path);
+    }
+
+    void retain() {
+        refs.incrementAndGet();
+    }
+
+    /**
+     * Drops a reference taken by a {@link FileSet}, deletes the file with the last one if the file is obsolete.
+     */
+    void release() throws IOException {
+        if (refs.decrementAndGet() == 0 && isObsolete)
+            delete();
+    }
+
+    /**
+     * Marks a file that has been replaced by the result of a compaction, it is deleted once nobody refers to it.
+     */
+    void markObsolete() {
+        isObsolete = true;
     }
 
     public void makeReadOnly() throws IOException {
-        keyValueWriter.close();
+        if (keyValueWriter != null)
+            keyValueWriter.close();
         isClosedOnWrite = true;
     }
 
@@ -84,12 +226,20 @@ public abstract class LogFile {
         return path.resolve(INDEX_FILE_NAME);
     }
 
-    private Path getDataPath() {
+    protected Path getDataPath() {
         return path.resolve(DATA_FILE_NAME);
     }
 
+    /**
+     * Whether the index has been written by an older version as a serialized map, it is read with
+     * {@link #readLegacyIndex()} and rewritten in the binary format.
+     */
+    protected boolean hasLegacyIndex() throws IOException {
+        return IndexFiles.isSerialized(getIndexPath());
+    }
+
     @SuppressWarnings("unchecked")
-    protected Map<String, Integer> readIndex() throws IOException {
+    protected Map<String, Integer> readLegacyIndex() throws IOException {
         Path path = getIndexPath();
         assert exists(path) : "no index found in " + getPath();
         try (ObjectInputStream ois = new ObjectInputStream(Files.newInputStream(path))) {
@@ -100,40 +250,28 @@ public abstract class LogFile {
         }
     }
 
-    public void dumpIndex() throws IOException {
-        dumpIndex(getIndex());
-    }
-
-    public void dumpIndex(Map<String, Integer> index) throws IOException {
-        try (ObjectOutputStream objectOutputStream = new ObjectOutputStream(newOutputStream(getIndexPath()))) {
-            objectOutputStream.writeObject(index);
-        }
-    }
-
-    protected abstract Map<String, Integer> getIndex();
+    protected abstract void dumpIndex() throws IOException;
 
     public long getSize() throws IOException {
+        var keyValueWriter = this.keyValueWriter;
+        // records of a file that is written may still be buffered
+        if (keyValueWriter != null && !isClosedOnWrite)
+            return keyValueWriter.size();
         return size(getDataPath());
     }
 
-    public KeyValueRecord safeRead() throws IOException {
-        return safeRead(true);
-    }
-
-    public KeyValueRecord safeRead(boolean movePointer) throws IOException {
-        if (keyValueReader.canRead())
-            return keyValueReader.read(movePointer);
-        return null;
+    /**
+     * Whether nothing has been written to the file, the data log of an empty file may still have a header.
+     */
+    public boolean isEmpty() throws IOException {
+        return getSize() == 0;
     }
 
     List<KeyValueRecord> asRecordList() throws IOException {
-        var offset = keyValueReader.getOffset();
-        keyValueReader.setOffset(0);
-        KeyValueRecord record;
+        var cursor = keyValueReader.cursor();
         var records = new ArrayList<KeyValueRecord>();
-        while ((record = safeRead()) != null)
-            records.add(record);
-        keyValueReader.setOffset(offset);
+        while (cursor.canRead())
+            records.add(cursor.read());
         return records;
     }
 
@@ -146,33 +284,35 @@ public abstract class LogFile {
         return new LogFileIterator();
     }
 
-    class LogFileIterator implements PeekableIterator<KeyValueRecord> {
-        private final List<KeyValueRecord> record = new ArrayList<>();
+    /**
+     * Records with keys in [from, to) in key order, including tombstones, a null bound means no bound.
+     */
+    public abstract PeekableIterator<KeyValueRecord> iterator(String from, String to, boolean isReverse)
+            throws IOException;
 
-        private KeyValueRecord throwIfNull(KeyValueRecord record) {
-            if (record == null)
-                throw new NoSuchElementException();
-            return record;
-        }
+    /**
+     * Iterates over the records with a cursor of its own, so any number of iterators and lookups can run at once.
+     */
+    class LogFileIterator implements PeekableIterator<KeyValueRecord> {
+        private final KeyValueReader.Cursor cursor = keyValueReader.cursor();
+        private KeyValueRecord next;
 
         @Override
         public KeyValueRecord peek() {
-            assert record.size() <= 1;
-            if (record.isEmpty()) {
-                try {
-                    record.add(safeRead());
-                } catch (IOException e) {
-                    throw new UncheckedIOException(e);
-                }
-            }
-            return record.get(0);
+            if (!hasNext())
+                throw new NoSuchElementException();
+            return next;
         }
 
         @Override
         public boolean hasNext() {
-            assert record.size() <= 1;
+            if (next != null)
+                return true;
             try {
-                return !record.isEmpty() || keyValueReader.canRead();
+                if (!cursor.canRead())
+                    return false;
+                next = cursor.read();
+                return true;
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
@@ -180,19 +320,9 @@ public abstract class LogFile {
 
         @Override
         public KeyValueRecord next() {
-            assert record.size() <= 1;
-            if (!record.isEmpty()) {
-                KeyValueRecord record = this.record.get(0);
-                this.record.clear();
-                return throwIfNull(record);
-            }
-            try {
-                KeyValueRecord record = safeRead();
-                this.record.add(record);
-                return throwIfNull(record);
-            } catch (IOException e) {
-                throw new UncheckedIOException(e);
-            }
+            KeyValueRecord record = peek();
+            next = null;
+            return record;
         }
     }
 }
@@ -0,0 +1,99 @@
+package ru.golchin.key_value_store;
+
+import ru.golchin.util.Util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.Files.exists;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Records the level and sequence of every live file of a store.
+ * <p>
+ * The whole manifest is rewritten to a temporary file and moved over the previous one on every change,
+ * so a change made by a compaction (outputs added, inputs removed) is applied atomically.
+ * File directories that are missing from the manifest are leftovers of an interrupted compaction.
+ * <pre>
+ * int size | (int version | int level | long sequence)* | int crc32c
+ * </pre>
+ * Manifests written before checksums were introduced have no crc.
+ */
+public class Manifest {
+    static final String FILE_NAME = "MANIFEST";
+    private static final int ENTRY_SIZE = 16;
+    private final Path path;
+    private final Map<Integer, FileMetadata> files = new HashMap<>();
+    private final boolean existed;
+
+    public Manifest(Path directory) throws IOException {
+        path = directory.resolve(FILE_NAME);
+        existed = exists(path);
+        if (existed) {
+            var buffer = ByteBuffer.wrap(Files.readAllBytes(path));
+            int size = buffer.remaining() >= 4 ? buffer.getInt() : -1;
+            long contentSize = 4 + (long) ENTRY_SIZE * size;
+            if (size < 0 || contentSize != buffer.capacity() && contentSize + 4 != buffer.capacity())
+                throw new IOException("corrupted manifest " + path);
+            for (int i = 0; i < size; i++) {
+                var metadata = new FileMetadata(buffer.getInt(), buffer.getInt(), buffer.getLong());
+                files.put(metadata.version(), metadata);
+            }
+            if (buffer.hasRemaining()) {
+                var crc = new CRC32C();
+                crc.update(buffer.array(), 0, (int) contentSize);
+                if ((int) crc.getValue() != buffer.getInt())
+                    throw new IOException("checksum mismatch in " + path);
+            }
+        }
+    }
+
+    /**
+     * Whether the store had a manifest when it was opened, stores written before manifests were introduced have none.
+     */
+    public boolean existed() {
+        return existed;
+    }
+
+    public synchronized FileMetadata get(int version) {
+        return files.get(version);
+    }
+
+    public synchronized List<FileMetadata> getFiles() {
+        return new ArrayList<>(files.values());
+    }
+
+    public synchronized void apply(Collection<FileMetadata> added, Collection<FileMetadata> removed) throws IOException {
+        for (var metadata : removed)
+            files.remove(metadata.version());
+        for (var metadata : added)
+            files.put(metadata.version(), metadata);
+        Path tmpPath = path.resolveSibling(FILE_NAME + ".tmp");
+        var buffer = ByteBuffer.allocate(4 + ENTRY_SIZE * files.size() + 4);
+        buffer.putInt(files.size());
+        for (var metadata : files.values()) {
+            buffer.putInt(metadata.version());
+            buffer.putInt(metadata.level());
+            buffer.putLong(metadata.sequence());
+        }
+        var crc = new CRC32C();
+        crc.update(buffer.array(), 0, buffer.position());
+        buffer.putInt((int) crc.getValue());
+        buffer.flip();
+        // the content is on disk before the move, and the move is on disk before the change is relied upon
+        try (var channel = FileChannel.open(tmpPath, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            channel.force(false);
+        }
+        Files.move(tmpPath, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        Util.syncDirectory(path.getParent());
+    }
+}
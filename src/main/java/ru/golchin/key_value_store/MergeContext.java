@@ -0,0 +1,16 @@
+package ru.golchin.key_value_store;
+
+import ru.golchin.key_value_store.io.RateLimiter;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Resources that a {@link MergeFunction} may use.
+ *
+ * @param executor       runs subcompactions, null if the merge runs on the calling thread only
+ * @param subcompactions number of key ranges that may be merged at once
+ * @param rateLimiter    limits the reads of the merged files, null if they are not limited
+ */
+public record MergeContext(ExecutorService executor, int subcompactions, RateLimiter rateLimiter) {
+    public static final MergeContext SEQUENTIAL = new MergeContext(null, 1, null);
+}
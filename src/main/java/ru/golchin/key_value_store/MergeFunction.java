@@ -1,8 +1,43 @@
 package ru.golchin.key_value_store;
 
+import ru.golchin.util.ThrowingSupplier;
+
 import java.io.IOException;
 import java.util.List;
+import java.util.function.BiPredicate;
 
 public interface MergeFunction<T extends LogFile> {
+    /**
+     * Writes the newest record of every key of the files to the new file and closes it.
+     * The files are ordered from the oldest to the newest.
+     */
     void merge(List<T> files, T newFile) throws IOException;
+
+    /**
+     * Same as {@link #merge(List, LogFile)}, but starts a new file from {@code newFiles} whenever
+     * the current one gets bigger than {@code maxFileSize}, and drops tombstones that have nothing left to hide.
+     * Implementations that can't split their output write a single file.
+     *
+     * @param canDropTombstone tells if no file older than the merged ones may have keys in [first, last]
+     * @return written files
+     */
+    default List<T> merge(List<T> files, ThrowingSupplier<T, IOException> newFiles, long maxFileSize,
+                          BiPredicate<String, String> canDropTombstone) throws IOException {
+        T newFile = newFiles.get();
+        merge(files, newFile);
+        return List.of(newFile);
+    }
+
+    /**
+     * Same as {@link #merge(List, ThrowingSupplier, long, BiPredicate)}, but may split the keys of the files into
+     * up to {@link MergeContext#subcompactions()} disjoint ranges that are merged on the context's executor at once,
+     * each into its own files, and reads the files no faster than the context's rate limiter allows.
+     * Implementations that can't split their input merge on the calling thread.
+     *
+     * @return written files in key order
+     */
+    default List<T> merge(List<T> files, ThrowingSupplier<T, IOException> newFiles, long maxFileSize,
+                          BiPredicate<String, String> canDropTombstone, MergeContext context) throws IOException {
+        return merge(files, newFiles, maxFileSize, canDropTombstone);
+    }
 }
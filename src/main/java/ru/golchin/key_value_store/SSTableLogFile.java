@@ -1,96 +1,609 @@
 package ru.golchin.key_value_store;
 
-import ru.golchin.key_value_store.io.KeyValueRecord;
+import ru.golchin.key_value_store.io.*;
+import ru.golchin.util.BloomFilter;
+import ru.golchin.util.Lazy;
+import ru.golchin.util.PeekableIterator;
 
-import java.io.IOException;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Logger;
+import java.util.zip.CRC32C;
+import java.util.stream.IntStream;
 
+import static java.nio.file.Files.*;
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static ru.golchin.util.Util.force;
+import static ru.golchin.util.Util.syncDirectory;
+
+/**
+ * Sorted log file. Records are kept in a memtable until {@link #closeOnWrite()} writes them to a file of
+ * data blocks (see {@link BlockWriter}); the index maps the first key of every block to its offset and is searched
+ * in the mapped index file (see {@link SortedIndex}).
+ * The memtable is a concurrent skip list, so puts from several threads need no external locking.
+ * <p>
+ * Every put is first appended to a write-ahead log, which is deleted once the memtable is written.
+ * A file that is opened with a log but without an index has not been written before a crash,
+ * its memtable is restored from the log and written right away.
+ * <p>
+ * Files written in the previous format (length-prefixed UTF-16 records in {@code data} with a sparse record index)
+ * are rewritten to the block format when opened.
+ */
 public class SSTableLogFile extends LogFile {
-    public static final int DEFAULT_SPARSE_FACTOR = 1000;
-    private NavigableMap<String, Integer> keyToOffset;
-    private final SortedMap<String, String> memTable = new TreeMap<>();
-    private final int sparseFactor;
-    private long sizeBytes = 0;
+    private static final Logger LOG = Logger.getLogger(SSTableLogFile.class.getName());
+    static final String BLOCKS_FILE_NAME = "blocks";
+    private static final String FILTER_FILE_NAME = "filter";
+    private static final String WAL_FILE_NAME = "wal";
+    private static final String TOMBSTONES_FILE_NAME = "tombstones";
+    // the skip list does not accept null values, removed keys are mapped to this instance
+    @SuppressWarnings("StringOperationCanBeSimplified")
+    private static final String TOMBSTONE = new String();
+    private Lazy<SortedIndex, IOException> blockIndex;
+    private BloomFilter bloomFilter;
+    private boolean isLegacyFormat;
+    private boolean hasUnflushedWal;
+    private WriteAheadLog wal;
+    private volatile String lastKey;
+    private volatile List<RangeTombstone> rangeTombstones;
+    private int recordCount;
+    private int tombstoneCount;
+    private volatile ConcurrentNavigableMap<String, String> memTable = new ConcurrentSkipListMap<>();
+    private final SSTableOptions options;
+    private final LongAdder sizeBytes = new LongAdder();
+    // orders the writes of the log and of the memtable the same way, replay then restores what readers saw
+    private final Lock writeLock = new ReentrantLock();
 
     public SSTableLogFile(Path path) throws IOException {
-        this(path, DEFAULT_SPARSE_FACTOR);
+        this(path, new SSTableOptions());
     }
 
-    public SSTableLogFile(Path path, int sparseFactor) throws IOException {
+    public SSTableLogFile(Path path, SSTableOptions options) throws IOException {
         super(path);
-        this.sparseFactor = sparseFactor;
-        if (keyToOffset == null) {
-            keyToOffset = new TreeMap<>();
+        this.options = options;
+        if (rangeTombstones == null) {
+            rangeTombstones = List.of();
+        }
+        if (isLegacyFormat) {
+            migrateLegacyFormat();
+            keyValueReader.map();
+        } else if (hasUnflushedWal) {
+            recoverFromWal();
+            keyValueReader.map();
+        } else if (!isClosedOnWrite) {
+            wal = new WriteAheadLog(getWalPath(), options.getDurability(),
+                    options.getGroupCommitWindow().toNanos(), options.getGroupCommitBytes());
         }
     }
 
+    @Override
+    protected KeyValueWriter createWriter() {
+        // the whole file is written at once by closeOnWrite
+        return null;
+    }
+
+    @Override
+    protected KeyValueReader createReader() {
+        return new BlockKeyValueReader(getDataPath());
+    }
+
+    private BlockKeyValueReader getBlockReader() {
+        return (BlockKeyValueReader) keyValueReader;
+    }
+
+    @Override
+    public boolean mightContain(String key) {
+        // files written before filters were introduced have none
+        return !isClosedOnWrite || bloomFilter == null || bloomFilter.mightContain(key);
+    }
+
     @Override
     public KeyValueRecord get(String key) throws IOException {
+        // the memtable is dropped only after the flag is raised, so it has to be read first
+        var memTable = this.memTable;
         if (isClosedOnWrite) {
-            Map.Entry<String, Integer> floorEntry = keyToOffset.floorEntry(key);
-            if (floorEntry == null) {
+            long blockOffset = blockIndex.get().floorOffset(key);
+            if (blockOffset < 0) {
                 return null;
             }
-            Integer lowOffset = floorEntry.getValue();
-            KeyValueRecord record = keyValueReader.read(lowOffset);
-            while (record != null && record.getKey().compareTo(key) < 0) {
-                record = safeRead();
+            return readBlock(blockOffset).find(key);
+        }
+        String value = memTable.get(key);
+        if (value == null)
+            return null;
+        return new KeyValueRecord(key, value == TOMBSTONE ? null : value);
+    }
+
+    /**
+     * Keys that fall into one block of the sparse index are found with a single read of the block.
+     */
+    @Override
+    public Map<String, KeyValueRecord> getAll(SortedSet<String> keys) throws IOException {
+        if (!isClosedOnWrite)
+            return super.getAll(keys);
+        var records = new HashMap<String, KeyValueRecord>();
+        SortedIndex blockIndex = this.blockIndex.get();
+        Block block = null;
+        for (String key : keys) {
+            long blockOffset = blockIndex.floorOffset(key);
+            if (blockOffset < 0)
+                continue;
+            if (block == null || block.getOffset() != blockOffset)
+                block = readBlock(blockOffset);
+            KeyValueRecord record = block.find(key);
+            if (record != null)
+                records.put(key, record);
+        }
+        return records;
+    }
+
+    @Override
+    public boolean isRangeRemoved(String key) {
+        for (var tombstone : rangeTombstones) {
+            if (tombstone.covers(key))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads the records of an unwritten file from the memtable. Records of a written file are read block by block,
+     * starting with the block that the sparse index gives for {@code from}.
+     */
+    @Override
+    public PeekableIterator<KeyValueRecord> iterator(String from, String to, boolean isReverse) throws IOException {
+        // the memtable is dropped only after the flag is raised, so it has to be read first
+        var memTable = this.memTable;
+        if (!isClosedOnWrite) {
+            NavigableMap<String, String> range = memTable;
+            if (from != null)
+                range = range.tailMap(from, true);
+            if (to != null)
+                range = range.headMap(to, false);
+            if (isReverse)
+                range = range.descendingMap();
+            return PeekableIterator.of(range.entrySet().stream()
+                    .map(entry -> new KeyValueRecord(entry.getKey(), entry.getValue() == TOMBSTONE ? null : entry.getValue()))
+                    .iterator());
+        }
+        SortedIndex blockIndex = this.blockIndex.get();
+        int first = from == null ? 0 : Math.max(blockIndex.floorIndex(from), 0);
+        int last = to == null ? blockIndex.size() - 1 : blockIndex.lowerIndex(to);
+        var blockOffsets = IntStream.rangeClosed(first, last)
+                .map(i -> isReverse ? first + last - i : i)
+                .mapToObj(blockIndex::getOffset)
+                .iterator();
+        return PeekableIterator.of(new BlockRangeIterator(blockOffsets, from, to, isReverse));
+    }
+
+    private class BlockRangeIterator implements Iterator<KeyValueRecord> {
+        private final Iterator<Long> blockOffsets;
+        private final String from;
+        private final String to;
+        private final boolean isReverse;
+        private ListIterator<KeyValueRecord> records = Collections.emptyListIterator();
+        private KeyValueRecord next;
+
+        BlockRangeIterator(Iterator<Long> blockOffsets, String from, String to, boolean isReverse) {
+            this.blockOffsets = blockOffsets;
+            this.from = from;
+            this.to = to;
+            this.isReverse = isReverse;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null) {
+                if (isReverse ? records.hasPrevious() : records.hasNext()) {
+                    KeyValueRecord record = isReverse ? records.previous() : records.next();
+                    // the first and the last block may hold keys out of the range
+                    if ((from == null || record.getKey().compareTo(from) >= 0)
+                            && (to == null || record.getKey().compareTo(to) < 0))
+                        next = record;
+                } else if (blockOffsets.hasNext()) {
+                    try {
+                        List<KeyValueRecord> block = readBlock(blockOffsets.next()).getRecords();
+                        records = block.listIterator(isReverse ? block.size() : 0);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                } else {
+                    return false;
+                }
             }
-            if (record != null && key.equals(record.getKey()))
-                return record;
+            return true;
+        }
+
+        @Override
+        public KeyValueRecord next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            KeyValueRecord record = next;
+            next = null;
+            return record;
+        }
+    }
+
+    public List<RangeTombstone> getRangeTombstones() {
+        return rangeTombstones;
+    }
+
+    @Override
+    public String getFirstKey() throws IOException {
+        if (!isClosedOnWrite)
             return null;
+        SortedIndex blockIndex = this.blockIndex.get();
+        String firstKey = blockIndex.isEmpty() ? null : blockIndex.getKey(0);
+        for (var tombstone : rangeTombstones) {
+            if (firstKey == null || tombstone.from().compareTo(firstKey) < 0)
+                firstKey = tombstone.from();
         }
-        if (!memTable.containsKey(key))
+        return firstKey;
+    }
+
+    @Override
+    public String getLastKey() throws IOException {
+        if (!isClosedOnWrite)
             return null;
-        return new KeyValueRecord(key, memTable.get(key));
+        String lastKey = this.lastKey;
+        SortedIndex blockIndex = this.blockIndex.get();
+        if (lastKey == null && !blockIndex.isEmpty()) {
+            List<KeyValueRecord> records = readBlock(blockIndex.getOffset(blockIndex.size() - 1)).getRecords();
+            lastKey = records.get(records.size() - 1).getKey();
+            this.lastKey = lastKey;
+        }
+        for (var tombstone : rangeTombstones) {
+            if (lastKey == null || tombstone.to().compareTo(lastKey) > 0)
+                lastKey = tombstone.to();
+        }
+        return lastKey;
     }
 
     @Override
-    public void put(String key, String value) {
-        memTable.put(key, value);
-        sizeBytes += keyValueWriter.getRecordSize(key, value);
+    public int getRecordCount() {
+        return recordCount;
     }
 
     @Override
-    protected void restoreIndex() throws IOException {
-        keyToOffset = new TreeMap<>(Objects.requireNonNull(readIndex()));
+    public int getTombstoneCount() {
+        return tombstoneCount + rangeTombstones.size();
+    }
+
+    private Block readBlock(long offset) throws IOException {
+        BlockCache blockCache = options.getBlockCache();
+        if (blockCache == null)
+            return getBlockReader().readBlock(offset);
+        return blockCache.get(getVersion(), offset, getBlockReader()::readBlock);
+    }
+
+    @Override
+    public void delete() throws IOException {
+        if (wal != null && !isClosedOnWrite)
+            wal.close();
+        super.delete();
+        if (options.getBlockCache() != null)
+            options.getBlockCache().invalidate(getVersion());
+    }
+
+    @Override
+    public void put(String key, String value) throws IOException {
+        if (isClosedOnWrite)
+            throw new IllegalStateException(path + " is closed for writes");
+        long end;
+        writeLock.lock();
+        try {
+            end = wal.write(key, value);
+            memTable.put(key, value == null ? TOMBSTONE : value);
+        } finally {
+            writeLock.unlock();
+        }
+        sizeBytes.add(RecordCodec.getRecordSize(key, value));
+        wal.sync(end);
+    }
+
+    @Override
+    public void putAll(List<KeyValueRecord> records) throws IOException {
+        if (isClosedOnWrite)
+            throw new IllegalStateException(path + " is closed for writes");
+        long end;
+        long size = 0;
+        writeLock.lock();
+        try {
+            end = wal.writeBatch(records);
+            for (var record : records) {
+                memTable.put(record.getKey(), record.getValue() == null ? TOMBSTONE : record.getValue());
+                size += RecordCodec.getRecordSize(record.getKey(), record.getValue());
+            }
+        } finally {
+            writeLock.unlock();
+        }
+        sizeBytes.add(size);
+        wal.sync(end);
+    }
+
+    /**
+     * Writes the data file straight from the records, without the write-ahead log and the memtable. A crash before
+     * the file is published leaves a directory that the store deletes as not being in its manifest.
+     */
+    @Override
+    public void writeSorted(List<KeyValueRecord> records) throws IOException {
+        if (isClosedOnWrite || !memTable.isEmpty())
+            throw new IllegalStateException(path + " is not empty");
+        writeTable(records, getDataPath());
+        keyValueReader.map();
+        isClosedOnWrite = true;
+        memTable = null;
+        wal.close();
+        Files.delete(getWalPath());
+    }
+
+    /**
+     * Point records of this file that are in the range stay visible, records of older files are hidden.
+     */
+    @Override
+    public void removeRange(String from, String to) throws IOException {
+        if (isClosedOnWrite)
+            throw new IllegalStateException(path + " is closed for writes");
+        var tombstone = new RangeTombstone(from, to);
+        long end;
+        writeLock.lock();
+        try {
+            end = wal.writeRangeTombstone(tombstone);
+            applyRangeTombstone(tombstone);
+        } finally {
+            writeLock.unlock();
+        }
+        sizeBytes.add(RecordCodec.getRecordSize(from, to));
+        wal.sync(end);
+    }
+
+    private void applyRangeTombstone(RangeTombstone tombstone) {
+        // readers see either the removed records or the tombstone
+        addRangeTombstone(tombstone);
+        memTable.subMap(tombstone.from(), tombstone.to()).clear();
+    }
+
+    /**
+     * Adds a tombstone that hides records of older files only, used for the output of a merge.
+     */
+    synchronized void addRangeTombstone(RangeTombstone tombstone) {
+        var tombstones = new ArrayList<>(rangeTombstones);
+        tombstones.add(tombstone);
+        rangeTombstones = List.copyOf(tombstones);
     }
 
     @Override
-    public void dumpIndex() throws IOException {
-        dumpIndex(sparsify(getIndex(), sparseFactor));
+    protected void restoreIndex() throws IOException {
+        Path legacyDataPath = path.resolve(DATA_FILE_NAME);
+        if (!exists(getDataPath()) && exists(legacyDataPath)) {
+            // the index refers to records of the old data file, it is rebuilt by the migration
+            isLegacyFormat = true;
+            return;
+        }
+        if (!exists(getIndexPath()) && exists(getWalPath())) {
+            hasUnflushedWal = true;
+            return;
+        }
+        deleteIfExists(legacyDataPath);
+        deleteIfExists(getWalPath());
+        if (hasLegacyIndex()) {
+            LOG.info("rewriting index of " + path + " in binary format");
+            SortedIndex.write(getIndexPath(), new TreeMap<>(Objects.requireNonNull(readLegacyIndex())));
+        }
+        // the index is mapped and checked on first use
+        blockIndex = Lazy.of(() -> SortedIndex.read(getIndexPath()));
+        if (exists(getFilterPath()))
+            bloomFilter = BloomFilter.readFrom(getFilterPath());
+        if (exists(getTombstonesPath()))
+            readTombstones();
+    }
+
+    /**
+     * The tombstones file holds the number of records and tombstones, followed by the range tombstones and
+     * the checksum:
+     * <pre>
+     * int recordCount | int tombstoneCount | int rangeCount | (int length | range tombstone)* | int crc32c
+     * </pre>
+     * Files written before range tombstones were introduced have none, files written before checksums have no crc.
+     */
+    private void readTombstones() throws IOException {
+        var tombstones = readTombstones(getTombstonesPath());
+        recordCount = tombstones.recordCount();
+        tombstoneCount = tombstones.tombstoneCount();
+        rangeTombstones = tombstones.ranges();
+    }
+
+    private record Tombstones(int recordCount, int tombstoneCount, List<RangeTombstone> ranges) {
+    }
+
+    private static Tombstones readTombstones(Path path) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(readAllBytes(path));
+        try {
+            int recordCount = buffer.getInt();
+            int tombstoneCount = buffer.getInt();
+            var tombstones = new ArrayList<RangeTombstone>();
+            int rangeCount = buffer.hasRemaining() ? buffer.getInt() : 0;
+            for (int i = 0; i < rangeCount; i++) {
+                int length = buffer.getInt();
+                tombstones.add(RecordCodec.decodeRangeTombstone(buffer.slice(buffer.position(), length)));
+                buffer.position(buffer.position() + length);
+            }
+            if (buffer.remaining() == Integer.BYTES) {
+                var crc = new CRC32C();
+                crc.update(buffer.array(), 0, buffer.position());
+                if ((int) crc.getValue() != buffer.getInt())
+                    throw new IOException("checksum mismatch in " + path);
+            }
+            if (buffer.hasRemaining())
+                throw new IOException("unexpected bytes at the end of " + path);
+            return new Tombstones(recordCount, tombstoneCount, List.copyOf(tombstones));
+        } catch (RuntimeException e) {
+            throw new IOException("corrupted " + path, e);
+        }
     }
 
-    private Map<String, Integer> sparsify(Map<String, Integer> index, int sparseFactor) {
-        int i = 0;
-        var result = new TreeMap<String, Integer>();
-        for (var entry : index.entrySet()) {
-            if (i % sparseFactor == 0)
-                result.put(entry.getKey(), entry.getValue());
-            i++;
+    /**
+     * Reads every part of a file without opening it and returns what is corrupted, see {@link StoreVerifier}.
+     */
+    static List<String> verify(Path path) {
+        var problems = new ArrayList<String>();
+        StoreVerifier.check(problems, path.resolve(BLOCKS_FILE_NAME), blocksPath -> {
+            try (var reader = new BlockKeyValueReader(blocksPath)) {
+                var cursor = reader.cursor();
+                while (cursor.canRead())
+                    cursor.read();
+            }
+        });
+        Path indexPath = path.resolve(INDEX_FILE_NAME);
+        if (!exists(indexPath)) {
+            // the file is restored from its write-ahead log, which is checked as it is replayed
+            if (!exists(path.resolve(WAL_FILE_NAME)))
+                problems.add(indexPath + ": missing");
+            return problems;
+        }
+        StoreVerifier.check(problems, indexPath, SortedIndex::read);
+        Path filterPath = path.resolve(FILTER_FILE_NAME);
+        if (exists(filterPath))
+            StoreVerifier.check(problems, filterPath, BloomFilter::readFrom);
+        Path tombstonesPath = path.resolve(TOMBSTONES_FILE_NAME);
+        if (exists(tombstonesPath))
+            StoreVerifier.check(problems, tombstonesPath, SSTableLogFile::readTombstones);
+        return problems;
+    }
+
+    private void writeTombstones() throws IOException {
+        var bytes = new ByteArrayOutputStream();
+        var out = new DataOutputStream(bytes);
+        out.writeInt(recordCount);
+        out.writeInt(tombstoneCount);
+        out.writeInt(rangeTombstones.size());
+        for (var tombstone : rangeTombstones) {
+            byte[] encoded = RecordCodec.encodeRangeTombstone(tombstone);
+            out.writeInt(encoded.length);
+            out.write(encoded);
         }
-        return result;
+        var crc = new CRC32C();
+        crc.update(bytes.toByteArray());
+        out.writeInt((int) crc.getValue());
+        write(getTombstonesPath(), bytes.toByteArray());
+    }
+
+    private void migrateLegacyFormat() throws IOException {
+        LOG.info("migrating " + path + " to block format");
+        Path legacyDataPath = path.resolve(DATA_FILE_NAME);
+        var records = new ArrayList<KeyValueRecord>();
+        try (var legacyReader = new KeyValueReader(legacyDataPath)) {
+            var cursor = legacyReader.cursor();
+            while (cursor.canRead())
+                records.add(cursor.read());
+        }
+        Path tmpPath = path.resolve(BLOCKS_FILE_NAME + ".tmp");
+        writeTable(records, tmpPath);
+        move(tmpPath, getDataPath(), ATOMIC_MOVE);
+        syncDirectory(path);
+        Files.delete(legacyDataPath);
+        isLegacyFormat = false;
+    }
+
+    private void recoverFromWal() throws IOException {
+        LOG.info("restoring " + path + " from write-ahead log");
+        WriteAheadLog.replay(getWalPath(), new WriteAheadLog.Replayer() {
+            @Override
+            public void put(String key, String value) {
+                memTable.put(key, value == null ? TOMBSTONE : value);
+            }
+
+            @Override
+            public void removeRange(RangeTombstone tombstone) {
+                applyRangeTombstone(tombstone);
+            }
+        });
+        writeMemTable();
+        Files.delete(getWalPath());
+    }
+
+    @Override
+    protected Path getDataPath() {
+        return path.resolve(BLOCKS_FILE_NAME);
+    }
+
+    Path getWalPath() {
+        return path.resolve(WAL_FILE_NAME);
+    }
+
+    Path getTombstonesPath() {
+        return path.resolve(TOMBSTONES_FILE_NAME);
+    }
+
+    Path getFilterPath() {
+        return path.resolve(FILTER_FILE_NAME);
+    }
+
+    SortedIndex getBlockIndex() throws IOException {
+        return blockIndex.get();
     }
 
     @Override
-    protected Map<String, Integer> getIndex() {
-        return keyToOffset;
+    protected void dumpIndex() {
+        // the index is written along with the data blocks
     }
 
     @Override
     public void closeOnWrite() throws IOException {
         if (isClosedOnWrite)
             return;
-        for (var entry : memTable.entrySet())
-            super.put(entry.getKey(), entry.getValue());
-        dumpIndex();
-        keyValueWriter.close();
+        writeMemTable();
+        keyValueReader.map();
         isClosedOnWrite = true;
+        memTable = null;
+        wal.close();
+        Files.delete(getWalPath());
+    }
+
+    private void writeMemTable() throws IOException {
+        var records = new ArrayList<KeyValueRecord>(memTable.size());
+        for (var entry : memTable.entrySet()) {
+            String value = entry.getValue();
+            records.add(new KeyValueRecord(entry.getKey(), value == TOMBSTONE ? null : value));
+        }
+        writeTable(records, getDataPath());
+    }
+
+    private void writeTable(List<KeyValueRecord> records, Path dataPath) throws IOException {
+        var filter = new BloomFilter(records.size(), options.getFalsePositiveRate());
+        var writer = new BlockWriter(dataPath, options.getBlockSize(), options.getCompression(), getRateLimiter());
+        int tombstoneCount = 0;
+        try (writer) {
+            for (var record : records) {
+                writer.write(record.getKey(), record.getValue());
+                filter.add(record.getKey());
+                if (record.getValue() == null)
+                    tombstoneCount++;
+            }
+        }
+        recordCount = records.size();
+        this.tombstoneCount = tombstoneCount;
+        writeTombstones();
+        filter.writeTo(getFilterPath());
+        bloomFilter = filter;
+        // the table has to be on disk before the write-ahead log is deleted
+        force(dataPath);
+        force(getTombstonesPath());
+        force(getFilterPath());
+        // written last and synced with the directory, a file with an index is complete
+        SortedIndex.write(getIndexPath(), writer.getBlockIndex());
+        blockIndex = Lazy.value(SortedIndex.read(getIndexPath()));
     }
 
     @Override
-    public long getSize() {
-        return sizeBytes;
+    public long getSize() throws IOException {
+        return isClosedOnWrite ? size(getDataPath()) : sizeBytes.sum();
     }
 }
@@ -1,62 +1,254 @@
 package ru.golchin.key_value_store;
 
 import ru.golchin.key_value_store.io.KeyValueRecord;
+import ru.golchin.key_value_store.io.RangeTombstone;
+import ru.golchin.key_value_store.io.RateLimiter;
+import ru.golchin.key_value_store.io.RecordCodec;
+import ru.golchin.key_value_store.io.SortedIndex;
+import ru.golchin.util.MergingIterator;
 import ru.golchin.util.PeekableIterator;
+import ru.golchin.util.ThrowingSupplier;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.BiPredicate;
 
+import static java.util.Comparator.comparing;
 import static java.util.stream.Collectors.toList;
+import static ru.golchin.util.Util.getResult;
 
 public class SSTableMergeFunction implements MergeFunction<SSTableLogFile> {
     public static final SSTableMergeFunction INSTANCE = new SSTableMergeFunction();
 
-    KeyValueRecord ceilingRecord(PeekableIterator<KeyValueRecord> logFileIterator, String key) {
-        KeyValueRecord record = logFileIterator.peek();
-        if (key == null || record == null) {
-            return record;
+    @Override
+    public void merge(List<SSTableLogFile> files, SSTableLogFile newFile) throws IOException {
+        merge(files, () -> newFile, Long.MAX_VALUE, (first, last) -> false);
+    }
+
+    @Override
+    public List<SSTableLogFile> merge(List<SSTableLogFile> files, ThrowingSupplier<SSTableLogFile, IOException> newFiles,
+                                      long maxFileSize, BiPredicate<String, String> canDropTombstone) throws IOException {
+        return merge(files, newFiles, maxFileSize, canDropTombstone, MergeContext.SEQUENTIAL);
+    }
+
+    /**
+     * Splits the keys at the first keys of blocks of the files, so that every range covers about the same number
+     * of blocks. Ranges that end up without records and tombstones write no file.
+     */
+    @Override
+    public List<SSTableLogFile> merge(List<SSTableLogFile> files, ThrowingSupplier<SSTableLogFile, IOException> newFiles,
+                                      long maxFileSize, BiPredicate<String, String> canDropTombstone,
+                                      MergeContext context) throws IOException {
+        var rangeTombstones = new ArrayList<RangeTombstone>();
+        for (var file : files)
+            rangeTombstones.addAll(file.getRangeTombstones());
+        List<RangeTombstone> remainingTombstones = RangeTombstone.union(rangeTombstones).stream()
+                .filter(tombstone -> !canDropTombstone.test(tombstone.from(), tombstone.to()))
+                .collect(toList());
+        ExecutorService executor = context.executor();
+        List<String> boundaries = executor == null ? List.of() : getBoundaries(files, context.subcompactions());
+        if (boundaries.isEmpty()) {
+            var written = new ArrayList<SSTableLogFile>();
+            try {
+                mergeRange(files, null, null, newFiles, maxFileSize, canDropTombstone, remainingTombstones,
+                        context.rateLimiter(), written);
+                if (written.isEmpty())
+                    closeOutput(newFiles, written, List.of(), remainingTombstones, null, null);
+            } catch (IOException | RuntimeException e) {
+                deleteOutputs(written, e);
+                throw e;
+            }
+            return written;
+        }
+        // a range adds every file to its list as soon as it's created, so partial outputs are known too
+        var outputs = new ArrayList<List<SSTableLogFile>>();
+        var futures = new ArrayList<Future<?>>();
+        for (int i = 0; i <= boundaries.size(); i++) {
+            String from = i == 0 ? null : boundaries.get(i - 1);
+            String to = i == boundaries.size() ? null : boundaries.get(i);
+            var rangeOutputs = new ArrayList<SSTableLogFile>();
+            outputs.add(rangeOutputs);
+            futures.add(executor.submit(() -> {
+                mergeRange(files, from, to, newFiles, maxFileSize, canDropTombstone, remainingTombstones,
+                        context.rateLimiter(), rangeOutputs);
+                return null;
+            }));
         }
-        var found = false;
-        while (!found) {
-            if (record == null || record.getKey().compareTo(key) > 0)
-                found = true;
-            else if (logFileIterator.hasNext())
-                record = logFileIterator.next();
-            else {
-                return record.getKey().compareTo(key) > 0 ? record : null;
+        // every range is waited for, so that no output is still being written when the merge fails
+        IOException failure = null;
+        for (var future : futures) {
+            try {
+                getResult(future);
+            } catch (IOException | RuntimeException e) {
+                if (failure == null)
+                    failure = e instanceof IOException ? (IOException) e : new IOException(e);
+                else
+                    failure.addSuppressed(e);
             }
         }
-        return record;
+        var written = new ArrayList<SSTableLogFile>();
+        for (var rangeOutputs : outputs)
+            written.addAll(rangeOutputs);
+        try {
+            if (failure != null)
+                throw failure;
+            if (written.isEmpty())
+                closeOutput(newFiles, written, List.of(), remainingTombstones, null, null);
+        } catch (IOException | RuntimeException e) {
+            deleteOutputs(written, e);
+            throw e;
+        }
+        return written;
     }
 
-    @Override
-    public void merge(List<SSTableLogFile> files, SSTableLogFile newFile) throws IOException {
-        String lastWrittenKey = null;
-        List<PeekableIterator<KeyValueRecord>> records = files.stream()
-                .map(LogFile::iterator).collect(toList());
-        KeyValueRecord minKeyRecord;
-        do {
-            minKeyRecord = null;
-            for (int i = 0; i < files.size(); i++) {
-                PeekableIterator<KeyValueRecord> peekableIterator = records.get(i);
-                KeyValueRecord curRecord = ceilingRecord(peekableIterator, lastWrittenKey);
-                if (curRecord != null) {
-                    if (minKeyRecord == null) {
-                        minKeyRecord = curRecord;
-                    } else {
-                        var minKey = minKeyRecord.getKey();
-                        var curKey = curRecord.getKey();
-                        if (curKey.compareTo(minKey) <= 0) {
-                            minKeyRecord = curRecord;
-                        }
-                    }
-                }
+    /**
+     * Deletes the files that a failed merge has created, finished or not. Failures to delete are added to
+     * the merge's failure.
+     */
+    private static void deleteOutputs(List<SSTableLogFile> outputs, Exception failure) {
+        for (var file : outputs) {
+            try {
+                file.delete();
+            } catch (IOException | RuntimeException e) {
+                failure.addSuppressed(e);
             }
-            if (minKeyRecord != null) {
-                newFile.put(minKeyRecord.getKey(), minKeyRecord.getValue());
-                lastWrittenKey = minKeyRecord.getKey();
+        }
+    }
+
+    /**
+     * Up to {@code subcompactions - 1} keys that split the blocks of the files into ranges of about the same size.
+     */
+    static List<String> getBoundaries(List<SSTableLogFile> files, int subcompactions) throws IOException {
+        if (subcompactions <= 1)
+            return List.of();
+        var keys = new ArrayList<String>();
+        for (var file : files) {
+            if (!file.isClosedOnWrite())
+                continue;
+            SortedIndex blockIndex = file.getBlockIndex();
+            for (int i = 1; i < blockIndex.size(); i++)
+                keys.add(blockIndex.getKey(i));
+        }
+        keys.sort(null);
+        var boundaries = new TreeSet<String>();
+        for (int i = 1; i < subcompactions; i++) {
+            if (!keys.isEmpty())
+                boundaries.add(keys.get((int) ((long) i * keys.size() / subcompactions)));
+        }
+        return new ArrayList<>(boundaries);
+    }
+
+    /**
+     * Merges the records with keys in [from, to), a null bound means no bound.
+     */
+    private static void mergeRange(List<SSTableLogFile> files, String from, String to,
+                                   ThrowingSupplier<SSTableLogFile, IOException> newFiles, long maxFileSize,
+                                   BiPredicate<String, String> canDropTombstone,
+                                   List<RangeTombstone> remainingTombstones, RateLimiter rateLimiter,
+                                   List<SSTableLogFile> written) throws IOException {
+        // files are ordered by age, so the newest record of a key wins
+        var iterators = new ArrayList<PeekableIterator<KeyValueRecord>>();
+        for (var file : files) {
+            PeekableIterator<KeyValueRecord> iterator = file.iterator(from, to, false);
+            iterators.add(rateLimiter == null ? iterator : new RateLimitedIterator(iterator, rateLimiter));
+        }
+        var records = new MergingIterator<>(iterators, comparing(KeyValueRecord::getKey));
+        // outputs are written straight from a buffer, they need neither a memtable nor a write-ahead log
+        var output = new ArrayList<KeyValueRecord>();
+        long outputSize = 0;
+        String lowerBound = from;
+        while (records.hasNext()) {
+            KeyValueRecord record = records.next();
+            if (isRangeRemoved(files, records.getLastSourceIndex(), record.getKey()))
+                continue;
+            if (record.getValue() == null && canDropTombstone.test(record.getKey(), record.getKey()))
+                continue;
+            // every key occurs once in the merged records, so output files never overlap
+            if (outputSize >= maxFileSize) {
+                closeOutput(newFiles, written, output, remainingTombstones, lowerBound, record.getKey());
+                lowerBound = record.getKey();
+                output = new ArrayList<>();
+                outputSize = 0;
             }
-        } while (minKeyRecord != null);
-        newFile.closeOnWrite();
+            output.add(record);
+            outputSize += RecordCodec.getRecordSize(record.getKey(), record.getValue());
+        }
+        if (!output.isEmpty() || hasTombstones(remainingTombstones, lowerBound, to))
+            closeOutput(newFiles, written, output, remainingTombstones, lowerBound, to);
+    }
+
+    private static boolean isRangeRemoved(List<SSTableLogFile> files, int source, String key) {
+        for (int i = source + 1; i < files.size(); i++) {
+            if (files.get(i).isRangeRemoved(key))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Takes the tokens for the records as they are read, in batches of {@link #BATCH_SIZE} bytes.
+     */
+    private static class RateLimitedIterator implements PeekableIterator<KeyValueRecord> {
+        private static final int BATCH_SIZE = 4096;
+        private final PeekableIterator<KeyValueRecord> iterator;
+        private final RateLimiter rateLimiter;
+        private long readBytes;
+
+        RateLimitedIterator(PeekableIterator<KeyValueRecord> iterator, RateLimiter rateLimiter) {
+            this.iterator = iterator;
+            this.rateLimiter = rateLimiter;
+        }
+
+        @Override
+        public KeyValueRecord peek() {
+            return iterator.peek();
+        }
+
+        @Override
+        public boolean hasNext() {
+            return iterator.hasNext();
+        }
+
+        @Override
+        public KeyValueRecord next() {
+            KeyValueRecord record = iterator.next();
+            readBytes += RecordCodec.getRecordSize(record.getKey(), record.getValue());
+            if (readBytes >= BATCH_SIZE || !iterator.hasNext()) {
+                try {
+                    rateLimiter.acquire(readBytes);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+                readBytes = 0;
+            }
+            return record;
+        }
+    }
+
+    private static boolean hasTombstones(List<RangeTombstone> tombstones, String lowerBound, String upperBound) {
+        return tombstones.stream().anyMatch(tombstone -> tombstone.clip(lowerBound, upperBound) != null);
+    }
+
+    /**
+     * Writes the records to a new file and gives it the part of the range tombstones between its first key and
+     * the first key of the next file, so that the tombstones of output files don't overlap either.
+     */
+    private static void closeOutput(ThrowingSupplier<SSTableLogFile, IOException> newFiles,
+                                    List<SSTableLogFile> written, List<KeyValueRecord> records,
+                                    List<RangeTombstone> tombstones, String lowerBound, String upperBound)
+            throws IOException {
+        SSTableLogFile file = newFiles.get();
+        written.add(file);
+        for (var tombstone : tombstones) {
+            RangeTombstone clipped = tombstone.clip(lowerBound, upperBound);
+            if (clipped != null)
+                file.addRangeTombstone(clipped);
+        }
+        file.writeSorted(records);
     }
 }
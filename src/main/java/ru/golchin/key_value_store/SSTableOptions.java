@@ -0,0 +1,96 @@
+package ru.golchin.key_value_store;
+
+import ru.golchin.key_value_store.io.BlockCache;
+import ru.golchin.key_value_store.io.Compression;
+import ru.golchin.key_value_store.io.Durability;
+
+import java.time.Duration;
+
+public class SSTableOptions {
+    public static final int DEFAULT_BLOCK_SIZE = 4 * 1024;
+    public static final double DEFAULT_FALSE_POSITIVE_RATE = 0.01;
+    private int blockSize = DEFAULT_BLOCK_SIZE;
+    private Compression compression = Compression.NONE;
+    private double falsePositiveRate = DEFAULT_FALSE_POSITIVE_RATE;
+    private BlockCache blockCache;
+    private Durability durability = Durability.ASYNC;
+    private Duration groupCommitWindow = Duration.ofMillis(2);
+    private long groupCommitBytes = 64 * 1024;
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    /**
+     * Raw size after which a data block is closed.
+     */
+    public SSTableOptions blockSize(int blockSize) {
+        if (blockSize <= 0)
+            throw new IllegalArgumentException("block size must be positive: " + blockSize);
+        this.blockSize = blockSize;
+        return this;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public SSTableOptions compression(Compression compression) {
+        this.compression = compression;
+        return this;
+    }
+
+    public double getFalsePositiveRate() {
+        return falsePositiveRate;
+    }
+
+    /**
+     * False positive rate of the Bloom filter built for every file.
+     */
+    public SSTableOptions falsePositiveRate(double falsePositiveRate) {
+        this.falsePositiveRate = falsePositiveRate;
+        return this;
+    }
+
+    public BlockCache getBlockCache() {
+        return blockCache;
+    }
+
+    /**
+     * Cache of decoded blocks, pass the same options to all files of a store to share it. No caching if null.
+     */
+    public SSTableOptions blockCache(BlockCache blockCache) {
+        this.blockCache = blockCache;
+        return this;
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    /**
+     * When writes to the write-ahead log of the memtable are synced.
+     */
+    public SSTableOptions durability(Durability durability) {
+        this.durability = durability;
+        return this;
+    }
+
+    public Duration getGroupCommitWindow() {
+        return groupCommitWindow;
+    }
+
+    public long getGroupCommitBytes() {
+        return groupCommitBytes;
+    }
+
+    /**
+     * With {@link Durability#GROUP_COMMIT} the log is synced once the oldest unsynced write waits for {@code window}
+     * or {@code bytes} are waiting to be synced, whichever comes first.
+     */
+    public SSTableOptions groupCommit(Duration window, long bytes) {
+        this.groupCommitWindow = window;
+        this.groupCommitBytes = bytes;
+        return this;
+    }
+}
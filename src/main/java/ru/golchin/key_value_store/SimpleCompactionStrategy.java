@@ -0,0 +1,23 @@
+package ru.golchin.key_value_store;
+
+import java.util.List;
+import java.util.NavigableMap;
+
+import static java.util.stream.Collectors.toList;
+
+/**
+ * Merges up to {@link KeyValueStoreImpl#MAX_FILES_TO_COMPACT} oldest files of level 0 into one file of level 1.
+ * Files of level 1 are never compacted again, so their number grows with the amount of written data.
+ */
+public class SimpleCompactionStrategy implements CompactionStrategy {
+    @Override
+    public Compaction pick(NavigableMap<FileMetadata, ? extends LogFile> files) {
+        List<FileMetadata> inputs = files.descendingKeySet().stream()
+                .filter(metadata -> metadata.level() == 0)
+                .limit(KeyValueStoreImpl.MAX_FILES_TO_COMPACT)
+                .collect(toList());
+        if (inputs.size() < 2)
+            return null;
+        return new Compaction(inputs, 1, Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,98 @@
+package ru.golchin.key_value_store;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+
+/**
+ * Size-tiered compaction, trades read amplification for less rewriting than {@link LeveledCompactionStrategy}.
+ * <p>
+ * Files of level 0 are grouped into buckets of files of similar size: a file joins the bucket of the previous file
+ * if its size is within [{@code bucketLow}, {@code bucketHigh}] of the bucket's average size, or if both are smaller
+ * than {@code minFileSize}. A bucket with at least {@code minThreshold} files is merged into one file of level 0;
+ * if there are several such buckets, the one with the smallest files goes first.
+ * <p>
+ * Only files of adjacent age are put into a bucket, so a merged file can take the place of its inputs
+ * without hiding newer records of a file that was left out. Files of other levels are not touched.
+ */
+public class SizeTieredCompactionStrategy implements CompactionStrategy {
+    public static final double DEFAULT_BUCKET_LOW = 0.5;
+    public static final double DEFAULT_BUCKET_HIGH = 1.5;
+    public static final int DEFAULT_MIN_THRESHOLD = 4;
+    public static final int DEFAULT_MAX_THRESHOLD = 32;
+    public static final long DEFAULT_MIN_FILE_SIZE = 4 * 1024;
+    private double bucketLow = DEFAULT_BUCKET_LOW;
+    private double bucketHigh = DEFAULT_BUCKET_HIGH;
+    private int minThreshold = DEFAULT_MIN_THRESHOLD;
+    private int maxThreshold = DEFAULT_MAX_THRESHOLD;
+    private long minFileSize = DEFAULT_MIN_FILE_SIZE;
+
+    public SizeTieredCompactionStrategy bucket(double bucketLow, double bucketHigh) {
+        if (bucketLow <= 0 || bucketLow > 1 || bucketHigh < 1)
+            throw new IllegalArgumentException("expected 0 < low <= 1 <= high: " + bucketLow + ", " + bucketHigh);
+        this.bucketLow = bucketLow;
+        this.bucketHigh = bucketHigh;
+        return this;
+    }
+
+    /**
+     * Minimum and maximum number of files merged at once.
+     */
+    public SizeTieredCompactionStrategy threshold(int minThreshold, int maxThreshold) {
+        if (minThreshold < 2 || maxThreshold < minThreshold)
+            throw new IllegalArgumentException("expected 2 <= min <= max: " + minThreshold + ", " + maxThreshold);
+        this.minThreshold = minThreshold;
+        this.maxThreshold = maxThreshold;
+        return this;
+    }
+
+    /**
+     * Files smaller than this are put into one bucket regardless of their sizes.
+     */
+    public SizeTieredCompactionStrategy minFileSize(long minFileSize) {
+        this.minFileSize = minFileSize;
+        return this;
+    }
+
+    @Override
+    public Compaction pick(NavigableMap<FileMetadata, ? extends LogFile> files) throws IOException {
+        List<FileMetadata> best = null;
+        double bestAverage = Double.MAX_VALUE;
+        var bucket = new ArrayList<FileMetadata>();
+        long bucketSize = 0;
+        // from the oldest file to the newest one
+        for (Map.Entry<FileMetadata, ? extends LogFile> entry : files.descendingMap().entrySet()) {
+            if (entry.getKey().level() != 0)
+                continue;
+            long size = entry.getValue().getSize();
+            double average = bucket.isEmpty() ? 0 : (double) bucketSize / bucket.size();
+            boolean isSimilar = !bucket.isEmpty() && (size >= average * bucketLow && size <= average * bucketHigh
+                    || size < minFileSize && average < minFileSize);
+            if (!isSimilar) {
+                if (bucket.size() >= minThreshold && average < bestAverage) {
+                    best = bucket;
+                    bestAverage = average;
+                }
+                bucket = new ArrayList<>();
+                bucketSize = 0;
+            }
+            bucket.add(entry.getKey());
+            bucketSize += size;
+            if (bucket.size() == maxThreshold) {
+                // a full bucket is merged as is, the following files start a new one
+                average = (double) bucketSize / bucket.size();
+                if (average < bestAverage) {
+                    best = bucket;
+                    bestAverage = average;
+                }
+                bucket = new ArrayList<>();
+                bucketSize = 0;
+            }
+        }
+        if (bucket.size() >= minThreshold && (double) bucketSize / bucket.size() < bestAverage)
+            best = bucket;
+        return best == null ? null : new Compaction(best, 0, Long.MAX_VALUE);
+    }
+}
@@ -0,0 +1,134 @@
+package ru.golchin.key_value_store;
+
+import ru.golchin.key_value_store.io.RateLimiter;
+
+import java.util.Objects;
+
+public class StoreOptions {
+    public static final int DEFAULT_MAX_IMMUTABLE_MEM_TABLES = 2;
+    public static final double DEFAULT_TOMBSTONE_COMPACTION_RATIO = 0.3;
+    public static final int DEFAULT_LOOKUP_THREADS = Runtime.getRuntime().availableProcessors();
+    public static final int DEFAULT_OPEN_THREADS = Runtime.getRuntime().availableProcessors();
+    private int maxImmutableMemTables = DEFAULT_MAX_IMMUTABLE_MEM_TABLES;
+    private CompactionStrategy compactionStrategy = new SimpleCompactionStrategy();
+    private double tombstoneCompactionRatio = DEFAULT_TOMBSTONE_COMPACTION_RATIO;
+    private int lookupThreads = DEFAULT_LOOKUP_THREADS;
+    private int openThreads = DEFAULT_OPEN_THREADS;
+    private int compactionThreads = 1;
+    private int subcompactions = 1;
+    private RateLimiter rateLimiter;
+
+    public int getMaxImmutableMemTables() {
+        return maxImmutableMemTables;
+    }
+
+    /**
+     * Number of rotated files that may wait for the background flush, a rotation blocks writers while
+     * the limit is reached.
+     */
+    public StoreOptions maxImmutableMemTables(int maxImmutableMemTables) {
+        if (maxImmutableMemTables <= 0)
+            throw new IllegalArgumentException("at least one immutable memtable is required: " + maxImmutableMemTables);
+        this.maxImmutableMemTables = maxImmutableMemTables;
+        return this;
+    }
+
+    public CompactionStrategy getCompactionStrategy() {
+        return compactionStrategy;
+    }
+
+    /**
+     * Strategy of the background compaction, {@link SimpleCompactionStrategy} by default.
+     */
+    public StoreOptions compactionStrategy(CompactionStrategy compactionStrategy) {
+        this.compactionStrategy = Objects.requireNonNull(compactionStrategy);
+        return this;
+    }
+
+    public double getTombstoneCompactionRatio() {
+        return tombstoneCompactionRatio;
+    }
+
+    /**
+     * Number of tombstones per record after which a file is compacted on its own to drop them,
+     * once nothing older is left for them to hide.
+     */
+    public StoreOptions tombstoneCompactionRatio(double tombstoneCompactionRatio) {
+        if (tombstoneCompactionRatio <= 0)
+            throw new IllegalArgumentException("tombstone ratio must be positive: " + tombstoneCompactionRatio);
+        this.tombstoneCompactionRatio = tombstoneCompactionRatio;
+        return this;
+    }
+
+    public int getLookupThreads() {
+        return lookupThreads;
+    }
+
+    /**
+     * Number of threads that look keys of a multi-get up in different files at once.
+     */
+    public StoreOptions lookupThreads(int lookupThreads) {
+        if (lookupThreads <= 0)
+            throw new IllegalArgumentException("at least one lookup thread is required: " + lookupThreads);
+        this.lookupThreads = lookupThreads;
+        return this;
+    }
+
+    public int getOpenThreads() {
+        return openThreads;
+    }
+
+    /**
+     * Number of threads that open the files of the store when it starts.
+     */
+    public StoreOptions openThreads(int openThreads) {
+        if (openThreads <= 0)
+            throw new IllegalArgumentException("at least one open thread is required: " + openThreads);
+        this.openThreads = openThreads;
+        return this;
+    }
+
+    public int getCompactionThreads() {
+        return compactionThreads;
+    }
+
+    /**
+     * Number of compactions that may run at once, compactions run concurrently only if the key ranges of their
+     * inputs don't overlap.
+     */
+    public StoreOptions compactionThreads(int compactionThreads) {
+        if (compactionThreads <= 0)
+            throw new IllegalArgumentException("at least one compaction thread is required: " + compactionThreads);
+        this.compactionThreads = compactionThreads;
+        return this;
+    }
+
+    public int getSubcompactions() {
+        return subcompactions;
+    }
+
+    /**
+     * Number of disjoint key ranges that a compaction is split into, the ranges are merged in parallel
+     * into files of their own. A merge function that can't split its input ignores it.
+     */
+    public StoreOptions subcompactions(int subcompactions) {
+        if (subcompactions <= 0)
+            throw new IllegalArgumentException("at least one subcompaction is required: " + subcompactions);
+        this.subcompactions = subcompactions;
+        return this;
+    }
+
+    public RateLimiter getRateLimiter() {
+        return rateLimiter;
+    }
+
+    /**
+     * Limits the bytes per second that flushes and compactions write and compactions read, shared by all
+     * background jobs of the store. Lookups, batch lookups and scans report their latency to it, so that
+     * an adaptive limiter backs off when they slow down. Background I/O is not limited by default.
+     */
+    public StoreOptions rateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+        return this;
+    }
+}
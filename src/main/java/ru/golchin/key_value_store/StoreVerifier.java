@@ -0,0 +1,85 @@
+package ru.golchin.key_value_store;
+
+import ru.golchin.util.ThrowingConsumer;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.stream.Stream;
+
+import static java.nio.file.Files.exists;
+
+/**
+ * Checks a store directory without opening the store: every record, data block, index, filter, tombstones file and
+ * the manifest are read and checked against their checksums. Files are checked in parallel and nothing is written,
+ * so neither write-ahead logs are replayed nor torn tails are cut off.
+ * <p>
+ * Usage: {@code StoreVerifier <directory> [threads]}, the exit status is 1 if anything is corrupted.
+ */
+public final class StoreVerifier {
+    private StoreVerifier() {
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("usage: StoreVerifier <directory> [threads]");
+            System.exit(2);
+        }
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+        List<String> problems = verify(Path.of(args[0]), threads);
+        problems.forEach(System.out::println);
+        System.out.println(problems.isEmpty() ? "no corruption found" : problems.size() + " problems found");
+        System.exit(problems.isEmpty() ? 0 : 1);
+    }
+
+    /**
+     * Returns a description of every corrupted part of the store, an empty list if there is none.
+     */
+    public static List<String> verify(Path directory, int threads) throws IOException, InterruptedException {
+        var problems = new ArrayList<String>();
+        Path manifestPath = directory.resolve(Manifest.FILE_NAME);
+        if (exists(manifestPath))
+            check(problems, manifestPath, p -> new Manifest(directory));
+        List<Path> files;
+        try (Stream<Path> paths = Files.list(directory)) {
+            files = paths.filter(Files::isDirectory).sorted().toList();
+        }
+        var pool = Executors.newFixedThreadPool(threads);
+        try {
+            var results = new ArrayList<Future<List<String>>>();
+            for (Path path : files)
+                results.add(pool.submit(() -> verifyFile(path)));
+            for (var result : results)
+                problems.addAll(result.get());
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e.getCause());
+        } finally {
+            pool.shutdown();
+        }
+        Collections.sort(problems);
+        return problems;
+    }
+
+    private static List<String> verifyFile(Path path) {
+        if (exists(path.resolve(SSTableLogFile.BLOCKS_FILE_NAME)))
+            return SSTableLogFile.verify(path);
+        return HashIndexLogFile.verify(path);
+    }
+
+    /**
+     * Runs a check of a part of a file and records why it fails, if it does.
+     */
+    static void check(List<String> problems, Path path, ThrowingConsumer<Path, IOException> check) {
+        try {
+            check.accept(path);
+        } catch (IOException | RuntimeException e) {
+            problems.add(path + ": " + e);
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package ru.golchin.key_value_store;
+
+import org.jetbrains.annotations.NotNull;
+import ru.golchin.key_value_store.io.KeyValueRecord;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Puts and removes that {@link KeyValueStoreImpl#write(WriteBatch)} applies together: they go to one file
+ * with a single size check, and an SSTable logs them as one write-ahead log entry, so after a crash either all of
+ * them or none are restored. Later changes of a key in the batch win over earlier ones.
+ */
+public class WriteBatch {
+    private final List<KeyValueRecord> records = new ArrayList<>();
+
+    public WriteBatch put(@NotNull String key, @NotNull String value) {
+        records.add(new KeyValueRecord(Objects.requireNonNull(key), Objects.requireNonNull(value)));
+        return this;
+    }
+
+    public WriteBatch remove(@NotNull String key) {
+        records.add(new KeyValueRecord(Objects.requireNonNull(key), null));
+        return this;
+    }
+
+    public int size() {
+        return records.size();
+    }
+
+    List<KeyValueRecord> getRecords() {
+        return Collections.unmodifiableList(records);
+    }
+}
@@ -0,0 +1,67 @@
+package ru.golchin.key_value_store.io;
+
+import java.util.List;
+
+/**
+ * Decoded data block of an sstable: sorted records stored at {@code offset}, taking {@code length} bytes on disk
+ * including the header.
+ */
+public class Block {
+    private final long offset;
+    private final int length;
+    private final List<KeyValueRecord> records;
+    private final long weight;
+
+    public Block(long offset, int length, List<KeyValueRecord> records) {
+        this.offset = offset;
+        this.length = length;
+        this.records = records;
+        long weight = 64;
+        for (var record : records) {
+            // two strings, the record and a slot in the list
+            weight += 96 + 2L * record.getKey().length();
+            if (record.getValue() != null)
+                weight += 2L * record.getValue().length();
+        }
+        this.weight = weight;
+    }
+
+    public long getOffset() {
+        return offset;
+    }
+
+    public int getLength() {
+        return length;
+    }
+
+    public long getNextOffset() {
+        return offset + length;
+    }
+
+    /**
+     * Estimated heap size of the decoded block.
+     */
+    public long getWeight() {
+        return weight;
+    }
+
+    public List<KeyValueRecord> getRecords() {
+        return records;
+    }
+
+    public KeyValueRecord find(String key) {
+        int low = 0;
+        int high = records.size() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int cmp = records.get(mid).getKey().compareTo(key);
+            if (cmp < 0)
+                low = mid + 1;
+            else if (cmp > 0)
+                high = mid - 1;
+            else
+                return records.get(mid);
+        }
+        return null;
+    }
+}
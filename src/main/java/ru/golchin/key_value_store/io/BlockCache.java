@@ -0,0 +1,139 @@
+package ru.golchin.key_value_store.io;
+
+import ru.golchin.util.ThrowingFunction;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Cache of decoded data blocks shared by the files of a store, bounded by the estimated heap size of the blocks.
+ * Blocks are identified by the version of their file and their offset, so one cache must not be shared
+ * between stores.
+ * <p>
+ * Eviction is segmented LRU: a block enters the probation segment and is moved to the protected segment when it is
+ * hit again, so a scan that touches every block once only evicts blocks from the probation segment.
+ */
+public class BlockCache {
+    private static final double PROTECTED_SHARE = 0.8;
+    private final long capacityBytes;
+    private final long protectedCapacityBytes;
+    private final LinkedHashMap<Key, Block> probation = new LinkedHashMap<>(16, 0.75f, true);
+    private final LinkedHashMap<Key, Block> protectedSegment = new LinkedHashMap<>(16, 0.75f, true);
+    private long probationBytes;
+    private long protectedBytes;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    public BlockCache(long capacityBytes) {
+        if (capacityBytes <= 0)
+            throw new IllegalArgumentException("capacity must be positive: " + capacityBytes);
+        this.capacityBytes = capacityBytes;
+        this.protectedCapacityBytes = (long) (capacityBytes * PROTECTED_SHARE);
+    }
+
+    public Block get(int version, long offset, ThrowingFunction<Long, Block, IOException> loader) throws IOException {
+        var key = new Key(version, offset);
+        synchronized (this) {
+            Block block = protectedSegment.get(key);
+            if (block != null) {
+                hits++;
+                return block;
+            }
+            block = probation.remove(key);
+            if (block != null) {
+                hits++;
+                probationBytes -= block.getWeight();
+                protect(key, block);
+                return block;
+            }
+            misses++;
+        }
+        // loading outside of the lock may occasionally read a block twice, which is harmless
+        Block block = loader.apply(offset);
+        synchronized (this) {
+            if (!protectedSegment.containsKey(key) && !probation.containsKey(key)) {
+                probation.put(key, block);
+                probationBytes += block.getWeight();
+                evict();
+            }
+        }
+        return block;
+    }
+
+    private void protect(Key key, Block block) {
+        protectedSegment.put(key, block);
+        protectedBytes += block.getWeight();
+        Iterator<Map.Entry<Key, Block>> iterator = protectedSegment.entrySet().iterator();
+        while (protectedBytes > protectedCapacityBytes && iterator.hasNext()) {
+            var eldest = iterator.next();
+            iterator.remove();
+            protectedBytes -= eldest.getValue().getWeight();
+            probation.put(eldest.getKey(), eldest.getValue());
+            probationBytes += eldest.getValue().getWeight();
+        }
+        evict();
+    }
+
+    private void evict() {
+        evict(probation.entrySet().iterator(), true);
+        evict(protectedSegment.entrySet().iterator(), false);
+    }
+
+    private void evict(Iterator<Map.Entry<Key, Block>> iterator, boolean isProbation) {
+        while (probationBytes + protectedBytes > capacityBytes && iterator.hasNext()) {
+            long weight = iterator.next().getValue().getWeight();
+            iterator.remove();
+            if (isProbation)
+                probationBytes -= weight;
+            else
+                protectedBytes -= weight;
+            evictions++;
+        }
+    }
+
+    /**
+     * Drops all blocks of the file, must be called when the file is deleted.
+     */
+    public synchronized void invalidate(int version) {
+        probationBytes -= invalidate(probation, version);
+        protectedBytes -= invalidate(protectedSegment, version);
+    }
+
+    private static long invalidate(Map<Key, Block> segment, int version) {
+        long removed = 0;
+        for (var iterator = segment.entrySet().iterator(); iterator.hasNext(); ) {
+            var entry = iterator.next();
+            if (entry.getKey().version == version) {
+                removed += entry.getValue().getWeight();
+                iterator.remove();
+            }
+        }
+        return removed;
+    }
+
+    public long getCapacityBytes() {
+        return capacityBytes;
+    }
+
+    public synchronized long getSizeBytes() {
+        return probationBytes + protectedBytes;
+    }
+
+    public synchronized long getHits() {
+        return hits;
+    }
+
+    public synchronized long getMisses() {
+        return misses;
+    }
+
+    public synchronized long getEvictions() {
+        return evictions;
+    }
+
+    private record Key(int version, long offset) {
+    }
+}
@@ -0,0 +1,102 @@
+package ru.golchin.key_value_store.io;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.zip.CRC32C;
+
+/**
+ * Reads files written by {@link BlockWriter}. A {@link #cursor()} reads the file block by block. Offsets of a block
+ * file address blocks, not records.
+ */
+public class BlockKeyValueReader extends KeyValueReader {
+    public BlockKeyValueReader(Path path) {
+        super(path);
+    }
+
+    public Block readBlock(long offset) throws IOException {
+        ByteBuffer header = readBytes(offset, BlockWriter.HEADER_SIZE);
+        int rawLength = header.getInt(0);
+        int storedLength = header.getInt(Integer.BYTES);
+        int flags = header.get(2 * Integer.BYTES) & 0xff;
+        var compression = Compression.of(flags & ~BlockWriter.CHECKSUM_FLAG);
+        int headerSize = BlockWriter.HEADER_SIZE;
+        if ((flags & BlockWriter.CHECKSUM_FLAG) != 0)
+            headerSize += BlockWriter.CHECKSUM_SIZE;
+        if (rawLength < 0 || storedLength < 0 || offset + headerSize + storedLength > size())
+            throw new IOException("corrupted block header in " + path + " at " + offset);
+        ByteBuffer stored;
+        if ((flags & BlockWriter.CHECKSUM_FLAG) != 0) {
+            // a slice of the mapping if the file is mapped, so an uncompressed block is decoded without copying
+            ByteBuffer block = readBytes(offset + BlockWriter.HEADER_SIZE, BlockWriter.CHECKSUM_SIZE + storedLength);
+            stored = block.slice(BlockWriter.CHECKSUM_SIZE, storedLength);
+            var crc = new CRC32C();
+            crc.update(stored.duplicate());
+            if ((int) crc.getValue() != block.getInt(0))
+                throw new IOException("checksum mismatch in block of " + path + " at " + offset);
+        } else {
+            stored = readBytes(offset + headerSize, storedLength);
+        }
+        ByteBuffer buffer;
+        if (compression == Compression.NONE) {
+            buffer = stored;
+        } else {
+            var bytes = new byte[storedLength];
+            stored.get(bytes);
+            buffer = ByteBuffer.wrap(compression.decompress(bytes, rawLength));
+        }
+        var records = new ArrayList<KeyValueRecord>();
+        try {
+            while (buffer.hasRemaining())
+                records.add(RecordCodec.decode(buffer));
+        } catch (BufferUnderflowException | IndexOutOfBoundsException | IllegalArgumentException e) {
+            // only blocks written before checksums were introduced get here with garbage
+            throw new IOException("corrupted block in " + path + " at " + offset, e);
+        }
+        return new Block(offset, headerSize + storedLength, records);
+    }
+
+    /**
+     * Reads the first record of the block at the offset, the rest of the block is read with {@link #readBlock}.
+     */
+    @Override
+    public KeyValueRecord read(long offset) throws IOException {
+        var records = readBlock(offset).getRecords();
+        if (records.isEmpty())
+            throw new IOException("empty block in " + path + " at " + offset);
+        return records.get(0);
+    }
+
+    @Override
+    public Cursor cursor() {
+        return new BlockCursor();
+    }
+
+    private class BlockCursor extends Cursor {
+        private long blockOffset;
+        private int index;
+        private Block block;
+
+        @Override
+        public boolean canRead() throws IOException {
+            if (block != null && index < block.getRecords().size())
+                return true;
+            return (block == null ? blockOffset : block.getNextOffset()) < size();
+        }
+
+        @Override
+        public KeyValueRecord read() throws IOException {
+            if (block != null && index >= block.getRecords().size()) {
+                blockOffset = block.getNextOffset();
+                block = null;
+            }
+            if (block == null) {
+                block = readBlock(blockOffset);
+                index = 0;
+            }
+            return block.getRecords().get(index++);
+        }
+    }
+}
@@ -0,0 +1,105 @@
+package ru.golchin.key_value_store.io;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Writes sorted records as a sequence of data blocks. A block is closed as soon as its raw size reaches
+ * {@code blockSize}, so a block holds at least one record. On disk every block is
+ * <pre>
+ * int rawLength | int storedLength | byte flags | int crc32c(stored) | storedLength bytes
+ * </pre>
+ * where the low bits of the flags are the compression id and {@link #CHECKSUM_FLAG} marks a block with a checksum;
+ * blocks written before checksums were introduced have neither the flag nor the crc.
+ * The block is stored uncompressed if compression does not make it smaller.
+ */
+public class BlockWriter implements Closeable {
+    public static final int HEADER_SIZE = 9;
+    public static final int CHECKSUM_FLAG = 0x80;
+    public static final int CHECKSUM_SIZE = 4;
+    private final DataOutputStream outputStream;
+    private final int blockSize;
+    private final Compression compression;
+    private final ByteArrayOutputStream block = new ByteArrayOutputStream();
+    private final NavigableMap<String, Long> blockIndex = new TreeMap<>();
+    private final RateLimiter rateLimiter;
+    private String firstKey;
+    private String lastKey;
+    private long offset = 0;
+
+    public BlockWriter(Path path, int blockSize, Compression compression) throws IOException {
+        this(path, blockSize, compression, null);
+    }
+
+    /**
+     * @param rateLimiter limits the rate of writes, null if they are not limited
+     */
+    public BlockWriter(Path path, int blockSize, Compression compression, RateLimiter rateLimiter)
+            throws IOException {
+        this.rateLimiter = rateLimiter;
+        this.outputStream = new DataOutputStream(new BufferedOutputStream(
+                Files.newOutputStream(path, CREATE, TRUNCATE_EXISTING, WRITE)));
+        this.blockSize = blockSize;
+        this.compression = compression;
+    }
+
+    public void write(String key, String value) throws IOException {
+        if (lastKey != null && lastKey.compareTo(key) >= 0)
+            throw new IllegalArgumentException("keys must be written in ascending order: " + lastKey + ", " + key);
+        if (firstKey == null)
+            firstKey = key;
+        lastKey = key;
+        block.write(RecordCodec.encode(key, value));
+        if (block.size() >= blockSize)
+            flushBlock();
+    }
+
+    private void flushBlock() throws IOException {
+        if (firstKey == null)
+            return;
+        byte[] raw = block.toByteArray();
+        byte[] stored = compression.compress(raw);
+        var storedCompression = compression;
+        if (stored.length >= raw.length) {
+            stored = raw;
+            storedCompression = Compression.NONE;
+        }
+        if (rateLimiter != null)
+            rateLimiter.acquire(HEADER_SIZE + CHECKSUM_SIZE + stored.length);
+        outputStream.writeInt(raw.length);
+        outputStream.writeInt(stored.length);
+        outputStream.writeByte(storedCompression.getId() | CHECKSUM_FLAG);
+        var crc = new CRC32C();
+        crc.update(stored);
+        outputStream.writeInt((int) crc.getValue());
+        outputStream.write(stored);
+        blockIndex.put(firstKey, offset);
+        offset += HEADER_SIZE + CHECKSUM_SIZE + stored.length;
+        block.reset();
+        firstKey = null;
+    }
+
+    /**
+     * Maps the first key of every block to the block's offset. Complete only after {@link #close()}.
+     */
+    public NavigableMap<String, Long> getBlockIndex() {
+        return blockIndex;
+    }
+
+    public long getSize() {
+        return offset + block.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try (outputStream) {
+            flushBlock();
+        }
+    }
+}
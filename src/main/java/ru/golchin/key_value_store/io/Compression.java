@@ -0,0 +1,89 @@
+package ru.golchin.key_value_store.io;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Codec applied to a single data block. The id is stored in the block header, so blocks of one file
+ * may use different codecs.
+ */
+public enum Compression {
+    NONE(0) {
+        @Override
+        public byte[] compress(byte[] raw) {
+            return raw;
+        }
+
+        @Override
+        public byte[] decompress(byte[] stored, int rawLength) {
+            return stored;
+        }
+    },
+    DEFLATE(1) {
+        @Override
+        public byte[] compress(byte[] raw) {
+            var deflater = new Deflater(Deflater.BEST_SPEED);
+            try {
+                deflater.setInput(raw);
+                deflater.finish();
+                var out = new ByteArrayOutputStream(raw.length / 2 + 16);
+                var buffer = new byte[4096];
+                while (!deflater.finished()) {
+                    int n = deflater.deflate(buffer);
+                    out.write(buffer, 0, n);
+                }
+                return out.toByteArray();
+            } finally {
+                deflater.end();
+            }
+        }
+
+        @Override
+        public byte[] decompress(byte[] stored, int rawLength) throws IOException {
+            var inflater = new Inflater();
+            try {
+                inflater.setInput(stored);
+                var raw = new byte[rawLength];
+                int n = 0;
+                while (n < rawLength && !inflater.finished()) {
+                    int read = inflater.inflate(raw, n, rawLength - n);
+                    if (read == 0 && (inflater.needsInput() || inflater.needsDictionary()))
+                        break;
+                    n += read;
+                }
+                if (n != rawLength)
+                    throw new IOException("corrupted block: expected " + rawLength + " bytes, inflated " + n);
+                return raw;
+            } catch (DataFormatException e) {
+                throw new IOException("corrupted block", e);
+            } finally {
+                inflater.end();
+            }
+        }
+    };
+
+    private final int id;
+
+    Compression(int id) {
+        this.id = id;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public static Compression of(int id) throws IOException {
+        for (Compression compression : values()) {
+            if (compression.id == id)
+                return compression;
+        }
+        throw new IOException("unknown compression " + id);
+    }
+
+    public abstract byte[] compress(byte[] raw);
+
+    public abstract byte[] decompress(byte[] stored, int rawLength) throws IOException;
+}
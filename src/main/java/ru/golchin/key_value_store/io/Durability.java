@@ -0,0 +1,21 @@
+package ru.golchin.key_value_store.io;
+
+/**
+ * When a write is acknowledged relative to the moment it reaches the disk.
+ */
+public enum Durability {
+    /**
+     * Every write is synced before it is acknowledged.
+     */
+    SYNC,
+    /**
+     * Writes are acknowledged once synced, but one sync is shared by all writes that arrive within
+     * a time or byte window.
+     */
+    GROUP_COMMIT,
+    /**
+     * Writes are handed to the operating system and acknowledged immediately, they survive a crash of the process
+     * but not of the machine.
+     */
+    ASYNC
+}
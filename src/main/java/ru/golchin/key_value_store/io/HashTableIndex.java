@@ -0,0 +1,116 @@
+package ru.golchin.key_value_store.io;
+
+import ru.golchin.util.ThrowingFunction;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.Map;
+import java.util.stream.LongStream;
+
+/**
+ * Open-addressing hash table of keys to record offsets that is probed right in the mapped file:
+ * <pre>
+ * int magic | int capacity | int size | slot* | int crc32c
+ * slot: int hash | long offset + 1
+ * </pre>
+ * Empty slots are zeroes. Keys are not stored, a slot with the hash of the key is checked by reading the record
+ * at its offset. The capacity is a power of two of at least twice the size, collisions are resolved
+ * with linear probing.
+ */
+public class HashTableIndex {
+    static final int MAGIC = 0x48494458;
+    private static final int HEADER_SIZE = 12;
+    private static final int SLOT_SIZE = 12;
+    private final ByteBuffer buffer;
+    private final int capacity;
+    private final int size;
+
+    private HashTableIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.capacity = buffer.getInt(4);
+        this.size = buffer.getInt(8);
+    }
+
+    public static HashTableIndex read(Path path) throws IOException {
+        ByteBuffer buffer = IndexFiles.map(path, MAGIC);
+        // the checksum only tells that the content is what was written, not that it is an index
+        if (buffer.limit() < HEADER_SIZE)
+            throw new IOException("corrupted index header in " + path);
+        int capacity = buffer.getInt(4);
+        int size = buffer.getInt(8);
+        if (capacity <= 0 || Integer.bitCount(capacity) != 1 || size < 0 || size > capacity
+                || HEADER_SIZE + (long) capacity * SLOT_SIZE != buffer.limit())
+            throw new IOException("corrupted index header in " + path);
+        return new HashTableIndex(buffer);
+    }
+
+    public static void write(Path path, Map<String, ? extends Number> entries) throws IOException {
+        var buffer = allocate(entries.size());
+        for (var entry : entries.entrySet())
+            insert(buffer, hash(entry.getKey()), entry.getValue().longValue());
+        IndexFiles.write(path, buffer.position(buffer.capacity()));
+    }
+
+    static ByteBuffer allocate(int size) {
+        int capacity = 2;
+        while (capacity < 2 * size)
+            capacity <<= 1;
+        return ByteBuffer.allocate(HEADER_SIZE + capacity * SLOT_SIZE)
+                .putInt(0, MAGIC)
+                .putInt(4, capacity)
+                .putInt(8, size);
+    }
+
+    /**
+     * Puts an entry into a table made by {@link #allocate(int)}, the keys of all entries have to be distinct.
+     */
+    static void insert(ByteBuffer buffer, int hash, long offset) {
+        int capacity = buffer.getInt(4);
+        int slot = hash & (capacity - 1);
+        while (buffer.getLong(slotPosition(slot) + 4) != 0)
+            slot = (slot + 1) & (capacity - 1);
+        buffer.putInt(slotPosition(slot), hash);
+        buffer.putLong(slotPosition(slot) + 4, offset + 1);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Record with the key, null if there is none. {@code recordAt} reads the record at an offset.
+     */
+    public KeyValueRecord get(String key, ThrowingFunction<Long, KeyValueRecord, IOException> recordAt)
+            throws IOException {
+        int hash = hash(key);
+        for (int slot = hash & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)) {
+            long offset = buffer.getLong(slotPosition(slot) + 4) - 1;
+            if (offset < 0)
+                return null;
+            if (buffer.getInt(slotPosition(slot)) == hash) {
+                KeyValueRecord record = recordAt.apply(offset);
+                if (key.equals(record.getKey()))
+                    return record;
+            }
+        }
+    }
+
+    /**
+     * Offsets of all records in the order of slots.
+     */
+    public LongStream offsets() {
+        return LongStream.range(0, capacity)
+                .map(slot -> buffer.getLong(slotPosition((int) slot) + 4) - 1)
+                .filter(offset -> offset >= 0);
+    }
+
+    private static int slotPosition(int slot) {
+        return HEADER_SIZE + slot * SLOT_SIZE;
+    }
+
+    static int hash(String key) {
+        int h = key.hashCode();
+        return h ^ h >>> 16;
+    }
+}
@@ -0,0 +1,76 @@
+package ru.golchin.key_value_store.io;
+
+import ru.golchin.util.Util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Common framing of the binary index files: the content starts with a magic number and ends with the crc32c
+ * of everything before the checksum.
+ */
+public final class IndexFiles {
+    private static final int CHECKSUM_SIZE = 4;
+    // first bytes of a Java-serialized object
+    private static final short SERIALIZATION_MAGIC = (short) 0xaced;
+
+    private IndexFiles() {
+    }
+
+    /**
+     * Appends the checksum to the content in [0, position) and replaces the file atomically.
+     */
+    static void write(Path path, ByteBuffer content) throws IOException {
+        content.flip();
+        var crc = new CRC32C();
+        crc.update(content.duplicate());
+        var checksum = ByteBuffer.allocate(CHECKSUM_SIZE).putInt((int) crc.getValue()).flip();
+        Path tmpPath = path.resolveSibling(path.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(tmpPath, CREATE, TRUNCATE_EXISTING, WRITE)) {
+            while (content.hasRemaining())
+                channel.write(content);
+            while (checksum.hasRemaining())
+                channel.write(checksum);
+            channel.force(false);
+        }
+        Files.move(tmpPath, path, ATOMIC_MOVE, REPLACE_EXISTING);
+        Util.syncDirectory(path.getParent());
+    }
+
+    /**
+     * Maps the file and checks its magic number and checksum, the returned buffer ends before the checksum.
+     */
+    static ByteBuffer map(Path path, int magic) throws IOException {
+        ByteBuffer buffer;
+        try (var channel = FileChannel.open(path, READ)) {
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+        int length = buffer.capacity() - CHECKSUM_SIZE;
+        if (length < 4 || buffer.getInt(0) != magic)
+            throw new IOException("not an index file: " + path);
+        var crc = new CRC32C();
+        crc.update(buffer.duplicate().limit(length));
+        if ((int) crc.getValue() != buffer.getInt(length))
+            throw new IOException("checksum mismatch in " + path);
+        return buffer.limit(length).slice().order(ByteOrder.BIG_ENDIAN);
+    }
+
+    /**
+     * Whether the file holds an index written with {@code ObjectOutputStream} by an older version.
+     */
+    public static boolean isSerialized(Path path) throws IOException {
+        try (var in = Files.newInputStream(path)) {
+            byte[] header = in.readNBytes(2);
+            return header.length == 2 && ByteBuffer.wrap(header).getShort() == SERIALIZATION_MAGIC;
+        }
+    }
+}
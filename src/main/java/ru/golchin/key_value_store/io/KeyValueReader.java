@@ -1,71 +1,251 @@
 package ru.golchin.key_value_store.io;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
+import java.util.zip.CRC32C;
 
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Reads records written by {@link KeyValueWriter}, in either format: a file that starts with
+ * {@link KeyValueWriter#MAGIC} has checksummed {@link RecordCodec} records, any other file has the UTF-16 records
+ * of the previous format. A record that doesn't match its checksum fails the read.
+ * <p>
+ * All reads are positional ({@link FileChannel#read(ByteBuffer, long)}), so one channel is shared by all threads.
+ * Sequential reads go through a {@link Cursor}, which keeps its own position. The channel is opened with the first
+ * read, as the file may not have been written when the reader is created, and is closed by {@link #close()}.
+ */
 public class KeyValueReader implements Closeable {
-    private final ThreadLocal<RandomAccessFile> inputFile;
+    protected final Path path;
+    private FileChannel channel;
+    private boolean isClosed;
+    private volatile MappedByteBuffer mapped;
+    // null until the header of the file has been read
+    private volatile Boolean isFramed;
 
     public KeyValueReader(Path path) {
-        inputFile = ThreadLocal.withInitial(() -> {
-            try {
-                return new RandomAccessFile(path.toFile(), "r");
-            } catch (FileNotFoundException e) {
-                return null;
-            }
-        });
+        this.path = path;
+    }
+
+    protected synchronized FileChannel getChannel() throws IOException {
+        if (isClosed)
+            throw new ClosedChannelException();
+        if (channel == null)
+            channel = FileChannel.open(path, READ);
+        return channel;
+    }
+
+    /**
+     * Maps a file that is no longer written into memory, lookups by offset then decode records straight from
+     * the mapping with absolute gets, so they need neither a file pointer nor a syscall.
+     * Files that don't exist yet or don't fit into a buffer stay unmapped, as does a closed reader.
+     */
+    public synchronized void map() throws IOException {
+        if (isClosed)
+            return;
+        try {
+            FileChannel channel = getChannel();
+            long size = channel.size();
+            if (size <= Integer.MAX_VALUE)
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        } catch (NoSuchFileException ignored) {
+        }
+    }
+
+    public boolean isMapped() {
+        return mapped != null;
+    }
+
+    /**
+     * The mapped file, or null. Absolute gets don't touch the buffer's position, so it's shared by all threads.
+     */
+    protected ByteBuffer getMapped() {
+        return mapped;
     }
 
+    public long size() throws IOException {
+        ByteBuffer mapped = this.mapped;
+        return mapped != null ? mapped.capacity() : getChannel().size();
+    }
+
+    /**
+     * Reads {@code length} bytes at {@code position}.
+     */
+    protected ByteBuffer readBytes(long position, int length) throws IOException {
+        // offsets and lengths come from the file, a corrupted one must not end up as an unchecked exception
+        if (position < 0 || length < 0)
+            throw new IOException("corrupted offset or length in " + path + ": " + length + " bytes at " + position);
+        ByteBuffer mapped = this.mapped;
+        if (mapped != null) {
+            if (position + length > mapped.capacity())
+                throw new EOFException("unexpected end of " + path + " at " + mapped.capacity());
+            return mapped.slice((int) position, length);
+        }
+        var buffer = ByteBuffer.allocate(length);
+        FileChannel channel = getChannel();
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new EOFException("unexpected end of " + path + " at " + (position + buffer.position()));
+        }
+        return buffer.flip();
+    }
+
+    /**
+     * Whether the file is in the current format, null while the file is too short to tell.
+     */
+    private Boolean isFramed() throws IOException {
+        Boolean isFramed = this.isFramed;
+        if (isFramed == null && size() >= Integer.BYTES)
+            this.isFramed = isFramed = readBytes(0, Integer.BYTES).getInt() == KeyValueWriter.MAGIC;
+        return isFramed;
+    }
+
+    public KeyValueRecord read(long offset) throws IOException {
+        if (Boolean.TRUE.equals(isFramed()))
+            return readFramed(offset);
+        ByteBuffer mapped = this.mapped;
+        if (mapped != null) {
+            int position = (int) offset;
+            String key = readString(mapped, position);
+            return new KeyValueRecord(key, readString(mapped, position + getSize(key)));
+        }
+        String key = readString(offset);
+        return new KeyValueRecord(key, readString(offset + getSize(key)));
+    }
 
-    private RandomAccessFile getInputFile() {
-        return inputFile.get();
+    private KeyValueRecord readFramed(long offset) throws IOException {
+        ByteBuffer header = readBytes(offset, (int) Math.min(5, size() - offset));
+        int payloadLength;
+        try {
+            payloadLength = RecordCodec.readVarInt(header);
+        } catch (BufferUnderflowException e) {
+            throw new EOFException("truncated record in " + path + " at " + offset);
+        }
+        checkLength(offset + header.position(), payloadLength + Integer.BYTES);
+        ByteBuffer record = readBytes(offset + header.position(), payloadLength + Integer.BYTES);
+        var crc = new CRC32C();
+        crc.update(record.duplicate().limit(record.position() + payloadLength));
+        if ((int) crc.getValue() != record.getInt(record.position() + payloadLength))
+            throw new IOException("checksum mismatch in " + path + " at " + offset);
+        return RecordCodec.decode(record);
     }
 
-    String readString() throws IOException {
-        int length = getInputFile().readInt();
+    private String readString(long position) throws IOException {
+        checkLength(position, Integer.BYTES);
+        int length = readBytes(position, Integer.BYTES).getInt();
         if (length < 0) {
             return null;
         }
-        var bytes = new byte[2 * length];
-        getInputFile().read(bytes, 0, bytes.length);
-        var chars = new char[length];
-        try (var dataInputStream = new DataInputStream(new ByteArrayInputStream(bytes))) {
-            for (int i = 0; i < length; i++) {
-                chars[i] = dataInputStream.readChar();
-            }
+        checkLength(position + Integer.BYTES, 2L * length);
+        return readChars(readBytes(position + Integer.BYTES, 2 * length), 0, length);
+    }
+
+    private String readString(ByteBuffer buffer, int position) throws IOException {
+        checkLength(position, Integer.BYTES);
+        int length = buffer.getInt(position);
+        if (length < 0) {
+            return null;
         }
-        return new String(chars);
+        checkLength(position + Integer.BYTES, 2L * length);
+        return readChars(buffer, position + Integer.BYTES, length);
     }
 
-    public KeyValueRecord read(long offset) throws IOException {
-        getInputFile().seek(offset);
-        return read(true);
+    /**
+     * Fails if a length read from the file points past its end, as it does after a torn write or a bit flip.
+     */
+    private void checkLength(long position, long length) throws IOException {
+        if (length < 0 || position + length > size())
+            throw new EOFException("truncated or corrupted record in " + path + " at " + position);
     }
 
-    public KeyValueRecord read(boolean movePointer) throws IOException {
-        long start = getInputFile().getFilePointer();
-        String key = readString();
-        String value = readString();
-        if (!movePointer)
-            getInputFile().seek(start);
-        return new KeyValueRecord(key, value);
+    private static String readChars(ByteBuffer buffer, int position, int length) {
+        var chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            chars[i] = buffer.getChar(position + 2 * i);
+        }
+        return new String(chars);
     }
 
-    public boolean canRead() throws IOException {
-        return getInputFile().getFilePointer() < getInputFile().length();
+    private static int getSize(String s) {
+        return s == null ? Integer.BYTES : Integer.BYTES + 2 * s.length();
     }
 
-    public long getOffset() throws IOException {
-        return getInputFile().getFilePointer();
+    private int getRecordSize(KeyValueRecord record) throws IOException {
+        if (Boolean.TRUE.equals(isFramed()))
+            return KeyValueWriter.getRecordSize(record.getKey(), record.getValue());
+        return getSize(record.getKey()) + getSize(record.getValue());
     }
 
-    public void setOffset(long offset) throws IOException {
-        getInputFile().seek(offset);
+    /**
+     * Cursor positioned at the first record.
+     */
+    public Cursor cursor() {
+        return new Cursor();
     }
 
     @Override
-    public void close() throws IOException {
-        getInputFile().close();
+    public synchronized void close() throws IOException {
+        isClosed = true;
+        // the mapping itself is released by the garbage collector
+        mapped = null;
+        if (channel != null)
+            channel.close();
     }
 
+    /**
+     * Reads records one after another from its own position, cursors don't affect each other or lookups.
+     * A cursor is not thread-safe.
+     */
+    public class Cursor {
+        private long offset = -1;
+
+        public boolean canRead() throws IOException {
+            if (offset < 0) {
+                Boolean isFramed = isFramed();
+                if (isFramed == null)
+                    return false;
+                // a file in the previous format has a record at 0
+                offset = isFramed ? Integer.BYTES : 0;
+            }
+            return offset < size();
+        }
+
+        /**
+         * Offset of the record that {@link #read()} returns next, 0 if the file is too short to have any.
+         */
+        public long getOffset() throws IOException {
+            return canRead() || offset >= 0 ? offset : 0;
+        }
+
+        /**
+         * Offset after the record that {@link #read()} returns next as its length says, it may be past the end of
+         * the file. Records of the previous format have no framing, for them it's the end of the file.
+         */
+        public long getRecordEnd() throws IOException {
+            long offset = getOffset();
+            if (!Boolean.TRUE.equals(isFramed()) || offset >= size())
+                return size();
+            ByteBuffer header = readBytes(offset, (int) Math.min(5, size() - offset));
+            try {
+                int payloadLength = RecordCodec.readVarInt(header);
+                return offset + header.position() + payloadLength + Integer.BYTES;
+            } catch (BufferUnderflowException e) {
+                return size();
+            }
+        }
+
+        public KeyValueRecord read() throws IOException {
+            if (offset < 0 && !canRead())
+                throw new EOFException("no records in " + path);
+            KeyValueRecord record = KeyValueReader.this.read(offset);
+            offset += getRecordSize(record);
+            return record;
+        }
+    }
 }
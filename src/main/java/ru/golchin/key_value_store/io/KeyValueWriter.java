@@ -1,50 +1,139 @@
 package ru.golchin.key_value_store.io;
 
-import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
-import java.io.DataOutputStream;
 import java.io.IOException;
-import java.nio.file.Files;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32C;
 
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Appends records to a log file. The file starts with {@link #MAGIC}, followed by records
+ * <pre>
+ * varint payloadLength | payload | int crc32c(payload)
+ * </pre>
+ * where the payload is a record in the {@link RecordCodec} layout. Files written before had no magic number and
+ * stored every string as an int length followed by UTF-16 chars, {@link KeyValueReader} reads both.
+ * <p>
+ * Records are collected in a direct buffer that is written to the channel by {@link #flush()}, or when it is full;
+ * {@link #sync()} also forces the file to disk. A record is visible to readers only after it has been flushed.
+ */
 public class KeyValueWriter implements Closeable {
-    private final DataOutputStream outputStream;
+    // negative, so it can't be the length of a key in the previous format
+    public static final int MAGIC = 0xcafe0001;
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int CRC_SIZE = Integer.BYTES;
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private final CRC32C crc = new CRC32C();
+    private final byte[] varInt = new byte[5];
+    private byte[] payload = new byte[256];
+    private long offset;
+    private volatile RateLimiter rateLimiter;
 
     public KeyValueWriter(Path path) throws IOException {
-        outputStream = new DataOutputStream(Files.newOutputStream(path, StandardOpenOption.CREATE, StandardOpenOption.APPEND));
+        channel = FileChannel.open(path, CREATE, WRITE, APPEND);
+        offset = channel.size();
+        if (offset == 0) {
+            buffer.putInt(MAGIC);
+            offset = Integer.BYTES;
+        }
     }
 
-    void writeString(String s) throws IOException {
-        if (s != null) {
-            outputStream.writeInt(s.length());
-            ByteArrayOutputStream out = new ByteArrayOutputStream();
-            try (DataOutputStream inMemoryOutputStream = new DataOutputStream(out)) {
-                inMemoryOutputStream.writeChars(s);
-            }
-            outputStream.write(out.toByteArray());
+    /**
+     * Returns the offset of the record.
+     */
+    public long write(String key, String value) throws IOException {
+        int payloadLength = RecordCodec.getRecordSize(key, value);
+        if (payload.length < payloadLength)
+            payload = new byte[Math.max(2 * payload.length, payloadLength)];
+        RecordCodec.encode(payload, 0, key, value);
+        crc.reset();
+        crc.update(payload, 0, payloadLength);
+        int varIntLength = RecordCodec.writeVarInt(varInt, 0, payloadLength);
+        int recordSize = varIntLength + payloadLength + CRC_SIZE;
+        if (buffer.remaining() < recordSize)
+            flush();
+        if (recordSize <= buffer.remaining()) {
+            buffer.put(varInt, 0, varIntLength).put(payload, 0, payloadLength).putInt((int) crc.getValue());
         } else {
-            outputStream.writeInt(-1);
+            // a record that doesn't fit into the buffer is written right away
+            var record = ByteBuffer.allocate(recordSize)
+                    .put(varInt, 0, varIntLength)
+                    .put(payload, 0, payloadLength)
+                    .putInt((int) crc.getValue())
+                    .flip();
+            acquire(recordSize);
+            while (record.hasRemaining())
+                channel.write(record);
         }
+        long recordOffset = offset;
+        offset += recordSize;
+        return recordOffset;
+    }
+
+    /**
+     * Writes the buffered records to the file, so that they can be read.
+     */
+    public void flush() throws IOException {
+        buffer.flip();
+        acquire(buffer.remaining());
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * Limits the rate of writes to the file from now on, null lifts the limit.
+     */
+    public void setRateLimiter(RateLimiter rateLimiter) {
+        this.rateLimiter = rateLimiter;
+    }
+
+    private void acquire(int bytes) throws IOException {
+        var rateLimiter = this.rateLimiter;
+        if (rateLimiter != null && bytes > 0)
+            rateLimiter.acquire(bytes);
+    }
+
+    /**
+     * Flushes the buffered records and forces them to disk.
+     */
+    public void sync() throws IOException {
+        flush();
+        channel.force(false);
     }
 
-    public int write(String key, String value) throws IOException {
-        int offset = outputStream.size();
-        writeString(key);
-        writeString(value);
+    /**
+     * Size of the file including the records that are not flushed yet.
+     */
+    public long size() {
         return offset;
     }
 
-    @Override
-    public void close() throws IOException {
-        outputStream.close();
+    /**
+     * Closes the file without writing the buffered records, for a file that is deleted.
+     */
+    public void discard() throws IOException {
+        buffer.clear();
+        channel.close();
     }
 
-    private long getSize(String s) {
-        return s == null ? 4 : s.length() * 2 + 4;
+    @Override
+    public void close() throws IOException {
+        if (!channel.isOpen())
+            return;
+        sync();
+        channel.close();
     }
 
-    public long getRecordSize(String key, String value) {
-        return getSize(key) + getSize(value);
+    /**
+     * Number of bytes that the record takes in the file.
+     */
+    public static int getRecordSize(String key, String value) {
+        int payloadLength = RecordCodec.getRecordSize(key, value);
+        return RecordCodec.varIntSize(payloadLength) + payloadLength + CRC_SIZE;
     }
 }
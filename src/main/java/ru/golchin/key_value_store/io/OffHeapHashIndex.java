@@ -0,0 +1,179 @@
+package ru.golchin.key_value_store.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Mutable open-addressing hash table of keys to long offsets that lives in direct buffers, so the heap holds
+ * no object per key. Every slot is
+ * <pre>
+ * int hash | int keyLength | long keyPosition | long offset + 1
+ * </pre>
+ * where the key bytes ({@link RecordCodec#toBytes(String)}) are appended to a separate buffer. Empty slots are
+ * zeroes, collisions are resolved with linear probing and the table doubles once it is half full.
+ * Lookups may run concurrently with each other, puts are exclusive. Each buffer is limited to
+ * {@link #MAX_BUFFER_SIZE} bytes, a put that needs more fails with {@link IllegalStateException}.
+ */
+public class OffHeapHashIndex {
+    private static final int SLOT_SIZE = 24;
+    private static final int INITIAL_CAPACITY = 64;
+    // the largest array size that virtual machines reliably allocate
+    static final int MAX_BUFFER_SIZE = Integer.MAX_VALUE - 8;
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private ByteBuffer slots = ByteBuffer.allocateDirect(INITIAL_CAPACITY * SLOT_SIZE);
+    private ByteBuffer keys = ByteBuffer.allocateDirect(INITIAL_CAPACITY * 16);
+    private int capacity = INITIAL_CAPACITY;
+    private int size;
+
+    /**
+     * Maps the key to the offset, replacing the previous offset of the key.
+     */
+    public void put(String key, long offset) {
+        byte[] bytes = RecordCodec.toBytes(key);
+        int hash = HashTableIndex.hash(key);
+        lock.writeLock().lock();
+        try {
+            int slot = find(hash, bytes);
+            if (isEmpty(slot)) {
+                if (2 * (size + 1) > capacity) {
+                    resize();
+                    slot = find(hash, bytes);
+                }
+                // the key goes first, a failed put leaves the slot empty
+                long keyPosition = appendKey(bytes);
+                int position = slot * SLOT_SIZE;
+                slots.putInt(position, hash);
+                slots.putInt(position + 4, bytes.length);
+                slots.putLong(position + 8, keyPosition);
+                size++;
+            }
+            slots.putLong(slot * SLOT_SIZE + 16, offset + 1);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Offset of the key, -1 if there is none.
+     */
+    public long get(String key) {
+        byte[] bytes = RecordCodec.toBytes(key);
+        int hash = HashTableIndex.hash(key);
+        lock.readLock().lock();
+        try {
+            return slots.getLong(find(hash, bytes) * SLOT_SIZE + 16) - 1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Passes every key with its offset to the consumer in the order of slots.
+     */
+    public void forEach(ObjLongConsumer<String> consumer) {
+        lock.readLock().lock();
+        try {
+            for (int slot = 0; slot < capacity; slot++) {
+                if (!isEmpty(slot))
+                    consumer.accept(getKey(slot), slots.getLong(slot * SLOT_SIZE + 16) - 1);
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Writes the hashes and offsets as a {@link HashTableIndex} file.
+     */
+    public void writeTo(Path path) throws IOException {
+        lock.readLock().lock();
+        try {
+            var buffer = HashTableIndex.allocate(size);
+            for (int slot = 0; slot < capacity; slot++) {
+                if (!isEmpty(slot))
+                    HashTableIndex.insert(buffer, slots.getInt(slot * SLOT_SIZE), slots.getLong(slot * SLOT_SIZE + 16) - 1);
+            }
+            IndexFiles.write(path, buffer.position(buffer.capacity()));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Slot of the key or the empty slot where it would be put.
+     */
+    private int find(int hash, byte[] key) {
+        for (int slot = hash & (capacity - 1); ; slot = (slot + 1) & (capacity - 1)) {
+            if (isEmpty(slot))
+                return slot;
+            int position = slot * SLOT_SIZE;
+            if (slots.getInt(position) == hash && slots.getInt(position + 4) == key.length) {
+                int keyPosition = Math.toIntExact(slots.getLong(position + 8));
+                if (keys.slice(keyPosition, key.length).equals(ByteBuffer.wrap(key)))
+                    return slot;
+            }
+        }
+    }
+
+    private boolean isEmpty(int slot) {
+        return slots.getLong(slot * SLOT_SIZE + 16) == 0;
+    }
+
+    private String getKey(int slot) {
+        var bytes = new byte[slots.getInt(slot * SLOT_SIZE + 4)];
+        keys.get(Math.toIntExact(slots.getLong(slot * SLOT_SIZE + 8)), bytes);
+        return RecordCodec.fromBytes(bytes, bytes.length);
+    }
+
+    private long appendKey(byte[] bytes) {
+        if (keys.remaining() < bytes.length) {
+            var newKeys = ByteBuffer.allocateDirect(grow(keys.capacity(), keys.position() + (long) bytes.length));
+            newKeys.put(keys.flip());
+            keys = newKeys;
+        }
+        long position = keys.position();
+        keys.put(bytes);
+        return position;
+    }
+
+    /**
+     * Doubles the buffer size until it holds the required bytes, but not beyond {@link #MAX_BUFFER_SIZE}.
+     */
+    static int grow(int size, long required) {
+        if (required > MAX_BUFFER_SIZE)
+            throw new IllegalStateException("the index needs " + required + " bytes, at most " + MAX_BUFFER_SIZE
+                    + " fit into a buffer");
+        return (int) Math.min(MAX_BUFFER_SIZE, Math.max(2L * size, required));
+    }
+
+    private void resize() {
+        var oldSlots = slots;
+        int oldCapacity = capacity;
+        if (2L * oldCapacity * SLOT_SIZE > MAX_BUFFER_SIZE)
+            throw new IllegalStateException("the index can't hold more than " + size + " keys");
+        capacity *= 2;
+        slots = ByteBuffer.allocateDirect(capacity * SLOT_SIZE);
+        for (int oldSlot = 0; oldSlot < oldCapacity; oldSlot++) {
+            int oldPosition = oldSlot * SLOT_SIZE;
+            if (oldSlots.getLong(oldPosition + 16) == 0)
+                continue;
+            int slot = oldSlots.getInt(oldPosition) & (capacity - 1);
+            while (!isEmpty(slot))
+                slot = (slot + 1) & (capacity - 1);
+            slots.put(slot * SLOT_SIZE, oldSlots, oldPosition, SLOT_SIZE);
+        }
+    }
+}
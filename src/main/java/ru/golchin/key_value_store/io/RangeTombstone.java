@@ -0,0 +1,50 @@
+package ru.golchin.key_value_store.io;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * Removal of all keys in [{@code from}, {@code to}).
+ */
+public record RangeTombstone(String from, String to) {
+    public RangeTombstone {
+        if (from.compareTo(to) >= 0)
+            throw new IllegalArgumentException("empty range: [" + from + ", " + to + ")");
+    }
+
+    public boolean covers(String key) {
+        return from.compareTo(key) <= 0 && key.compareTo(to) < 0;
+    }
+
+    /**
+     * Part of the range within [{@code lower}, {@code upper}), null if there is none; null bounds are unbounded.
+     */
+    public RangeTombstone clip(String lower, String upper) {
+        String from = lower != null && lower.compareTo(this.from) > 0 ? lower : this.from;
+        String to = upper != null && upper.compareTo(this.to) < 0 ? upper : this.to;
+        return from.compareTo(to) < 0 ? new RangeTombstone(from, to) : null;
+    }
+
+    /**
+     * Smallest set of disjoint tombstones that cover the same keys, sorted by start.
+     */
+    public static List<RangeTombstone> union(Collection<RangeTombstone> tombstones) {
+        var sorted = new ArrayList<>(tombstones);
+        sorted.sort(Comparator.comparing(RangeTombstone::from));
+        var union = new ArrayList<RangeTombstone>();
+        RangeTombstone last = null;
+        for (var tombstone : sorted) {
+            if (last != null && tombstone.from().compareTo(last.to()) <= 0) {
+                if (tombstone.to().compareTo(last.to()) > 0)
+                    last = new RangeTombstone(last.from(), tombstone.to());
+                union.set(union.size() - 1, last);
+            } else {
+                last = tombstone;
+                union.add(last);
+            }
+        }
+        return union;
+    }
+}
@@ -0,0 +1,132 @@
+package ru.golchin.key_value_store.io;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket that limits the bytes per second of background I/O, i.e. flushes and compactions. The bucket holds
+ * at most {@link #BURST_NANOS} worth of tokens, a request for more bytes than there are tokens takes them on credit
+ * and waits until the debt is paid off, so large requests are not starved by small ones.
+ * <p>
+ * The limit can be changed at any time. With {@link #targetLatency(long, long)} the limiter also adapts to
+ * the latency of foreground reads reported with {@link #recordLatency(long)}: every {@link #ADJUST_NANOS} the rate
+ * is cut by a quarter if the mean latency is above the target, otherwise it grows back towards the limit
+ * by a twentieth of it.
+ */
+public class RateLimiter {
+    public static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    public static final long ADJUST_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private final LongAdder latencySum = new LongAdder();
+    private final LongAdder latencyCount = new LongAdder();
+    private long maxBytesPerSecond;
+    private long minBytesPerSecond;
+    private volatile long targetLatencyNanos;
+    private volatile long bytesPerSecond;
+    private double tokens;
+    private long refillNanos = System.nanoTime();
+    private long adjustNanos = refillNanos;
+
+    public RateLimiter(long bytesPerSecond) {
+        setBytesPerSecond(bytesPerSecond);
+        tokens = getBurst();
+    }
+
+    /**
+     * Changes the limit, an adaptive limiter doesn't go above it.
+     */
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        if (bytesPerSecond <= 0)
+            throw new IllegalArgumentException("rate must be positive: " + bytesPerSecond);
+        refill(System.nanoTime());
+        this.maxBytesPerSecond = bytesPerSecond;
+        this.minBytesPerSecond = Math.min(minBytesPerSecond, bytesPerSecond);
+        this.bytesPerSecond = bytesPerSecond;
+        tokens = Math.min(tokens, getBurst());
+    }
+
+    /**
+     * Current rate, below the limit while an adaptive limiter backs off.
+     */
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * Makes the limiter adapt to the foreground latency, the rate stays between {@code minBytesPerSecond} and
+     * the limit.
+     */
+    public synchronized RateLimiter targetLatency(long targetLatencyNanos, long minBytesPerSecond) {
+        if (targetLatencyNanos <= 0)
+            throw new IllegalArgumentException("target latency must be positive: " + targetLatencyNanos);
+        if (minBytesPerSecond <= 0 || minBytesPerSecond > maxBytesPerSecond)
+            throw new IllegalArgumentException("minimal rate must be in (0, " + maxBytesPerSecond + "]: "
+                    + minBytesPerSecond);
+        this.targetLatencyNanos = targetLatencyNanos;
+        this.minBytesPerSecond = minBytesPerSecond;
+        return this;
+    }
+
+    /**
+     * Reports the latency of a foreground operation, ignored unless a target latency is set.
+     */
+    public void recordLatency(long nanos) {
+        recordLatency(nanos, 1);
+    }
+
+    /**
+     * Reports the total latency of a number of foreground operations done at once, e.g. the lookups of a batch,
+     * so that they weigh in the mean like as many single operations.
+     */
+    public void recordLatency(long nanos, long operations) {
+        if (targetLatencyNanos == 0 || operations <= 0)
+            return;
+        latencySum.add(nanos);
+        latencyCount.add(operations);
+    }
+
+    /**
+     * Takes the tokens for the bytes, waiting until the bucket has them.
+     */
+    public void acquire(long bytes) throws InterruptedIOException {
+        long waitNanos;
+        synchronized (this) {
+            long now = System.nanoTime();
+            refill(now);
+            adjust(now);
+            tokens -= bytes;
+            waitNanos = tokens >= 0 ? 0 : (long) Math.ceil(-tokens * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond);
+        }
+        if (waitNanos == 0)
+            return;
+        try {
+            TimeUnit.NANOSECONDS.sleep(waitNanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + bytes + " bytes of I/O");
+        }
+    }
+
+    private double getBurst() {
+        return (double) bytesPerSecond * BURST_NANOS / TimeUnit.SECONDS.toNanos(1);
+    }
+
+    private void refill(long now) {
+        double refilled = (double) bytesPerSecond * (now - refillNanos) / TimeUnit.SECONDS.toNanos(1);
+        tokens = Math.min(getBurst(), tokens + refilled);
+        refillNanos = now;
+    }
+
+    private void adjust(long now) {
+        if (targetLatencyNanos == 0 || now - adjustNanos < ADJUST_NANOS)
+            return;
+        adjustNanos = now;
+        long count = latencyCount.sumThenReset();
+        long sum = latencySum.sumThenReset();
+        if (count > 0 && sum / count > targetLatencyNanos)
+            bytesPerSecond = Math.max(minBytesPerSecond, bytesPerSecond * 3 / 4);
+        else
+            bytesPerSecond = Math.min(maxBytesPerSecond, bytesPerSecond + Math.max(maxBytesPerSecond / 20, 1));
+        tokens = Math.min(tokens, getBurst());
+    }
+}
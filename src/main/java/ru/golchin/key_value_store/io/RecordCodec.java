@@ -0,0 +1,167 @@
+package ru.golchin.key_value_store.io;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Record layout of the block format. Each string is prefixed with a varint holding its encoded length plus one,
+ * zero stands for a null value (a tombstone).
+ * <p>
+ * Strings are UTF-8 encoded one UTF-16 char at a time (as in CESU-8), so that any Java string including
+ * one with unpaired surrogates round-trips. For ASCII data this is plain UTF-8.
+ */
+public final class RecordCodec {
+    private RecordCodec() {
+    }
+
+    public static int getRecordSize(String key, String value) {
+        return getSize(key) + getSize(value);
+    }
+
+    private static int getSize(String s) {
+        if (s == null)
+            return 1;
+        int length = encodedLength(s);
+        return varIntSize(length + 1) + length;
+    }
+
+    public static byte[] encode(String key, String value) {
+        var bytes = new byte[getRecordSize(key, value)];
+        encode(bytes, 0, key, value);
+        return bytes;
+    }
+
+    /**
+     * Encodes the record into an array that has {@link #getRecordSize(String, String)} bytes left at
+     * {@code position}, returns the position after the record.
+     */
+    public static int encode(byte[] bytes, int position, String key, String value) {
+        position = writeString(bytes, position, key);
+        return writeString(bytes, position, value);
+    }
+
+    public static KeyValueRecord decode(ByteBuffer buffer) {
+        String key = readString(buffer);
+        String value = readString(buffer);
+        return new KeyValueRecord(key, value);
+    }
+
+    /**
+     * A range tombstone is encoded as a record with a null key and the start of the range as its value,
+     * followed by the end of the range. Keys are never null, so it can be told apart from a record by its first byte.
+     */
+    public static byte[] encodeRangeTombstone(RangeTombstone tombstone) {
+        var bytes = new byte[1 + getSize(tombstone.from()) + getSize(tombstone.to())];
+        int position = writeVarInt(bytes, 0, 0);
+        position = writeString(bytes, position, tombstone.from());
+        writeString(bytes, position, tombstone.to());
+        return bytes;
+    }
+
+    public static boolean isRangeTombstone(ByteBuffer buffer) {
+        return buffer.get(buffer.position()) == 0;
+    }
+
+    public static RangeTombstone decodeRangeTombstone(ByteBuffer buffer) {
+        if (readVarInt(buffer) != 0)
+            throw new IllegalArgumentException("not a range tombstone at " + buffer.position());
+        return new RangeTombstone(readString(buffer), readString(buffer));
+    }
+
+    /**
+     * Encoding of a string without the length prefix. It preserves the order of strings: bytes compared as unsigned
+     * values are in the order of the strings' chars.
+     */
+    public static byte[] toBytes(String s) {
+        var bytes = new byte[encodedLength(s)];
+        writeChars(bytes, 0, s);
+        return bytes;
+    }
+
+    public static String fromBytes(byte[] bytes, int length) {
+        return readChars(ByteBuffer.wrap(bytes, 0, length), length);
+    }
+
+    private static int writeString(byte[] bytes, int position, String s) {
+        if (s == null)
+            return writeVarInt(bytes, position, 0);
+        position = writeVarInt(bytes, position, encodedLength(s) + 1);
+        return writeChars(bytes, position, s);
+    }
+
+    private static int writeChars(byte[] bytes, int position, String s) {
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c < 0x80) {
+                bytes[position++] = (byte) c;
+            } else if (c < 0x800) {
+                bytes[position++] = (byte) (0xc0 | c >> 6);
+                bytes[position++] = (byte) (0x80 | c & 0x3f);
+            } else {
+                bytes[position++] = (byte) (0xe0 | c >> 12);
+                bytes[position++] = (byte) (0x80 | c >> 6 & 0x3f);
+                bytes[position++] = (byte) (0x80 | c & 0x3f);
+            }
+        }
+        return position;
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = readVarInt(buffer) - 1;
+        if (length < 0)
+            return null;
+        return readChars(buffer, length);
+    }
+
+    private static String readChars(ByteBuffer buffer, int length) {
+        var chars = new char[length];
+        int n = 0;
+        int end = buffer.position() + length;
+        while (buffer.position() < end) {
+            int b = buffer.get() & 0xff;
+            if (b < 0x80) {
+                chars[n++] = (char) b;
+            } else if (b < 0xe0) {
+                chars[n++] = (char) ((b & 0x1f) << 6 | buffer.get() & 0x3f);
+            } else {
+                chars[n++] = (char) ((b & 0x0f) << 12 | (buffer.get() & 0x3f) << 6 | buffer.get() & 0x3f);
+            }
+        }
+        return new String(chars, 0, n);
+    }
+
+    static int encodedLength(String s) {
+        int length = s.length();
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80)
+                length += c < 0x800 ? 1 : 2;
+        }
+        return length;
+    }
+
+    static int varIntSize(int value) {
+        int size = 1;
+        while ((value >>>= 7) != 0)
+            size++;
+        return size;
+    }
+
+    static int writeVarInt(byte[] bytes, int position, int value) {
+        while ((value & ~0x7f) != 0) {
+            bytes[position++] = (byte) (value & 0x7f | 0x80);
+            value >>>= 7;
+        }
+        bytes[position++] = (byte) value;
+        return position;
+    }
+
+    static int readVarInt(ByteBuffer buffer) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buffer.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0)
+                return value;
+        }
+    }
+}
@@ -0,0 +1,214 @@
+package ru.golchin.key_value_store.io;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.SortedMap;
+
+/**
+ * Sorted map of keys to offsets that is searched right in the mapped file:
+ * <pre>
+ * int magic | int count | entry* | int restart* | int restartCount | int crc32c
+ * entry: varint sharedLength | varint suffixLength | suffix | long offset
+ * </pre>
+ * Keys are stored as {@link RecordCodec#toBytes(String)}, each one shares a prefix with the previous key except for
+ * every {@value #RESTART_INTERVAL}th key that is stored in full. A lookup binary searches the full keys by their
+ * positions in the restart array and then decodes at most {@value #RESTART_INTERVAL} keys.
+ */
+public class SortedIndex {
+    static final int MAGIC = 0x53494458;
+    static final int RESTART_INTERVAL = 16;
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int restartCount;
+    private final int restartsPosition;
+
+    private SortedIndex(ByteBuffer buffer) {
+        this.buffer = buffer;
+        this.count = buffer.getInt(4);
+        this.restartCount = buffer.getInt(buffer.limit() - 4);
+        this.restartsPosition = buffer.limit() - 4 - 4 * restartCount;
+    }
+
+    public static SortedIndex read(Path path) throws IOException {
+        ByteBuffer buffer = IndexFiles.map(path, MAGIC);
+        // the checksum only tells that the content is what was written, not that it is an index
+        if (buffer.limit() < 12)
+            throw new IOException("corrupted index header in " + path);
+        int count = buffer.getInt(4);
+        int restartCount = buffer.getInt(buffer.limit() - 4);
+        if (count < 0 || restartCount != (count + (long) RESTART_INTERVAL - 1) / RESTART_INTERVAL
+                || 8 + 4L * restartCount > buffer.limit() - 4)
+            throw new IOException("corrupted index header in " + path);
+        return new SortedIndex(buffer);
+    }
+
+    public static void write(Path path, SortedMap<String, ? extends Number> entries) throws IOException {
+        var encoded = new ArrayList<byte[]>(entries.size());
+        int size = 12;
+        for (String key : entries.keySet()) {
+            byte[] bytes = RecordCodec.toBytes(key);
+            encoded.add(bytes);
+            size += 2 * 5 + bytes.length + 8;
+        }
+        var restarts = new int[(entries.size() + RESTART_INTERVAL - 1) / RESTART_INTERVAL];
+        var buffer = ByteBuffer.allocate(size + 4 * restarts.length);
+        buffer.putInt(MAGIC).putInt(entries.size());
+        var varInt = new byte[5];
+        byte[] previous = null;
+        int i = 0;
+        for (Number offset : entries.values()) {
+            byte[] key = encoded.get(i);
+            int shared = 0;
+            if (i % RESTART_INTERVAL == 0)
+                restarts[i / RESTART_INTERVAL] = buffer.position();
+            else
+                shared = Math.max(Arrays.mismatch(previous, key), 0);
+            buffer.put(varInt, 0, RecordCodec.writeVarInt(varInt, 0, shared));
+            buffer.put(varInt, 0, RecordCodec.writeVarInt(varInt, 0, key.length - shared));
+            buffer.put(key, shared, key.length - shared);
+            buffer.putLong(offset.longValue());
+            previous = key;
+            i++;
+        }
+        for (int restart : restarts)
+            buffer.putInt(restart);
+        buffer.putInt(restarts.length);
+        IndexFiles.write(path, buffer);
+    }
+
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * Position of the greatest key that is less than or equal to the key, -1 if there is none.
+     */
+    public int floorIndex(String key) {
+        Entry entry = search(RecordCodec.toBytes(key), true);
+        return entry == null ? -1 : entry.index();
+    }
+
+    /**
+     * Position of the greatest key that is less than the key, -1 if there is none.
+     */
+    public int lowerIndex(String key) {
+        Entry entry = search(RecordCodec.toBytes(key), false);
+        return entry == null ? -1 : entry.index();
+    }
+
+    /**
+     * Offset of the greatest key that is less than or equal to the key, -1 if there is none.
+     */
+    public long floorOffset(String key) {
+        Entry entry = search(RecordCodec.toBytes(key), true);
+        return entry == null ? -1 : entry.offset();
+    }
+
+    public String getKey(int index) {
+        return seek(index).getKey();
+    }
+
+    public long getOffset(int index) {
+        return seek(index).offset;
+    }
+
+    private Cursor seek(int index) {
+        if (index < 0 || index >= count)
+            throw new IndexOutOfBoundsException(index);
+        var cursor = new Cursor(index / RESTART_INTERVAL);
+        while (cursor.index < index)
+            cursor.next();
+        return cursor;
+    }
+
+    private record Entry(int index, long offset) {
+    }
+
+    /**
+     * Finds the last entry with a key that is less than the key, or equal to it if the search is inclusive.
+     */
+    private Entry search(byte[] key, boolean isInclusive) {
+        int low = 0;
+        int high = restartCount - 1;
+        Cursor cursor = null;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            var midCursor = new Cursor(mid);
+            if (midCursor.precedes(key, isInclusive)) {
+                cursor = midCursor;
+                low = mid + 1;
+            } else {
+                high = mid - 1;
+            }
+        }
+        if (cursor == null)
+            return null;
+        var entry = new Entry(cursor.index, cursor.offset);
+        int end = Math.min(count, (cursor.restart + 1) * RESTART_INTERVAL);
+        while (cursor.index + 1 < end) {
+            cursor.next();
+            if (!cursor.precedes(key, isInclusive))
+                break;
+            entry = new Entry(cursor.index, cursor.offset);
+        }
+        return entry;
+    }
+
+    /**
+     * Decodes the entries of one restart interval in order, using absolute reads of the shared buffer.
+     */
+    private class Cursor {
+        private final int restart;
+        private int index;
+        private int position;
+        private byte[] key = new byte[32];
+        private int keyLength;
+        private long offset;
+
+        Cursor(int restart) {
+            this.restart = restart;
+            this.index = restart * RESTART_INTERVAL - 1;
+            this.position = buffer.getInt(restartsPosition + 4 * restart);
+            next();
+        }
+
+        void next() {
+            int shared = readVarInt();
+            int suffix = readVarInt();
+            if (shared + suffix > key.length)
+                key = Arrays.copyOf(key, Math.max(2 * key.length, shared + suffix));
+            buffer.get(position, key, shared, suffix);
+            position += suffix;
+            keyLength = shared + suffix;
+            offset = buffer.getLong(position);
+            position += 8;
+            index++;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte b = buffer.get(position++);
+                value |= (b & 0x7f) << shift;
+                if (b >= 0)
+                    return value;
+            }
+        }
+
+        boolean precedes(byte[] other, boolean isInclusive) {
+            int cmp = Arrays.compareUnsigned(key, 0, keyLength, other, 0, other.length);
+            return cmp < 0 || isInclusive && cmp == 0;
+        }
+
+        String getKey() {
+            return RecordCodec.fromBytes(key, keyLength);
+        }
+    }
+}
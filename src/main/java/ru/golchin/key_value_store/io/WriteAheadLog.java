@@ -0,0 +1,273 @@
+package ru.golchin.key_value_store.io;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+
+import static java.nio.file.StandardOpenOption.*;
+
+/**
+ * Log of the writes that are not yet in a data file. Every entry is
+ * <pre>
+ * int payloadLength | int crc32c(payload) | payload
+ * </pre>
+ * where the payload is a sequence of records and range tombstones in the {@link RecordCodec} layout. Replay stops at
+ * the tail torn by a crash: an entry that is truncated, or the last entry if it doesn't match its checksum.
+ * Any other damaged entry fails the replay, since the entries after it were acknowledged.
+ */
+public class WriteAheadLog implements Closeable {
+    private static final int ENTRY_HEADER_SIZE = 8;
+    private final FileChannel channel;
+    private final Durability durability;
+    private final long groupCommitNanos;
+    private final long groupCommitBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+    private long writtenBytes;
+    private long syncedBytes;
+    private long firstUnsyncedNanos;
+    private boolean isSyncing;
+
+    public WriteAheadLog(Path path, Durability durability, long groupCommitNanos, long groupCommitBytes)
+            throws IOException {
+        this.channel = FileChannel.open(path, CREATE, WRITE, APPEND);
+        this.durability = durability;
+        this.groupCommitNanos = groupCommitNanos;
+        this.groupCommitBytes = groupCommitBytes;
+        this.writtenBytes = this.syncedBytes = channel.size();
+    }
+
+    /**
+     * Receives the logged writes in the order in which they were appended.
+     */
+    public interface Replayer {
+        void put(String key, String value);
+
+        void removeRange(RangeTombstone tombstone);
+    }
+
+    public void append(String key, String value) throws IOException {
+        sync(write(key, value));
+    }
+
+    /**
+     * Logs the records as one entry, replay restores either all of them or none.
+     */
+    public void appendBatch(List<KeyValueRecord> records) throws IOException {
+        sync(writeBatch(records));
+    }
+
+    public void appendRangeTombstone(RangeTombstone tombstone) throws IOException {
+        sync(writeRangeTombstone(tombstone));
+    }
+
+    /**
+     * Writes the record without waiting for the log to be synced, so that the caller can order the write with
+     * other state while only the write itself is serialized.
+     *
+     * @return position to pass to {@link #sync(long)}
+     */
+    public long write(String key, String value) throws IOException {
+        return write(encode(List.of(new KeyValueRecord(key, value))));
+    }
+
+    /**
+     * Same as {@link #write(String, String)} for {@link #appendBatch(List)}.
+     */
+    public long writeBatch(List<KeyValueRecord> records) throws IOException {
+        return write(encode(records));
+    }
+
+    /**
+     * Same as {@link #write(String, String)} for {@link #appendRangeTombstone(RangeTombstone)}.
+     */
+    public long writeRangeTombstone(RangeTombstone tombstone) throws IOException {
+        return write(frame(RecordCodec.encodeRangeTombstone(tombstone)));
+    }
+
+    private long write(ByteBuffer entry) throws IOException {
+        lock.lock();
+        try {
+            if (writtenBytes == syncedBytes)
+                firstUnsyncedNanos = System.nanoTime();
+            while (entry.hasRemaining())
+                channel.write(entry);
+            writtenBytes += entry.limit();
+            if (durability == Durability.GROUP_COMMIT && writtenBytes - syncedBytes >= groupCommitBytes)
+                synced.signalAll();
+            return writtenBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits until the log is durable up to {@code end} as its {@link Durability} demands.
+     */
+    public void sync(long end) throws IOException {
+        switch (durability) {
+            case SYNC -> {
+                lock.lock();
+                try {
+                    // a sync on behalf of a later write covers this one too
+                    if (syncedBytes < end) {
+                        long target = writtenBytes;
+                        channel.force(false);
+                        syncedBytes = target;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+            }
+            case ASYNC -> {
+            }
+            case GROUP_COMMIT -> awaitSync(end);
+        }
+    }
+
+    /**
+     * Waits until the log is synced up to {@code end}. One of the waiting writers syncs on behalf of all others
+     * as soon as the group commit window closes.
+     */
+    private void awaitSync(long end) throws IOException {
+        lock.lock();
+        try {
+            while (syncedBytes < end) {
+                long now = System.nanoTime();
+                long windowEnd = firstUnsyncedNanos + groupCommitNanos;
+                if (!isSyncing && (writtenBytes - syncedBytes >= groupCommitBytes || now - windowEnd >= 0)) {
+                    isSyncing = true;
+                    long target = writtenBytes;
+                    lock.unlock();
+                    try {
+                        channel.force(false);
+                    } finally {
+                        lock.lock();
+                        isSyncing = false;
+                    }
+                    syncedBytes = Math.max(syncedBytes, target);
+                    firstUnsyncedNanos = System.nanoTime();
+                    synced.signalAll();
+                } else {
+                    synced.awaitNanos(isSyncing ? groupCommitNanos : Math.max(windowEnd - now, 1));
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for group commit");
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static ByteBuffer encode(List<KeyValueRecord> records) {
+        var encoded = new ArrayList<byte[]>(records.size());
+        int payloadLength = 0;
+        for (var record : records) {
+            byte[] bytes = RecordCodec.encode(record.getKey(), record.getValue());
+            encoded.add(bytes);
+            payloadLength += bytes.length;
+        }
+        var payload = new byte[payloadLength];
+        int position = 0;
+        for (byte[] bytes : encoded) {
+            System.arraycopy(bytes, 0, payload, position, bytes.length);
+            position += bytes.length;
+        }
+        return frame(payload);
+    }
+
+    private static ByteBuffer frame(byte[] payload) {
+        var entry = ByteBuffer.allocate(ENTRY_HEADER_SIZE + payload.length);
+        entry.position(ENTRY_HEADER_SIZE);
+        entry.put(payload);
+        var crc = new CRC32C();
+        crc.update(payload);
+        entry.putInt(0, payload.length);
+        entry.putInt(4, (int) crc.getValue());
+        return entry.flip();
+    }
+
+    /**
+     * Returns the logged records, range tombstones are left out.
+     */
+    public static List<KeyValueRecord> replay(Path path) throws IOException {
+        var records = new ArrayList<KeyValueRecord>();
+        replay(path, new Replayer() {
+            @Override
+            public void put(String key, String value) {
+                records.add(new KeyValueRecord(key, value));
+            }
+
+            @Override
+            public void removeRange(RangeTombstone tombstone) {
+            }
+        });
+        return records;
+    }
+
+    public static void replay(Path path, Replayer replayer) throws IOException {
+        try (var channel = FileChannel.open(path, READ)) {
+            var header = ByteBuffer.allocate(ENTRY_HEADER_SIZE);
+            long position = 0;
+            long size = channel.size();
+            while (position + ENTRY_HEADER_SIZE <= size) {
+                header.clear();
+                readFully(channel, header, position);
+                int payloadLength = header.getInt(0);
+                if (payloadLength < 0)
+                    throw new IOException("corrupted entry length in " + path + " at " + position);
+                long end = position + ENTRY_HEADER_SIZE + payloadLength;
+                if (end > size)
+                    break;
+                var payload = ByteBuffer.allocate(payloadLength);
+                readFully(channel, payload, position + ENTRY_HEADER_SIZE);
+                var crc = new CRC32C();
+                crc.update(payload.array());
+                if ((int) crc.getValue() != header.getInt(4)) {
+                    if (end == size)
+                        break;
+                    throw new IOException("checksum mismatch in " + path + " at " + position
+                            + ", the entry is followed by more entries");
+                }
+                payload.flip();
+                while (payload.hasRemaining()) {
+                    if (RecordCodec.isRangeTombstone(payload)) {
+                        replayer.removeRange(RecordCodec.decodeRangeTombstone(payload));
+                    } else {
+                        KeyValueRecord record = RecordCodec.decode(payload);
+                        replayer.put(record.getKey(), record.getValue());
+                    }
+                }
+                position += ENTRY_HEADER_SIZE + payloadLength;
+            }
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0)
+                throw new IOException("unexpected end of " + channel);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            if (channel.isOpen())
+                channel.force(false);
+            channel.close();
+        } finally {
+            lock.unlock();
+        }
+    }
+}
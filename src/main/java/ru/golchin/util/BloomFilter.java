@@ -0,0 +1,116 @@
+package ru.golchin.util;
+
+import java.io.*;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.zip.CRC32C;
+import java.util.zip.CheckedOutputStream;
+
+import static java.nio.file.StandardOpenOption.READ;
+
+/**
+ * Bloom filter over string keys. Bit positions are derived from a single 64-bit hash of the key
+ * with the Kirsch-Mitzenmacher double hashing scheme. A filter that is read from a file is probed right
+ * in the mapped file, which is
+ * <pre>
+ * int numHashFunctions | int length | long[length] bits | int crc32c
+ * </pre>
+ * Files written before checksums were introduced end with the bits.
+ */
+public class BloomFilter {
+    private final LongBuffer bits;
+    private final int numHashFunctions;
+
+    public BloomFilter(int expectedInsertions, double falsePositiveRate) {
+        if (falsePositiveRate <= 0 || falsePositiveRate >= 1)
+            throw new IllegalArgumentException("false positive rate must be in (0, 1): " + falsePositiveRate);
+        int n = Math.max(1, expectedInsertions);
+        long numBits = Math.max(64, (long) (-n * Math.log(falsePositiveRate) / (Math.log(2) * Math.log(2))));
+        bits = LongBuffer.wrap(new long[Math.toIntExact((numBits + 63) / 64)]);
+        numHashFunctions = Math.max(1, (int) Math.round((double) bits.capacity() * 64 / n * Math.log(2)));
+    }
+
+    private BloomFilter(LongBuffer bits, int numHashFunctions) {
+        this.bits = bits;
+        this.numHashFunctions = numHashFunctions;
+    }
+
+    public void add(String key) {
+        long hash = hash(key);
+        long h1 = hash;
+        long h2 = mix(hash ^ 0x9E3779B97F4A7C15L);
+        long numBits = (long) bits.capacity() * 64;
+        for (int i = 0; i < numHashFunctions; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            int word = (int) (bit >>> 6);
+            bits.put(word, bits.get(word) | 1L << bit);
+        }
+    }
+
+    public boolean mightContain(String key) {
+        long hash = hash(key);
+        long h1 = hash;
+        long h2 = mix(hash ^ 0x9E3779B97F4A7C15L);
+        long numBits = (long) bits.capacity() * 64;
+        for (int i = 0; i < numHashFunctions; i++) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((bits.get((int) (bit >>> 6)) & (1L << bit)) == 0)
+                return false;
+        }
+        return true;
+    }
+
+    public void writeTo(Path path) throws IOException {
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(path)))) {
+            var crc = new CRC32C();
+            var checked = new DataOutputStream(new CheckedOutputStream(out, crc));
+            checked.writeInt(numHashFunctions);
+            checked.writeInt(bits.capacity());
+            for (int i = 0; i < bits.capacity(); i++)
+                checked.writeLong(bits.get(i));
+            checked.flush();
+            out.writeInt((int) crc.getValue());
+        }
+    }
+
+    public static BloomFilter readFrom(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.capacity() < 8)
+                throw new IOException("corrupted filter " + path);
+            int numHashFunctions = buffer.getInt(0);
+            int length = buffer.getInt(4);
+            long contentSize = 8 + 8L * length;
+            if (numHashFunctions <= 0 || length < 0 || contentSize != buffer.capacity() && contentSize + 4 != buffer.capacity())
+                throw new IOException("corrupted filter " + path);
+            if (contentSize != buffer.capacity()) {
+                var crc = new CRC32C();
+                crc.update(buffer.duplicate().limit((int) contentSize));
+                if ((int) crc.getValue() != buffer.getInt((int) contentSize))
+                    throw new IOException("checksum mismatch in " + path);
+            }
+            return new BloomFilter(buffer.slice(8, 8 * length).asLongBuffer(), numHashFunctions);
+        }
+    }
+
+    private static long hash(String key) {
+        // FNV-1a over UTF-16 chars followed by a finalizer to spread the bits
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < key.length(); i++) {
+            h ^= key.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        return mix(h);
+    }
+
+    private static long mix(long h) {
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
@@ -0,0 +1,12 @@
+package ru.golchin.util;
+
+import java.io.Closeable;
+import java.util.Iterator;
+
+/**
+ * Iterator that holds resources until it's closed.
+ */
+public interface CloseableIterator<E> extends Iterator<E>, Closeable {
+    @Override
+    void close();
+}
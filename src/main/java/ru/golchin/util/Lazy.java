@@ -0,0 +1,40 @@
+package ru.golchin.util;
+
+/**
+ * Value that is computed on first access, at most once even if several threads ask for it at the same time.
+ * A failed computation is retried on the next access. The value must not be null.
+ */
+public final class Lazy<T, E extends Exception> {
+    private volatile ThrowingSupplier<T, E> supplier;
+    private volatile T value;
+
+    private Lazy(ThrowingSupplier<T, E> supplier, T value) {
+        this.supplier = supplier;
+        this.value = value;
+    }
+
+    public static <T, E extends Exception> Lazy<T, E> of(ThrowingSupplier<T, E> supplier) {
+        return new Lazy<>(supplier, null);
+    }
+
+    /**
+     * Value that is already known.
+     */
+    public static <T, E extends Exception> Lazy<T, E> value(T value) {
+        return new Lazy<>(null, value);
+    }
+
+    public T get() throws E {
+        T value = this.value;
+        if (value != null)
+            return value;
+        synchronized (this) {
+            if (this.value == null) {
+                this.value = supplier.get();
+                // the supplier may capture a lot
+                supplier = null;
+            }
+            return this.value;
+        }
+    }
+}
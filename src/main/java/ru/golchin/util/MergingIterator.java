@@ -0,0 +1,86 @@
+package ru.golchin.util;
+
+import java.util.*;
+
+/**
+ * Merges sorted iterators into one sorted iterator with a heap of their heads,
+ * so every element costs O(log k) comparisons for k iterators.
+ * <p>
+ * Elements that compare equal are returned once: the one from the iterator that comes last in the list wins
+ * and the others are skipped. For log files this means that iterators have to be passed from the oldest file
+ * to the newest one.
+ * <p>
+ * Sources are only advanced with {@link PeekableIterator#peek()} followed by {@link Iterator#next()}.
+ */
+public class MergingIterator<E> implements PeekableIterator<E> {
+    private final PriorityQueue<Source<E>> heap;
+    private final Comparator<? super E> comparator;
+    private int lastSourceIndex = -1;
+
+    public MergingIterator(List<? extends PeekableIterator<E>> iterators, Comparator<? super E> comparator) {
+        this.comparator = comparator;
+        Comparator<Source<E>> byHead = (a, b) -> comparator.compare(a.head, b.head);
+        // among equal elements the newest source goes first
+        heap = new PriorityQueue<>(Math.max(1, iterators.size()), byHead.thenComparingInt(s -> -s.rank));
+        for (int i = 0; i < iterators.size(); i++) {
+            var source = new Source<E>(i, iterators.get(i));
+            if (source.load())
+                heap.add(source);
+        }
+    }
+
+    @Override
+    public E peek() {
+        Source<E> top = heap.peek();
+        return top == null ? null : top.head;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return !heap.isEmpty();
+    }
+
+    @Override
+    public E next() {
+        Source<E> top = heap.poll();
+        if (top == null)
+            throw new NoSuchElementException();
+        E result = top.head;
+        lastSourceIndex = top.rank;
+        advance(top);
+        while (!heap.isEmpty() && comparator.compare(heap.peek().head, result) == 0)
+            advance(heap.poll());
+        return result;
+    }
+
+    /**
+     * Index in the list of iterators of the iterator that the element last returned by {@link #next()} came from.
+     */
+    public int getLastSourceIndex() {
+        return lastSourceIndex;
+    }
+
+    private void advance(Source<E> source) {
+        source.iterator.next();
+        if (source.load())
+            heap.add(source);
+    }
+
+    private static class Source<E> {
+        final int rank;
+        final PeekableIterator<E> iterator;
+        E head;
+
+        Source(int rank, PeekableIterator<E> iterator) {
+            this.rank = rank;
+            this.iterator = iterator;
+        }
+
+        boolean load() {
+            if (!iterator.hasNext())
+                return false;
+            head = iterator.peek();
+            return head != null;
+        }
+    }
+}
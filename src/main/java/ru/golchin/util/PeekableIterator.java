@@ -1,6 +1,7 @@
 package ru.golchin.util;
 
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 public interface PeekableIterator<E> extends Iterator<E> {
     /**
@@ -8,4 +9,34 @@ public interface PeekableIterator<E> extends Iterator<E> {
      * It is not required for the method to throw {@link java.util.NoSuchElementException}.
      */
     E peek();
+
+    /**
+     * Wraps an iterator that has no nulls, the element returned by {@link #peek()} is fetched ahead of time.
+     */
+    static <E> PeekableIterator<E> of(Iterator<E> iterator) {
+        return new PeekableIterator<>() {
+            private E next;
+
+            @Override
+            public E peek() {
+                if (next == null && iterator.hasNext())
+                    next = iterator.next();
+                return next;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return next != null || iterator.hasNext();
+            }
+
+            @Override
+            public E next() {
+                E element = peek();
+                if (element == null)
+                    throw new NoSuchElementException();
+                next = null;
+                return element;
+            }
+        };
+    }
 }
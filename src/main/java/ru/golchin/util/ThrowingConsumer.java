@@ -0,0 +1,5 @@
+package ru.golchin.util;
+
+public interface ThrowingConsumer<T, E extends Exception> {
+    void accept(T t) throws E;
+}
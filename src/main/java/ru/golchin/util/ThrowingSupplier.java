@@ -0,0 +1,5 @@
+package ru.golchin.util;
+
+public interface ThrowingSupplier<T, E extends Exception> {
+    T get() throws E;
+}
@@ -1,11 +1,17 @@
 package ru.golchin.util;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
 
 import static java.nio.file.Files.exists;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
 
 public final class Util {
     private Util() {
@@ -23,4 +29,43 @@ public final class Util {
         });
         Files.delete(p);
     }
+
+    /**
+     * Waits for the future and rethrows the exception it failed with.
+     */
+    public static <V> V getResult(Future<V> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted while waiting for " + future);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException)
+                throw (RuntimeException) e.getCause();
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+    /**
+     * Forces the written contents of the file to disk.
+     */
+    public static void force(Path path) throws IOException {
+        try (var channel = FileChannel.open(path, WRITE)) {
+            channel.force(true);
+        }
+    }
+
+    /**
+     * Forces the entries of the directory to disk, so that created, moved and deleted files survive a crash.
+     * Directories can't be opened on Windows, where this does nothing.
+     */
+    public static void syncDirectory(Path directory) throws IOException {
+        if (System.getProperty("os.name").startsWith("Windows"))
+            return;
+        try (var channel = FileChannel.open(directory, READ)) {
+            channel.force(true);
+        }
+    }
 }
@@ -9,13 +9,18 @@ import ru.golchin.util.Util;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
-import java.util.Map;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -77,6 +82,178 @@ public abstract class CommonKeyValueStoreImplTest<T extends LogFile> extends Com
         pool.awaitTermination(1, TimeUnit.SECONDS);
     }
 
+    @Test
+    void concurrentWriters() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(8);
+        var futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < 8; t++) {
+            int thread = t;
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < 200; i++) {
+                    store.put(thread + "-" + i, String.valueOf(i).repeat(20));
+                }
+                return null;
+            }));
+        }
+        for (var future : futures) {
+            future.get();
+        }
+        pool.shutdown();
+        for (int t = 0; t < 8; t++) {
+            for (int i = 0; i < 200; i++) {
+                assertEquals(String.valueOf(i).repeat(20), store.get(t + "-" + i));
+            }
+        }
+        store.close();
+    }
+
+    @Test
+    void backgroundFlush() throws Exception {
+        store.close();
+        store = new KeyValueStoreImpl<>(storePath, HashIndexLogFile.MAX_SIZE, logFileConstructor, mergeFunction, false,
+                new StoreOptions().maxImmutableMemTables(1));
+        for (int i = 0; i < 500; i++) {
+            store.put(String.valueOf(i), String.valueOf(i).repeat(50));
+            assertEquals(String.valueOf(i / 2).repeat(50), store.get(String.valueOf(i / 2)));
+            if (i % 100 == 0)
+                store.compact();
+        }
+        store.close();
+        var other = new KeyValueStoreImpl<>(storePath, HashIndexLogFile.MAX_SIZE, logFileConstructor, mergeFunction, false);
+        for (int i = 0; i < 500; i++) {
+            assertEquals(String.valueOf(i).repeat(50), other.get(String.valueOf(i)));
+        }
+        other.close();
+    }
+
+    @Test
+    void scan() throws Exception {
+        var expected = new TreeMap<String, String>();
+        for (int i = 0; i < 300; i++) {
+            String key = String.format("%s%03d", i % 3 == 0 ? "a" : "b", i);
+            store.put(key, String.valueOf(i).repeat(20));
+            expected.put(key, String.valueOf(i).repeat(20));
+            if (i % 7 == 0) {
+                store.remove(key);
+                expected.remove(key);
+            }
+            if (i % 100 == 0)
+                store.compact();
+        }
+        try (var all = store.scan(null, null)) {
+            assertEquals(List.copyOf(expected.entrySet()), toList(all));
+        }
+        try (var range = store.scan("a050", "b100")) {
+            assertEquals(List.copyOf(expected.subMap("a050", "b100").entrySet()), toList(range));
+        }
+        try (var reverse = store.reverseScan("a050", null)) {
+            assertEquals(List.copyOf(expected.tailMap("a050", true).descendingMap().entrySet()), toList(reverse));
+        }
+        try (var prefix = store.prefixScan("a")) {
+            assertEquals(List.copyOf(expected.headMap("b").entrySet()), toList(prefix));
+        }
+        store.close();
+    }
+
+    @Test
+    void getAll() throws Exception {
+        var expected = new HashMap<String, String>();
+        var keys = new ArrayList<String>();
+        for (int i = 0; i < 300; i++) {
+            String key = String.valueOf(i * 7 % 300);
+            keys.add(key);
+            keys.add("missing" + i);
+            store.put(key, String.valueOf(i).repeat(20));
+            expected.put(key, String.valueOf(i).repeat(20));
+            if (i % 5 == 0) {
+                store.remove(key);
+                expected.remove(key);
+            }
+            if (i % 100 == 0)
+                store.compact();
+        }
+        assertEquals(expected, store.getAll(keys));
+        assertEquals(Map.of(), store.getAll(List.of()));
+        store.close();
+    }
+
+    @Test
+    void writeBatch() throws Exception {
+        store.put("b", "old");
+        var batch = new WriteBatch();
+        for (int i = 0; i < 100; i++)
+            batch.put("batch" + i, String.valueOf(i).repeat(100));
+        batch.put("a", "1").remove("b").put("c", "1").put("c", "2");
+        store.write(batch);
+        for (int i = 0; i < 100; i++)
+            assertEquals(String.valueOf(i).repeat(100), store.get("batch" + i));
+        assertEquals("1", store.get("a"));
+        assertNull(store.get("b"));
+        assertEquals("2", store.get("c"));
+        store.put("d", "1");
+        assertEquals("1", store.get("d"));
+        store.close();
+    }
+
+    @Test
+    void ingest() throws Exception {
+        for (int i = 0; i < 100; i++)
+            store.put(String.format("%05d", i), "old");
+        store.ingest(IntStream.range(50, 2000).mapToObj(i -> Map.entry(String.format("%05d", i), String.valueOf(i))));
+        store.put("00060", "new");
+        for (int i = 0; i < 2000; i++) {
+            String expected = i == 60 ? "new" : i < 50 ? "old" : String.valueOf(i);
+            assertEquals(expected, store.get(String.format("%05d", i)));
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> store.ingest(Stream.of(Map.entry("b", "1"), Map.entry("a", "2"))));
+        store.close();
+        var other = new KeyValueStoreImpl<>(storePath, HashIndexLogFile.MAX_SIZE, logFileConstructor, mergeFunction);
+        assertEquals("1999", other.get("01999"));
+        assertEquals("new", other.get("00060"));
+        assertNull(other.get("b"));
+        other.close();
+    }
+
+    @Test
+    void snapshot() throws Exception {
+        for (int i = 0; i < 200; i++)
+            store.put(String.valueOf(i), "old" + i);
+        var snapshot = store.snapshot();
+        // nothing was written since, so there is nothing to rotate
+        int fileCount = store.getFiles().size();
+        store.snapshot().close();
+        assertEquals(fileCount, store.getFiles().size());
+        for (int i = 0; i < 200; i++) {
+            if (i % 2 == 0)
+                store.remove(String.valueOf(i));
+            else
+                store.put(String.valueOf(i), "new" + i);
+        }
+        store.compact();
+        var scan = snapshot.scan(null, null);
+        for (int i = 0; i < 200; i++) {
+            assertEquals("old" + i, snapshot.get(String.valueOf(i)));
+            assertEquals(i % 2 == 0 ? null : "new" + i, store.get(String.valueOf(i)));
+        }
+        assertEquals(Map.of("0", "old0", "1", "old1"), snapshot.getAll(List.of("0", "1")));
+        try (var prefix = snapshot.prefixScan("1")) {
+            assertEquals(111, toList(prefix).size());
+        }
+        snapshot.close();
+        assertThrows(IllegalStateException.class, () -> snapshot.get("1"));
+        // the scan keeps the files of the snapshot
+        assertEquals(200, toList(scan).size());
+        scan.close();
+        store.close();
+    }
+
+    private static List<Map.Entry<String, String>> toList(Iterator<Map.Entry<String, String>> iterator) {
+        var list = new ArrayList<Map.Entry<String, String>>();
+        iterator.forEachRemaining(list::add);
+        return list;
+    }
+
     @Test
     void remove() throws Exception {
         assertNull(store.get("cd"));
@@ -106,11 +283,52 @@ public abstract class CommonKeyValueStoreImplTest<T extends LogFile> extends Com
         other.close();
     }
 
+    @Test
+    void parallelOpen() throws Exception {
+        store.close();
+        store = new KeyValueStoreImpl<>(storePath, HashIndexLogFile.MAX_SIZE, logFileConstructor, mergeFunction, false);
+        var map = new HashMap<String, String>();
+        for (int i = 0; i < 200; i++) {
+            String value = String.valueOf(i).repeat(100);
+            store.put(String.valueOf(i % 150), value);
+            map.put(String.valueOf(i % 150), value);
+        }
+        store.close();
+        assertTrue(store.getFiles().size() > 1);
+        store = new KeyValueStoreImpl<>(storePath, HashIndexLogFile.MAX_SIZE, logFileConstructor, mergeFunction, false,
+                new StoreOptions().openThreads(4));
+        for (var entry : map.entrySet())
+            assertEquals(entry.getValue(), store.get(entry.getKey()));
+    }
+
+    @Test
+    void verify() throws Exception {
+        for (int i = 0; i < 200; i++)
+            store.put(String.valueOf(i), String.valueOf(i).repeat(100));
+        store.close();
+        assertEquals(List.of(), StoreVerifier.verify(storePath, 2));
+        Path file = store.getFiles().get(0).getPath();
+        Path data = Files.exists(file.resolve(SSTableLogFile.BLOCKS_FILE_NAME))
+                ? file.resolve(SSTableLogFile.BLOCKS_FILE_NAME) : file.resolve(LogFile.DATA_FILE_NAME);
+        try (var channel = FileChannel.open(data, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            var buffer = ByteBuffer.allocate(1);
+            channel.read(buffer, channel.size() / 2);
+            buffer.put(0, (byte) (buffer.get(0) ^ 1));
+            channel.write(buffer.flip(), channel.size() / 2);
+        }
+        var problems = StoreVerifier.verify(storePath, 2);
+        assertEquals(1, problems.size());
+        assertTrue(problems.get(0).startsWith(data.toString()), problems.get(0));
+    }
+
     @AfterEach
     void tearDown() throws Exception {
         Files.list(storePath).forEach(p -> {
             try {
-                Util.deleteDirectory(p);
+                if (Files.isDirectory(p))
+                    Util.deleteDirectory(p);
+                else
+                    Files.delete(p);
             } catch (IOException e) {
                 throw new UncheckedIOException(e);
             }
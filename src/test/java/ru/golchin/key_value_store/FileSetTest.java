@@ -0,0 +1,44 @@
+package ru.golchin.key_value_store;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileSetTest {
+    @TempDir
+    Path directory;
+
+    @Test
+    void obsoleteFileIsDeletedAfterLastRelease() throws Exception {
+        var old = new SSTableLogFile(directory.resolve("1"));
+        old.put("a", "1");
+        old.closeOnWrite();
+        var oldMetadata = new FileMetadata(1, 0, 1);
+        var files = new TreeMap<FileMetadata, SSTableLogFile>(FileMetadata.READ_ORDER);
+        files.put(oldMetadata, old);
+        var current = new FileSet<>(files);
+        // a reader holds the set while a compaction replaces the file
+        assertTrue(current.acquire());
+        var compacted = new SSTableLogFile(directory.resolve("2"));
+        compacted.put("a", "1");
+        compacted.closeOnWrite();
+        var next = current.update(Map.of(new FileMetadata(2, 1, 1), compacted), List.of(oldMetadata));
+        old.markObsolete();
+        current.release();
+        assertEquals("1", old.get("a").getValue());
+        assertTrue(Files.exists(old.getPath()));
+        current.release();
+        assertFalse(Files.exists(old.getPath()));
+        assertFalse(current.acquire());
+        assertEquals(List.of(compacted), List.copyOf(next.getFiles().values()));
+        next.release();
+        assertTrue(Files.exists(compacted.getPath()));
+    }
+}
@@ -1,9 +1,46 @@
 package ru.golchin.key_value_store;
 
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class HashIndexStoreTest extends CommonKeyValueStoreImplTest<HashIndexLogFile> {
     public HashIndexStoreTest() {
         logFileConstructor = HashIndexLogFile::new;
         mergeFunction = HashIndexLogFileMergeFunction.INSTANCE;
     }
 
+    @Test
+    void removeRange() throws Exception {
+        store.close();
+        store = new KeyValueStoreImpl<>(storePath, 2 * 1024, logFileConstructor, mergeFunction, false);
+        for (int i = 0; i < 1000; i++)
+            store.put(String.format("%05d", i), String.valueOf(i));
+        // a record of the file that gets the tombstone is removed too
+        store.put("00120", "current");
+        store.removeRange("00100", "00200");
+        store.put("00150", "new");
+        for (int i = 0; i < 1000; i++) {
+            String key = String.format("%05d", i);
+            String expected = i == 150 ? "new" : i >= 100 && i < 200 ? null : String.valueOf(i);
+            assertEquals(expected, store.get(key));
+        }
+        try (var scan = store.scan("00098", "00202")) {
+            var keys = new ArrayList<String>();
+            scan.forEachRemaining(entry -> keys.add(entry.getKey()));
+            assertEquals(List.of("00098", "00099", "00150", "00200", "00201"), keys);
+        }
+        store.close();
+        store = new KeyValueStoreImpl<>(storePath, 2 * 1024, logFileConstructor, mergeFunction, false);
+        store.compact();
+        for (int i = 0; i < 1000; i++) {
+            String key = String.format("%05d", i);
+            String expected = i == 150 ? "new" : i >= 100 && i < 200 ? null : String.valueOf(i);
+            assertEquals(expected, store.get(key));
+        }
+        store.close();
+    }
 }
@@ -4,14 +4,26 @@ import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.MethodSource;
+import ru.golchin.key_value_store.io.Compression;
 import ru.golchin.key_value_store.io.KeyValueRecord;
+import ru.golchin.key_value_store.io.KeyValueWriter;
+import ru.golchin.key_value_store.io.WriteAheadLog;
 import ru.golchin.util.PeekableIterator;
 
 import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -22,7 +34,9 @@ class LogFileTest extends CommonTest {
 
     static List<LogFile> params() throws IOException {
         return List.of(new HashIndexLogFile(tempDirectory.resolve("hash")),
-                new SSTableLogFile(tempDirectory.resolve("sorted")));
+                new SSTableLogFile(tempDirectory.resolve("sorted")),
+                new SSTableLogFile(tempDirectory.resolve("compressed"),
+                        new SSTableOptions().blockSize(256).compression(Compression.DEFLATE)));
     }
 
     @ParameterizedTest
@@ -40,6 +54,36 @@ class LogFileTest extends CommonTest {
         logFile.closeOnWrite();
     }
 
+    @Test
+    void mappedReads() throws Exception {
+        mappedReads(new HashIndexLogFile(tempDirectory.resolve("mapped-hash")));
+        mappedReads(new SSTableLogFile(tempDirectory.resolve("mapped-sorted"), new SSTableOptions().blockSize(256)));
+    }
+
+    private static void mappedReads(LogFile logFile) throws Exception {
+        var expected = new TreeMap<String, String>();
+        for (int i = 0; i < 500; i++) {
+            String key = "mapped" + i;
+            String value = i % 5 == 0 ? null : "\u00e9" + i;
+            logFile.put(key, value);
+            expected.put(key, value);
+        }
+        logFile.closeOnWrite();
+        assertTrue(logFile.keyValueReader.isMapped());
+        var pool = Executors.newFixedThreadPool(4);
+        var futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < 4; t++) {
+            futures.add(pool.submit(() -> {
+                for (var entry : expected.entrySet())
+                    assertEquals(entry.getValue(), logFile.get(entry.getKey()).getValue());
+                return null;
+            }));
+        }
+        for (var future : futures)
+            future.get();
+        pool.shutdown();
+    }
+
     @Test
     void iterator() throws IOException {
         SSTableLogFile file = new SSTableLogFile(tempDirectory.resolve("file"));
@@ -51,11 +95,227 @@ class LogFileTest extends CommonTest {
         assertEquals("1", iterator.peek().getKey());
         assertEquals("1", iterator.next().getKey());
         assertEquals("2", iterator.next().getKey());
-        assertEquals("2", iterator.next().getKey());
         iterator.peek();
         assertTrue(iterator.hasNext());
         assertEquals("3", iterator.next().getKey());
         assertFalse(iterator.hasNext());
         assertThrows(NoSuchElementException.class, iterator::next);
     }
-}
\ No newline at end of file
+
+    @Test
+    void hashFileRanges() throws IOException {
+        Path path = tempDirectory.resolve("ranges");
+        var file = new HashIndexLogFile(path);
+        for (int i = 0; i < 100; i++)
+            file.put(String.format("%03d", i), String.valueOf(i));
+        file.closeOnWrite();
+        assertEquals(List.of("010", "011", "012"), keys(file.iterator("010", "013", false)));
+        file.closeOnRead();
+        var reopened = new HashIndexLogFile(path);
+        // the second scan uses the keys sorted by the first one
+        assertEquals(List.of("012", "011", "010"), keys(reopened.iterator("010", "013", true)));
+        assertEquals(List.of("098", "099"), keys(reopened.iterator("098", null, false)));
+        assertEquals(List.of(), keys(reopened.iterator("050", "040", false)));
+        assertEquals(100, keys(reopened.iterator(null, null, false)).size());
+        reopened.closeOnRead();
+    }
+
+    private static List<String> keys(PeekableIterator<KeyValueRecord> iterator) {
+        var keys = new ArrayList<String>();
+        iterator.forEachRemaining(record -> keys.add(record.getKey()));
+        return keys;
+    }
+
+    @Test
+    void interleavedIterators() throws IOException {
+        var file = new SSTableLogFile(tempDirectory.resolve("interleaved"), new SSTableOptions().blockSize(64));
+        for (int i = 0; i < 100; i++)
+            file.put(String.format("%03d", i), String.valueOf(i));
+        file.closeOnWrite();
+        var first = file.iterator();
+        var second = file.iterator();
+        for (int i = 0; i < 100; i++) {
+            assertEquals(String.format("%03d", i), first.next().getKey());
+            assertEquals(String.valueOf(99 - i), file.get(String.format("%03d", 99 - i)).getValue());
+            if (i % 2 == 0)
+                assertEquals(String.format("%03d", i / 2), second.next().getKey());
+        }
+        assertFalse(first.hasNext());
+        assertTrue(second.hasNext());
+        file.closeOnRead();
+        assertThrows(IOException.class, () -> file.get("000"));
+    }
+
+    @Test
+    void compressedBlocks() throws IOException {
+        var options = new SSTableOptions().blockSize(1024).compression(Compression.DEFLATE);
+        SSTableLogFile file = new SSTableLogFile(tempDirectory.resolve("blocks"), options);
+        var expected = new TreeMap<String, String>();
+        for (int i = 0; i < 1000; i++) {
+            String key = String.format("%04d", i);
+            expected.put(key, "value" + i % 10);
+            file.put(key, "value" + i % 10);
+        }
+        file.closeOnWrite();
+        assertTrue(file.getBlockIndex().size() > 1);
+        assertTrue(file.getSize() < 1000 * 10);
+        assertEquals(expected, file.asMap());
+        SSTableLogFile reopened = new SSTableLogFile(tempDirectory.resolve("blocks"));
+        for (var entry : expected.entrySet())
+            assertEquals(entry.getValue(), reopened.get(entry.getKey()).getValue());
+        assertNull(reopened.get("0000a"));
+    }
+
+    @Test
+    void migratesLegacyFormat() throws IOException {
+        Path path = tempDirectory.resolve("legacy");
+        Files.createDirectory(path);
+        var index = new TreeMap<String, Integer>();
+        try (var writer = new KeyValueWriter(path.resolve(LogFile.DATA_FILE_NAME))) {
+            for (int i = 0; i < 100; i++) {
+                int offset = Math.toIntExact(writer.write(String.format("%03d", i), i % 7 == 0 ? null : "\ud800" + i));
+                if (i % 10 == 0)
+                    index.put(String.format("%03d", i), offset);
+            }
+        }
+        try (var out = new ObjectOutputStream(Files.newOutputStream(path.resolve(LogFile.INDEX_FILE_NAME)))) {
+            out.writeObject(index);
+        }
+        SSTableLogFile file = new SSTableLogFile(path);
+        assertFalse(Files.exists(path.resolve(LogFile.DATA_FILE_NAME)));
+        for (int i = 0; i < 100; i++) {
+            KeyValueRecord record = file.get(String.format("%03d", i));
+            assertEquals(i % 7 == 0 ? null : "\ud800" + i, record.getValue());
+        }
+        assertEquals(100, file.asRecordList().size());
+    }
+
+    @Test
+    void walOrderMatchesMemTable() throws Exception {
+        var file = new SSTableLogFile(tempDirectory.resolve("ordered"));
+        var pool = Executors.newFixedThreadPool(4);
+        var futures = new ArrayList<Future<?>>();
+        for (int i = 0; i < 4; i++) {
+            int thread = i;
+            futures.add(pool.submit(() -> {
+                for (int j = 0; j < 500; j++)
+                    file.put("key", thread + "-" + j);
+                return null;
+            }));
+        }
+        for (var future : futures)
+            future.get();
+        pool.shutdown();
+        List<KeyValueRecord> logged = WriteAheadLog.replay(file.getWalPath());
+        assertEquals(file.get("key").getValue(), logged.get(logged.size() - 1).getValue());
+        file.closeOnWrite();
+    }
+
+    @Test
+    void recoversTornTail() throws IOException {
+        Path path = tempDirectory.resolve("torn");
+        Files.createDirectory(path);
+        Path dataPath = path.resolve(LogFile.DATA_FILE_NAME);
+        try (var writer = new KeyValueWriter(dataPath)) {
+            for (int i = 0; i < 100; i++)
+                writer.write("key" + i % 50, "value" + i);
+        }
+        long size = Files.size(dataPath);
+        try (var writer = new KeyValueWriter(dataPath)) {
+            writer.write("key100", "value100");
+        }
+        try (var channel = FileChannel.open(dataPath, StandardOpenOption.WRITE)) {
+            channel.truncate(Files.size(dataPath) - 3);
+        }
+        var file = new HashIndexLogFile(path);
+        assertEquals(size, Files.size(dataPath));
+        for (int i = 50; i < 100; i++)
+            assertEquals("value" + i, file.get("key" + i % 50).getValue());
+        assertNull(file.get("key100"));
+        file.closeOnRead();
+    }
+
+    @Test
+    void putsReachTheFile() throws IOException {
+        Path path = tempDirectory.resolve("flushed");
+        var file = new HashIndexLogFile(path);
+        file.put("a", "1");
+        file.putAll(List.of(new KeyValueRecord("b", "2"), new KeyValueRecord("c", null)));
+        // no write-ahead log: records must be in the file when the call returns
+        assertEquals(file.getSize(), Files.size(path.resolve(LogFile.DATA_FILE_NAME)));
+        assertEquals("2", file.get("b").getValue());
+        file.put("a", "3");
+        assertEquals("3", file.get("a").getValue());
+        file.closeOnWrite();
+        assertEquals("3", file.get("a").getValue());
+        file.closeOnRead();
+    }
+
+    @Test
+    void keepsCorruptedMiddle() throws IOException {
+        Path path = tempDirectory.resolve("corrupted");
+        Files.createDirectory(path);
+        Path dataPath = path.resolve(LogFile.DATA_FILE_NAME);
+        long offset;
+        try (var writer = new KeyValueWriter(dataPath)) {
+            for (int i = 0; i < 50; i++)
+                writer.write("key" + i, "value" + i);
+            offset = writer.write("key50", "value50");
+            for (int i = 51; i < 100; i++)
+                writer.write("key" + i, "value" + i);
+        }
+        long size = Files.size(dataPath);
+        try (var channel = FileChannel.open(dataPath, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'X'}), offset + 4);
+        }
+        assertThrows(IOException.class, () -> new HashIndexLogFile(path));
+        assertEquals(size, Files.size(dataPath));
+    }
+
+    @Test
+    void verifiesFileWithoutIndex() throws IOException {
+        Path path = tempDirectory.resolve("unindexed");
+        Files.createDirectory(path);
+        Path dataPath = path.resolve(LogFile.DATA_FILE_NAME);
+        long offset;
+        try (var writer = new KeyValueWriter(dataPath)) {
+            for (int i = 0; i < 50; i++)
+                writer.write("key" + i, "value" + i);
+            offset = writer.write("key50", "value50");
+        }
+        // the process stopped in the middle of the last record, before the index was written
+        try (var channel = FileChannel.open(dataPath, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 3);
+        }
+        assertEquals(List.of(), HashIndexLogFile.verify(path));
+        try (var channel = FileChannel.open(dataPath, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'X'}), offset - 10);
+        }
+        var problems = HashIndexLogFile.verify(path);
+        assertEquals(1, problems.size());
+        assertTrue(problems.get(0).startsWith(dataPath.toString()), problems.get(0));
+    }
+
+    @Test
+    void migratesSerializedHashIndex() throws IOException {
+        Path path = tempDirectory.resolve("serialized");
+        Files.createDirectory(path);
+        var index = new TreeMap<String, Integer>();
+        try (var writer = new KeyValueWriter(path.resolve(LogFile.DATA_FILE_NAME))) {
+            for (int i = 0; i < 100; i++)
+                index.put("key" + i, Math.toIntExact(writer.write("key" + i, "value" + i)));
+        }
+        try (var out = new ObjectOutputStream(Files.newOutputStream(path.resolve(LogFile.INDEX_FILE_NAME)))) {
+            out.writeObject(index);
+        }
+        var file = new HashIndexLogFile(path);
+        for (int i = 0; i < 100; i++)
+            assertEquals("value" + i, file.get("key" + i).getValue());
+        assertNull(file.get("key100"));
+        assertEquals(index.keySet(), file.getIndexKeys());
+        file.closeOnRead();
+        var reopened = new HashIndexLogFile(path);
+        assertEquals("value42", reopened.get("key42").getValue());
+        reopened.closeOnRead();
+    }
+}
@@ -1,19 +1,30 @@
 package ru.golchin.key_value_store;
 
+import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.io.TempDir;
 import org.junit.jupiter.params.ParameterizedTest;
 import org.junit.jupiter.params.provider.Arguments;
 import org.junit.jupiter.params.provider.MethodSource;
+import ru.golchin.key_value_store.io.KeyValueRecord;
+import ru.golchin.key_value_store.io.RangeTombstone;
 
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.params.provider.Arguments.arguments;
 
 class SSTableLogFileMergeFunctionTest {
@@ -54,4 +65,94 @@ class SSTableLogFileMergeFunctionTest {
         SSTableMergeFunction.INSTANCE.merge(files, newFile);
         assertEquals(mergedRecords, newFile.asMap());
     }
-}
\ No newline at end of file
+
+    @Test
+    void subcompactions() throws IOException {
+        var options = new SSTableOptions().blockSize(256);
+        var files = new ArrayList<SSTableLogFile>();
+        var expected = new TreeMap<String, String>();
+        for (int i = 0; i < 3; i++) {
+            var file = new SSTableLogFile(path.resolve(String.valueOf(i)), options);
+            for (int j = 0; j < 300; j++) {
+                String key = String.format("%04d", j * (i + 1));
+                file.put(key, i + "a".repeat(20));
+                expected.put(key, i + "a".repeat(20));
+            }
+            file.removeRange("0100", "0110");
+            file.closeOnWrite();
+            files.add(file);
+        }
+        expected.subMap("0100", "0110").clear();
+        var versions = new AtomicInteger(files.size());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<SSTableLogFile> written = SSTableMergeFunction.INSTANCE.merge(files,
+                    () -> new SSTableLogFile(path.resolve(String.valueOf(versions.getAndIncrement())), options),
+                    Long.MAX_VALUE, (first, last) -> true, new MergeContext(executor, 4, null));
+            assertEquals(4, written.size());
+            var merged = new TreeMap<String, String>();
+            for (int i = 0; i < written.size(); i++) {
+                if (i > 0)
+                    assertTrue(written.get(i - 1).getLastKey().compareTo(written.get(i).getFirstKey()) < 0);
+                merged.putAll(written.get(i).asMap());
+            }
+            assertEquals(expected, merged);
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    void failedSubcompactionDeletesOutputs() throws IOException {
+        var options = new SSTableOptions().blockSize(256);
+        var files = new ArrayList<SSTableLogFile>();
+        for (int i = 0; i < 3; i++) {
+            var file = new SSTableLogFile(path.resolve(String.valueOf(i)), options);
+            for (int j = 0; j < 300; j++)
+                file.put(String.format("%04d", j * (i + 1)), i + "a".repeat(20));
+            file.closeOnWrite();
+            files.add(file);
+        }
+        var versions = new AtomicInteger(files.size());
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            assertThrows(IOException.class, () -> SSTableMergeFunction.INSTANCE.merge(files, () -> {
+                int version = versions.getAndIncrement();
+                return new SSTableLogFile(path.resolve(String.valueOf(version)), options) {
+                    @Override
+                    public void writeSorted(List<KeyValueRecord> records) throws IOException {
+                        // one range fails after it has created its output
+                        if (version == files.size() + 1)
+                            throw new IOException("no space left on device");
+                        super.writeSorted(records);
+                    }
+                };
+            }, Long.MAX_VALUE, (first, last) -> true, new MergeContext(executor, 4, null)));
+        } finally {
+            executor.shutdown();
+        }
+        try (var directories = Files.list(path)) {
+            assertEquals(Set.of("0", "1", "2"),
+                    directories.map(p -> p.getFileName().toString()).collect(Collectors.toSet()));
+        }
+    }
+
+    @Test
+    void rangeTombstones() throws IOException {
+        var older = new SSTableLogFile(path.resolve("0"));
+        older.put("a", "1");
+        older.put("b", "1");
+        older.put("c", "1");
+        older.closeOnWrite();
+        var newer = new SSTableLogFile(path.resolve("1"));
+        newer.removeRange("a", "c");
+        newer.put("b", "2");
+        newer.closeOnWrite();
+        var newFile = new SSTableLogFile(path.resolve("2"));
+        SSTableMergeFunction.INSTANCE.merge(List.of(older, newer), newFile);
+        assertEquals(Map.of("b", "2", "c", "1"), newFile.asMap());
+        assertEquals(List.of(new RangeTombstone("a", "c")), newFile.getRangeTombstones());
+        assertEquals("a", newFile.getFirstKey());
+        assertEquals("c", newFile.getLastKey());
+    }
+}
@@ -1,9 +1,333 @@
 package ru.golchin.key_value_store;
 
+import org.junit.jupiter.api.Test;
+import ru.golchin.key_value_store.io.BlockCache;
+import ru.golchin.key_value_store.io.Durability;
+import ru.golchin.key_value_store.io.KeyValueRecord;
+import ru.golchin.key_value_store.io.RateLimiter;
+import ru.golchin.util.ThrowingFunction;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
 public class SSTableTest extends CommonKeyValueStoreImplTest<SSTableLogFile> {
     public SSTableTest() {
         logFileConstructor = SSTableLogFile::new;
         mergeFunction = SSTableMergeFunction.INSTANCE;
     }
 
+    @Test
+    void filterSkipsFiles() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            store.put(String.valueOf(i), "a".repeat(100));
+        }
+        // rotated files are flushed in the background, a reopened store only has written ones
+        store.close();
+        store = new KeyValueStoreImpl<>(storePath, HashIndexLogFile.MAX_SIZE, logFileConstructor, mergeFunction);
+        for (int i = 0; i < 100; i++) {
+            assertNull(store.get("missing" + i));
+        }
+        assertEquals("a".repeat(100), store.get("0"));
+        assertTrue(store.getSkippedFileReads() > store.getFileReads());
+        store.close();
+    }
+
+    @Test
+    void failedFlushStopsWrites() throws Exception {
+        store.close();
+        var failing = new AtomicBoolean(true);
+        store = new KeyValueStoreImpl<>(storePath, HashIndexLogFile.MAX_SIZE, path -> new SSTableLogFile(path) {
+            @Override
+            public void closeOnWrite() throws IOException {
+                if (failing.get())
+                    throw new IOException("no space left on device");
+                super.closeOnWrite();
+            }
+        }, mergeFunction, false);
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        int i = 0;
+        IOException thrown = null;
+        while (thrown == null && System.nanoTime() < deadline) {
+            try {
+                store.put(String.valueOf(i++), "a".repeat(100));
+            } catch (IOException e) {
+                thrown = e;
+            }
+        }
+        assertNotNull(thrown);
+        assertEquals("a".repeat(100), store.get("0"));
+        failing.set(false);
+        assertThrows(IOException.class, store::close);
+    }
+
+    @Test
+    void failedLookupWaitsForOthers() throws Exception {
+        store.close();
+        var failing = new AtomicBoolean();
+        var running = new AtomicInteger();
+        ThrowingFunction<Path, SSTableLogFile, IOException> constructor = path -> new SSTableLogFile(path) {
+            @Override
+            public Map<String, KeyValueRecord> getAll(SortedSet<String> keys) throws IOException {
+                if (failing.get() && keys.contains("99"))
+                    throw new IOException("unreadable block");
+                running.incrementAndGet();
+                try {
+                    TimeUnit.MILLISECONDS.sleep(100);
+                    return super.getAll(keys);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                } finally {
+                    running.decrementAndGet();
+                }
+            }
+        };
+        var options = new StoreOptions().lookupThreads(4);
+        store = new KeyValueStoreImpl<>(storePath, 1024, constructor, mergeFunction, false, options);
+        var keys = new ArrayList<String>();
+        for (int i = 0; i < 100; i++) {
+            keys.add(String.valueOf(i));
+            store.put(String.valueOf(i), "a".repeat(100));
+        }
+        store.close();
+        store = new KeyValueStoreImpl<>(storePath, 1024, constructor, mergeFunction, false, options);
+        failing.set(true);
+        assertThrows(IOException.class, () -> store.getAll(keys));
+        // the view was released after every lookup had finished
+        assertEquals(0, running.get());
+        failing.set(false);
+        store.close();
+    }
+
+    @Test
+    void blockCache() throws Exception {
+        store.close();
+        var blockCache = new BlockCache(1024 * 1024);
+        var options = new SSTableOptions().blockSize(256).blockCache(blockCache);
+        store = new KeyValueStoreImpl<>(storePath, HashIndexLogFile.MAX_SIZE, path -> new SSTableLogFile(path, options),
+                mergeFunction, false);
+        for (int i = 0; i < 500; i++) {
+            store.put(String.valueOf(i % 100), i + "a".repeat(100));
+        }
+        for (int j = 0; j < 3; j++) {
+            for (int i = 0; i < 100; i++) {
+                assertEquals((400 + i) + "a".repeat(100), store.get(String.valueOf(i)));
+            }
+            store.compact();
+        }
+        assertTrue(blockCache.getHits() > 0);
+        assertTrue(blockCache.getMisses() > 0);
+        store.close();
+    }
+
+    @Test
+    void recoveryFromWriteAheadLog() throws Exception {
+        store.close();
+        var options = new SSTableOptions().durability(Durability.GROUP_COMMIT);
+        store = new KeyValueStoreImpl<>(storePath, HashIndexLogFile.MAX_SIZE, path -> new SSTableLogFile(path, options),
+                mergeFunction, false);
+        for (int i = 0; i < 300; i++) {
+            store.put(String.valueOf(i), i + "a".repeat(50));
+        }
+        store.remove("7");
+        // no close: the last memtable only exists in the write-ahead log
+        var restored = new KeyValueStoreImpl<>(storePath, HashIndexLogFile.MAX_SIZE, logFileConstructor, mergeFunction, false);
+        for (int i = 0; i < 300; i++) {
+            assertEquals(i == 7 ? null : i + "a".repeat(50), restored.get(String.valueOf(i)));
+        }
+        restored.close();
+    }
+
+    @Test
+    void leveledCompaction() throws Exception {
+        store.close();
+        var options = new StoreOptions().compactionStrategy(new LeveledCompactionStrategy(2 * 1024)
+                .level0Files(2).baseLevelSize(8 * 1024).sizeRatio(2));
+        store = new KeyValueStoreImpl<>(storePath, 2 * 1024, logFileConstructor, mergeFunction, false, options);
+        var expected = new HashMap<String, String>();
+        for (int i = 0; i < 3000; i++) {
+            String key = String.format("%05d", i * 7919 % 1000);
+            store.put(key, i + "a".repeat(20));
+            expected.put(key, i + "a".repeat(20));
+            if (i % 100 == 0)
+                store.compact();
+        }
+        store.compact();
+        for (var entry : expected.entrySet())
+            assertEquals(entry.getValue(), store.get(entry.getKey()));
+        assertTrue(store.getLevels().values().stream().anyMatch(level -> level > 1), store.getLevels().toString());
+        store.close();
+        store = new KeyValueStoreImpl<>(storePath, 2 * 1024, logFileConstructor, mergeFunction, false, options);
+        for (var entry : expected.entrySet())
+            assertEquals(entry.getValue(), store.get(entry.getKey()));
+        store.close();
+    }
+
+    @Test
+    void parallelCompaction() throws Exception {
+        store.close();
+        var options = new StoreOptions().compactionStrategy(new LeveledCompactionStrategy(2 * 1024)
+                .level0Files(2).baseLevelSize(8 * 1024).sizeRatio(2)).compactionThreads(3).subcompactions(3);
+        store = new KeyValueStoreImpl<>(storePath, 2 * 1024, logFileConstructor, mergeFunction, true, options);
+        var expected = new HashMap<String, String>();
+        for (int i = 0; i < 5000; i++) {
+            String key = String.format("%05d", i * 7919 % 2000);
+            store.put(key, i + "a".repeat(20));
+            expected.put(key, i + "a".repeat(20));
+        }
+        store.compact();
+        for (var entry : expected.entrySet())
+            assertEquals(entry.getValue(), store.get(entry.getKey()));
+        var levels = store.getLevels();
+        assertTrue(levels.values().stream().anyMatch(level -> level > 1), levels.toString());
+        // files of a level but level 0 stay disjoint
+        var rangesByLevel = new HashMap<Integer, List<String[]>>();
+        for (var file : store.getFiles()) {
+            int level = levels.get(file.getVersion());
+            if (level > 0)
+                rangesByLevel.computeIfAbsent(level, l -> new ArrayList<>())
+                        .add(new String[]{file.getFirstKey(), file.getLastKey()});
+        }
+        for (var ranges : rangesByLevel.values()) {
+            ranges.sort(Comparator.comparing(range -> range[0]));
+            for (int i = 1; i < ranges.size(); i++)
+                assertTrue(ranges.get(i - 1)[1].compareTo(ranges.get(i)[0]) < 0);
+        }
+        store.close();
+        store = new KeyValueStoreImpl<>(storePath, 2 * 1024, logFileConstructor, mergeFunction, false, options);
+        for (var entry : expected.entrySet())
+            assertEquals(entry.getValue(), store.get(entry.getKey()));
+        store.close();
+    }
+
+    @Test
+    void rateLimitedCompaction() throws Exception {
+        store.close();
+        var rateLimiter = new RateLimiter(64 * 1024 * 1024);
+        var options = new StoreOptions().compactionStrategy(new LeveledCompactionStrategy(2 * 1024)
+                .level0Files(2).baseLevelSize(8 * 1024).sizeRatio(2)).rateLimiter(rateLimiter);
+        store = new KeyValueStoreImpl<>(storePath, 2 * 1024, logFileConstructor, mergeFunction, true, options);
+        var expected = new HashMap<String, String>();
+        for (int i = 0; i < 2000; i++) {
+            String key = String.format("%05d", i * 7919 % 1000);
+            store.put(key, i + "a".repeat(20));
+            expected.put(key, i + "a".repeat(20));
+        }
+        rateLimiter.setBytesPerSecond(1024 * 1024 * 1024);
+        store.compact();
+        for (var entry : expected.entrySet())
+            assertEquals(entry.getValue(), store.get(entry.getKey()));
+        assertTrue(store.getCompactionWrittenBytes() > 0);
+        store.close();
+    }
+
+    @Test
+    void storeWithoutManifest() throws Exception {
+        store.close();
+        Files.delete(storePath.resolve(Manifest.FILE_NAME));
+        // file 2 is the result of compacting file 1, files 3 and 5 were written after it
+        var files = Map.of(2, Map.of("a", "old", "b", "old"), 3, Map.of("a", "mid"), 5, Map.of("a", "new"));
+        for (var file : files.entrySet()) {
+            var logFile = new SSTableLogFile(storePath.resolve(String.valueOf(file.getKey())));
+            for (var entry : file.getValue().entrySet())
+                logFile.put(entry.getKey(), entry.getValue());
+            logFile.closeOnWrite();
+        }
+        store = new KeyValueStoreImpl<>(storePath, HashIndexLogFile.MAX_SIZE, logFileConstructor, mergeFunction, false);
+        assertEquals("new", store.get("a"));
+        assertEquals("old", store.get("b"));
+        assertEquals(Map.of(2, 1, 3, 0, 5, 0), store.getLevels());
+        store.put("c", "c");
+        store.close();
+        store = new KeyValueStoreImpl<>(storePath, HashIndexLogFile.MAX_SIZE, logFileConstructor, mergeFunction, false);
+        assertEquals("new", store.get("a"));
+        assertEquals("c", store.get("c"));
+        store.close();
+    }
+
+    @Test
+    void sizeTieredCompaction() throws Exception {
+        store.close();
+        var options = new StoreOptions().compactionStrategy(new SizeTieredCompactionStrategy()
+                .threshold(3, 8).minFileSize(0));
+        // compactions are triggered by flushes
+        store = new KeyValueStoreImpl<>(storePath, 2 * 1024, logFileConstructor, mergeFunction, true, options);
+        var expected = new HashMap<String, String>();
+        for (int i = 0; i < 3000; i++) {
+            String key = String.format("%05d", i * 7919 % 1000);
+            store.put(key, i + "a".repeat(20));
+            expected.put(key, i + "a".repeat(20));
+        }
+        store.close();
+        assertTrue(store.getCompactionWrittenBytes() > 0);
+        assertTrue(store.getWriteAmplification() > 1);
+        assertTrue(store.getLevels().values().stream().allMatch(level -> level == 0));
+        store = new KeyValueStoreImpl<>(storePath, 2 * 1024, logFileConstructor, mergeFunction, false, options);
+        for (var entry : expected.entrySet())
+            assertEquals(entry.getValue(), store.get(entry.getKey()));
+        store.close();
+    }
+
+    @Test
+    void removeRange() throws Exception {
+        store.close();
+        store = new KeyValueStoreImpl<>(storePath, 2 * 1024, logFileConstructor, mergeFunction, false);
+        for (int i = 0; i < 1000; i++)
+            store.put(String.format("%05d", i), String.valueOf(i));
+        store.removeRange("00100", "00200");
+        store.put("00150", "new");
+        for (int i = 0; i < 1000; i++) {
+            String key = String.format("%05d", i);
+            String expected = i == 150 ? "new" : i >= 100 && i < 200 ? null : String.valueOf(i);
+            assertEquals(expected, store.get(key));
+        }
+        try (var scan = store.scan("00095", "00205")) {
+            var keys = new ArrayList<String>();
+            scan.forEachRemaining(entry -> keys.add(entry.getKey()));
+            assertEquals(List.of("00095", "00096", "00097", "00098", "00099", "00150", "00200", "00201", "00202",
+                    "00203", "00204"), keys);
+        }
+        assertEquals(Map.of("00099", "99", "00150", "new", "00200", "200"),
+                store.getAll(List.of("00099", "00100", "00150", "00199", "00200")));
+        // no close: the range tombstone is restored from the write-ahead log
+        var restored = new KeyValueStoreImpl<>(storePath, 2 * 1024, logFileConstructor, mergeFunction, false);
+        restored.compact();
+        for (int i = 0; i < 1000; i++) {
+            String key = String.format("%05d", i);
+            String expected = i == 150 ? "new" : i >= 100 && i < 200 ? null : String.valueOf(i);
+            assertEquals(expected, restored.get(key));
+        }
+        restored.close();
+    }
+
+    @Test
+    void tombstonesArePurged() throws Exception {
+        store.close();
+        store = new KeyValueStoreImpl<>(storePath, 1024, logFileConstructor, mergeFunction, false);
+        for (int i = 0; i < 200; i++)
+            store.put(String.format("%05d", i), String.valueOf(i));
+        for (int i = 0; i < 200; i += 2)
+            store.remove(String.format("%05d", i));
+        store.removeRange("00150", "00200");
+        store.close();
+        store = new KeyValueStoreImpl<>(storePath, 1024, logFileConstructor, mergeFunction, false);
+        store.compact();
+        for (var file : store.getFiles())
+            assertEquals(0, file.getTombstoneCount(), file.getPath().toString());
+        for (int i = 0; i < 200; i++)
+            assertEquals(i % 2 == 0 || i >= 150 ? null : String.valueOf(i), store.get(String.format("%05d", i)));
+        store.close();
+    }
 }
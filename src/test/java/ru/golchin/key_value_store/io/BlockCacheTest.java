@@ -0,0 +1,48 @@
+package ru.golchin.key_value_store.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockCacheTest {
+    private static Block block(long offset) {
+        return new Block(offset, 100, List.of(new KeyValueRecord("k" + offset, "v".repeat(100))));
+    }
+
+    private static final long WEIGHT = block(0).getWeight();
+
+    @Test
+    void hitsAndMisses() throws IOException {
+        var cache = new BlockCache(10 * WEIGHT);
+        assertEquals("k1", cache.get(1, 1, BlockCacheTest::block).getRecords().get(0).getKey());
+        cache.get(1, 1, offset -> fail());
+        cache.get(2, 1, BlockCacheTest::block);
+        assertEquals(1, cache.getHits());
+        assertEquals(2, cache.getMisses());
+        assertEquals(2 * WEIGHT, cache.getSizeBytes());
+        cache.invalidate(1);
+        assertEquals(WEIGHT, cache.getSizeBytes());
+        cache.get(1, 1, BlockCacheTest::block);
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    void scanDoesNotEvictHotBlocks() throws IOException {
+        var cache = new BlockCache(10 * WEIGHT);
+        for (int i = 0; i < 5; i++) {
+            cache.get(1, i, BlockCacheTest::block);
+            cache.get(1, i, BlockCacheTest::block);
+        }
+        for (int i = 100; i < 200; i++) {
+            cache.get(2, i, BlockCacheTest::block);
+        }
+        assertTrue(cache.getSizeBytes() <= 10 * WEIGHT);
+        assertTrue(cache.getEvictions() >= 90);
+        for (int i = 0; i < 5; i++) {
+            cache.get(1, i, offset -> fail());
+        }
+    }
+}
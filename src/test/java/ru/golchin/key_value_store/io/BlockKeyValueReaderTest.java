@@ -0,0 +1,66 @@
+package ru.golchin.key_value_store.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.NavigableMap;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BlockKeyValueReaderTest {
+    @SuppressWarnings("unused")
+    @TempDir
+    Path path;
+
+    @Test
+    void readsFirstRecordOfBlock() throws IOException {
+        Path blocksPath = path.resolve("blocks");
+        NavigableMap<String, Long> blockIndex;
+        try (var writer = new BlockWriter(blocksPath, 64, Compression.DEFLATE)) {
+            for (int i = 0; i < 100; i++)
+                writer.write(String.format("key%03d", i), i % 3 == 0 ? null : "value" + i);
+            blockIndex = writer.getBlockIndex();
+        }
+        assertTrue(blockIndex.size() > 1);
+        try (var reader = new BlockKeyValueReader(blocksPath)) {
+            for (var entry : blockIndex.entrySet()) {
+                KeyValueRecord record = reader.read(entry.getValue());
+                assertEquals(entry.getKey(), record.getKey());
+                assertEquals(reader.readBlock(entry.getValue()).getRecords().get(0), record);
+            }
+        }
+    }
+
+    @Test
+    void corruptedHeader() throws IOException {
+        Path blocksPath = path.resolve("blocks");
+        long secondBlock;
+        try (var writer = new BlockWriter(blocksPath, 64, Compression.DEFLATE)) {
+            for (int i = 0; i < 100; i++)
+                writer.write(String.format("key%03d", i), "value" + i);
+            secondBlock = writer.getBlockIndex().higherEntry("").getValue();
+        }
+        long size;
+        try (var channel = FileChannel.open(blocksPath, WRITE)) {
+            // negative raw length of the first block, the second one is cut inside its header
+            channel.write(ByteBuffer.allocate(4).putInt(0, -1), 0);
+            channel.truncate(secondBlock + 5);
+            size = channel.size();
+        }
+        for (boolean mapped : new boolean[]{false, true}) {
+            try (var reader = new BlockKeyValueReader(blocksPath)) {
+                if (mapped)
+                    reader.map();
+                assertThrows(IOException.class, () -> reader.readBlock(0));
+                assertThrows(IOException.class, () -> reader.readBlock(secondBlock));
+                assertThrows(IOException.class, () -> reader.readBlock(size + 100));
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package ru.golchin.key_value_store.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class KeyValueWriterTest {
+    @SuppressWarnings("unused")
+    @TempDir
+    Path path;
+
+    @Test
+    void writeAndRead() throws IOException {
+        Path dataPath = path.resolve("data");
+        var records = List.of(new KeyValueRecord("a", "1"), new KeyValueRecord("\u043a\u043b\u044e\u0447", null),
+                new KeyValueRecord("\ud800", "x".repeat(100_000)), new KeyValueRecord("b", ""));
+        var offsets = new ArrayList<Long>();
+        try (var writer = new KeyValueWriter(dataPath)) {
+            for (var record : records) {
+                offsets.add(writer.write(record.getKey(), record.getValue()));
+                assertEquals(offsets.get(offsets.size() - 1) + KeyValueWriter.getRecordSize(record.getKey(), record.getValue()),
+                        writer.size());
+            }
+        }
+        assertEquals(Files.size(dataPath), offsets.get(3) + KeyValueWriter.getRecordSize("b", ""));
+        try (var reader = new KeyValueReader(dataPath)) {
+            for (int i = 0; i < records.size(); i++)
+                assertEquals(records.get(i), reader.read(offsets.get(i)));
+            var cursor = reader.cursor();
+            var read = new ArrayList<KeyValueRecord>();
+            while (cursor.canRead())
+                read.add(cursor.read());
+            assertEquals(records, read);
+            reader.map();
+            assertEquals(records.get(1), reader.read(offsets.get(1)));
+        }
+        try (var channel = FileChannel.open(dataPath, WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'?'}), offsets.get(1) + 2);
+        }
+        try (var reader = new KeyValueReader(dataPath)) {
+            assertEquals(records.get(0), reader.read(offsets.get(0)));
+            assertThrows(IOException.class, () -> reader.read(offsets.get(1)));
+        }
+    }
+
+    @Test
+    void readsPreviousFormat() throws IOException {
+        Path dataPath = path.resolve("legacy");
+        try (var out = new DataOutputStream(Files.newOutputStream(dataPath))) {
+            out.writeInt(3);
+            out.writeChars("key");
+            out.writeInt(-1);
+            out.writeInt(1);
+            out.writeChars("k");
+            out.writeInt(5);
+            out.writeChars("value");
+        }
+        try (var reader = new KeyValueReader(dataPath)) {
+            var cursor = reader.cursor();
+            assertEquals(new KeyValueRecord("key", null), cursor.read());
+            assertEquals(new KeyValueRecord("k", "value"), cursor.read());
+            assertFalse(cursor.canRead());
+        }
+    }
+}
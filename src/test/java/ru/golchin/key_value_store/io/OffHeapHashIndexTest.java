@@ -0,0 +1,54 @@
+package ru.golchin.key_value_store.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class OffHeapHashIndexTest {
+    @SuppressWarnings("unused")
+    @TempDir
+    Path path;
+
+    @Test
+    void putAndGet() throws IOException {
+        var index = new OffHeapHashIndex();
+        for (long i = 0; i < 10_000; i++)
+            index.put("key" + i + "\u044e", i);
+        for (long i = 0; i < 10_000; i += 2)
+            index.put("key" + i + "\u044e", i + (1L << 40));
+        assertEquals(10_000, index.size());
+        for (long i = 0; i < 10_000; i++)
+            assertEquals(i % 2 == 0 ? i + (1L << 40) : i, index.get("key" + i + "\u044e"));
+        assertEquals(-1, index.get("key10000\u044e"));
+        var entries = new HashMap<String, Long>();
+        index.forEach(entries::put);
+        assertEquals(10_000, entries.size());
+        assertEquals(7L, entries.get("key7\u044e"));
+
+        Path tablePath = path.resolve("table");
+        index.writeTo(tablePath);
+        var table = HashTableIndex.read(tablePath);
+        assertEquals(10_000, table.size());
+        var offsets = new HashMap<Long, String>();
+        entries.forEach((key, offset) -> offsets.put(offset, key));
+        for (long i = 0; i < 10_000; i++) {
+            String key = "key" + i + "\u044e";
+            KeyValueRecord record = table.get(key, offset -> new KeyValueRecord(offsets.get(offset), null));
+            assertEquals(key, record.getKey());
+        }
+    }
+
+    @Test
+    void growthIsCapped() {
+        assertEquals(128, OffHeapHashIndex.grow(64, 100));
+        assertEquals(1000, OffHeapHashIndex.grow(64, 1000));
+        assertEquals(OffHeapHashIndex.MAX_BUFFER_SIZE, OffHeapHashIndex.grow(1 << 30, (1L << 30) + 1));
+        assertThrows(IllegalStateException.class,
+                () -> OffHeapHashIndex.grow(OffHeapHashIndex.MAX_BUFFER_SIZE, OffHeapHashIndex.MAX_BUFFER_SIZE + 1L));
+    }
+}
@@ -0,0 +1,67 @@
+package ru.golchin.key_value_store.io;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class RateLimiterTest {
+    private static long acquireMillis(RateLimiter limiter, long bytes) throws IOException {
+        long start = System.nanoTime();
+        for (long acquired = 0; acquired < bytes; acquired += 1024)
+            limiter.acquire(1024);
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Test
+    void limitsRate() throws IOException {
+        var limiter = new RateLimiter(1024 * 1024);
+        // the first 100 ms worth of bytes come from the full bucket
+        assertTrue(acquireMillis(limiter, 400 * 1024) >= 250);
+        limiter.setBytesPerSecond(100 * 1024 * 1024);
+        assertTrue(acquireMillis(limiter, 1024 * 1024) < 250);
+    }
+
+    @Test
+    void adaptsToLatency() throws IOException {
+        var limiter = new RateLimiter(100 * 1024 * 1024)
+                .targetLatency(TimeUnit.MILLISECONDS.toNanos(1), 1024 * 1024);
+        for (int i = 0; i < 5; i++) {
+            limiter.recordLatency(TimeUnit.MILLISECONDS.toNanos(10));
+            acquireMillis(limiter, 1024);
+            sleep(RateLimiter.ADJUST_NANOS);
+            acquireMillis(limiter, 1024);
+        }
+        long backedOff = limiter.getBytesPerSecond();
+        assertTrue(backedOff < 50 * 1024 * 1024, String.valueOf(backedOff));
+        // without slow lookups the rate grows back
+        sleep(RateLimiter.ADJUST_NANOS);
+        acquireMillis(limiter, 1024);
+        assertTrue(limiter.getBytesPerSecond() > backedOff);
+        assertThrows(IllegalArgumentException.class, () -> limiter.targetLatency(1, 0));
+        assertThrows(IllegalArgumentException.class, () -> new RateLimiter(0));
+    }
+
+    @Test
+    void batchLatencyCountsPerOperation() throws IOException {
+        var limiter = new RateLimiter(100 * 1024 * 1024)
+                .targetLatency(TimeUnit.MILLISECONDS.toNanos(1), 1024 * 1024);
+        // 10 ms for a batch of 100 lookups is fast
+        limiter.recordLatency(TimeUnit.MILLISECONDS.toNanos(10), 100);
+        acquireMillis(limiter, 1024);
+        sleep(RateLimiter.ADJUST_NANOS);
+        acquireMillis(limiter, 1024);
+        assertEquals(100 * 1024 * 1024, limiter.getBytesPerSecond());
+    }
+
+    private static void sleep(long nanos) {
+        try {
+            TimeUnit.NANOSECONDS.sleep(nanos);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(e);
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package ru.golchin.key_value_store.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.TreeMap;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class SortedIndexTest {
+    @SuppressWarnings("unused")
+    @TempDir
+    Path path;
+
+    @Test
+    void search() throws IOException {
+        var random = new Random(42);
+        var entries = new TreeMap<String, Long>();
+        while (entries.size() < 1000)
+            entries.put("key" + random.nextInt(100_000) + (random.nextBoolean() ? "\u0436" : ""), random.nextLong() >>> 1);
+        Path indexPath = path.resolve("index");
+        SortedIndex.write(indexPath, entries);
+        var index = SortedIndex.read(indexPath);
+        assertEquals(entries.size(), index.size());
+        var keys = entries.keySet().toArray(String[]::new);
+        for (int i = 0; i < keys.length; i++) {
+            assertEquals(keys[i], index.getKey(i));
+            assertEquals(entries.get(keys[i]), index.getOffset(i));
+            assertEquals(i, index.floorIndex(keys[i]));
+            assertEquals(i - 1, index.lowerIndex(keys[i]));
+            assertEquals(i, index.floorIndex(keys[i] + "0"));
+        }
+        assertEquals(-1, index.floorIndex("a"));
+        assertEquals(-1, index.floorOffset("a"));
+        assertEquals(entries.lastEntry().getValue(), index.floorOffset("z"));
+    }
+
+    @Test
+    void empty() throws IOException {
+        Path indexPath = path.resolve("empty");
+        SortedIndex.write(indexPath, new TreeMap<String, Integer>());
+        var index = SortedIndex.read(indexPath);
+        assertTrue(index.isEmpty());
+        assertEquals(-1, index.floorIndex("a"));
+    }
+
+    @Test
+    void hashTable() throws IOException {
+        var entries = new HashMap<String, Long>();
+        for (long i = 0; i < 100; i++)
+            entries.put("key" + i, i);
+        Path indexPath = path.resolve("hash");
+        HashTableIndex.write(indexPath, entries);
+        var index = HashTableIndex.read(indexPath);
+        assertEquals(100, index.size());
+        assertEquals(4950, index.offsets().sum());
+        for (long i = 0; i < 100; i++)
+            assertEquals("v" + i, index.get("key" + i, offset -> new KeyValueRecord("key" + offset, "v" + offset)).getValue());
+        assertNull(index.get("key100", offset -> new KeyValueRecord("key" + offset, "v" + offset)));
+    }
+
+    @Test
+    void corruptedIndex() throws IOException {
+        var entries = new TreeMap<String, Integer>();
+        for (int i = 0; i < 100; i++)
+            entries.put("key" + i, i);
+        Path indexPath = path.resolve("corrupted");
+        SortedIndex.write(indexPath, entries);
+        try (var channel = FileChannel.open(indexPath, WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'x'}), 20);
+        }
+        assertThrows(IOException.class, () -> SortedIndex.read(indexPath));
+    }
+
+    @Test
+    void corruptedHeader() throws IOException {
+        // valid magic and checksum, but the content is cut right after the count
+        Path sortedPath = path.resolve("sorted");
+        IndexFiles.write(sortedPath, ByteBuffer.allocate(8).putInt(SortedIndex.MAGIC).putInt(100));
+        assertThrows(IOException.class, () -> SortedIndex.read(sortedPath));
+        Path hashPath = path.resolve("hash");
+        IndexFiles.write(hashPath, ByteBuffer.allocate(12).putInt(HashTableIndex.MAGIC).putInt(1024).putInt(0));
+        assertThrows(IOException.class, () -> HashTableIndex.read(hashPath));
+    }
+}
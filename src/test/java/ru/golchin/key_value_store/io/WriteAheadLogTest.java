@@ -0,0 +1,133 @@
+package ru.golchin.key_value_store.io;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.junit.jupiter.params.ParameterizedTest;
+import org.junit.jupiter.params.provider.EnumSource;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.jupiter.api.Assertions.*;
+
+class WriteAheadLogTest {
+    @SuppressWarnings("unused")
+    @TempDir
+    Path path;
+
+    @ParameterizedTest
+    @EnumSource(Durability.class)
+    void replay(Durability durability) throws Exception {
+        Path walPath = path.resolve("wal");
+        var wal = new WriteAheadLog(walPath, durability, 1_000_000, 4096);
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        var futures = new ArrayList<Future<?>>();
+        for (int t = 0; t < 4; t++) {
+            int thread = t;
+            futures.add(pool.submit(() -> {
+                for (int i = 0; i < 50; i++)
+                    wal.append(thread + "-" + i, i % 5 == 0 ? null : "v" + i);
+                return null;
+            }));
+        }
+        for (var future : futures)
+            future.get();
+        pool.shutdown();
+        var keys = new HashSet<String>();
+        for (var record : WriteAheadLog.replay(walPath)) {
+            keys.add(record.getKey());
+            int i = Integer.parseInt(record.getKey().split("-")[1]);
+            assertEquals(i % 5 == 0 ? null : "v" + i, record.getValue());
+        }
+        assertEquals(200, keys.size());
+        wal.close();
+    }
+
+    @ParameterizedTest
+    @EnumSource(Durability.class)
+    void tornTail(Durability durability) throws IOException {
+        Path walPath = path.resolve("wal");
+        try (var wal = new WriteAheadLog(walPath, durability, 1_000_000, 4096)) {
+            wal.append("a", "1");
+            wal.append("b", "2");
+        }
+        try (var channel = FileChannel.open(walPath, WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        var records = WriteAheadLog.replay(walPath);
+        assertEquals(1, records.size());
+        assertEquals(new KeyValueRecord("a", "1"), records.get(0));
+    }
+
+    @Test
+    void corruptedEntry() throws IOException {
+        Path walPath = path.resolve("wal");
+        long entrySize;
+        try (var wal = new WriteAheadLog(walPath, Durability.SYNC, 0, 0)) {
+            wal.append("a", "1");
+            entrySize = Files.size(walPath);
+            wal.append("b", "2");
+            wal.append("c", "3");
+        }
+        try (var channel = FileChannel.open(walPath, WRITE)) {
+            // the last byte of the payload of the last entry
+            channel.write(ByteBuffer.wrap(new byte[]{'?'}), 3 * entrySize - 1);
+        }
+        assertEquals(List.of(new KeyValueRecord("a", "1"), new KeyValueRecord("b", "2")),
+                WriteAheadLog.replay(walPath));
+        try (var channel = FileChannel.open(walPath, WRITE)) {
+            channel.write(ByteBuffer.wrap(new byte[]{'?'}), 2 * entrySize - 1);
+        }
+        var e = assertThrows(IOException.class, () -> WriteAheadLog.replay(walPath));
+        assertTrue(e.getMessage().contains(walPath + " at " + entrySize), e.getMessage());
+    }
+
+    @Test
+    void tornBatch() throws IOException {
+        Path walPath = path.resolve("wal");
+        try (var wal = new WriteAheadLog(walPath, Durability.SYNC, 0, 0)) {
+            wal.append("a", "1");
+            wal.appendBatch(List.of(new KeyValueRecord("b", "2"), new KeyValueRecord("c", null)));
+        }
+        assertEquals(List.of(new KeyValueRecord("a", "1"), new KeyValueRecord("b", "2"), new KeyValueRecord("c", null)),
+                WriteAheadLog.replay(walPath));
+        try (var channel = FileChannel.open(walPath, WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+        assertEquals(List.of(new KeyValueRecord("a", "1")), WriteAheadLog.replay(walPath));
+    }
+
+    @Test
+    void rangeTombstones() throws IOException {
+        Path walPath = path.resolve("wal");
+        try (var wal = new WriteAheadLog(walPath, Durability.SYNC, 0, 0)) {
+            wal.append("a", "1");
+            wal.appendRangeTombstone(new RangeTombstone("a", "c"));
+            wal.append("b", "2");
+        }
+        var replayed = new ArrayList<String>();
+        WriteAheadLog.replay(walPath, new WriteAheadLog.Replayer() {
+            @Override
+            public void put(String key, String value) {
+                replayed.add(key + "=" + value);
+            }
+
+            @Override
+            public void removeRange(RangeTombstone tombstone) {
+                replayed.add(tombstone.from() + ".." + tombstone.to());
+            }
+        });
+        assertEquals(List.of("a=1", "a..c", "b=2"), replayed);
+        assertEquals(2, WriteAheadLog.replay(walPath).size());
+    }
+}
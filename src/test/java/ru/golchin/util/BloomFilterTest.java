@@ -0,0 +1,40 @@
+package ru.golchin.util;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BloomFilterTest {
+    @SuppressWarnings("unused")
+    @TempDir
+    Path path;
+
+    @Test
+    void noFalseNegatives() throws IOException {
+        var filter = new BloomFilter(1000, 0.01);
+        for (int i = 0; i < 1000; i++)
+            filter.add(String.valueOf(i));
+        filter.writeTo(path.resolve("filter"));
+        var restored = BloomFilter.readFrom(path.resolve("filter"));
+        int falsePositives = 0;
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(filter.mightContain(String.valueOf(i)));
+            assertTrue(restored.mightContain(String.valueOf(i)));
+            if (restored.mightContain(String.valueOf(-i - 1)))
+                falsePositives++;
+        }
+        assertTrue(falsePositives < 50, "false positives: " + falsePositives);
+    }
+
+    @Test
+    void truncatedHeader() throws IOException {
+        Path filterPath = path.resolve("truncated");
+        Files.write(filterPath, new byte[]{0, 0, 0, 3, 0});
+        assertThrows(IOException.class, () -> BloomFilter.readFrom(filterPath));
+    }
+}
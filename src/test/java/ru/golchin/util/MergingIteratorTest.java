@@ -0,0 +1,71 @@
+package ru.golchin.util;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+
+import static java.util.stream.Collectors.toList;
+import static org.junit.jupiter.api.Assertions.*;
+
+class MergingIteratorTest {
+    private static PeekableIterator<String[]> iterator(String... entries) {
+        var list = Arrays.stream(entries).map(e -> e.split("=")).collect(toList());
+        return new PeekableIterator<>() {
+            int i;
+
+            @Override
+            public String[] peek() {
+                return i < list.size() ? list.get(i) : null;
+            }
+
+            @Override
+            public boolean hasNext() {
+                return i < list.size();
+            }
+
+            @Override
+            public String[] next() {
+                return list.get(i++);
+            }
+        };
+    }
+
+    @Test
+    void laterIteratorWins() {
+        var merged = new MergingIterator<>(List.of(
+                iterator("a=1", "c=1", "d=1"),
+                iterator(),
+                iterator("b=2", "c=2"),
+                iterator("c=3", "e=3")), Comparator.comparing((String[] e) -> e[0]));
+        var result = new ArrayList<String>();
+        assertEquals("a", merged.peek()[0]);
+        while (merged.hasNext())
+            result.add(String.join("=", merged.next()));
+        assertEquals(List.of("a=1", "b=2", "c=3", "d=1", "e=3"), result);
+        assertNull(merged.peek());
+        assertThrows(NoSuchElementException.class, merged::next);
+    }
+
+    @Test
+    void manyIterators() {
+        var iterators = new ArrayList<PeekableIterator<String[]>>();
+        var expected = new TreeMap<String, String>();
+        for (int i = 0; i < 20; i++) {
+            var entries = new TreeMap<String, String>();
+            for (int j = i; j < 200; j += i + 1)
+                entries.put(String.format("%03d", j), String.valueOf(i));
+            expected.putAll(entries);
+            iterators.add(iterator(entries.entrySet().stream().map(e -> e.getKey() + "=" + e.getValue()).toArray(String[]::new)));
+        }
+        var merged = new MergingIterator<>(iterators, Comparator.comparing((String[] e) -> e[0]));
+        var result = new TreeMap<String, String>();
+        String previous = "";
+        while (merged.hasNext()) {
+            String[] entry = merged.next();
+            assertTrue(entry[0].compareTo(previous) > 0);
+            previous = entry[0];
+            result.put(entry[0], entry[1]);
+        }
+        assertEquals(expected, result);
+    }
+}